@@ -1,20 +1,50 @@
 require 'benchmark'
 require 'persistent_data_structure'
-30.times do 
+
+def allocated_bytes
+  java.lang.management.ManagementFactory.getThreadMXBean.
+    getThreadAllocatedBytes(java.lang.Thread.currentThread.getId)
+end
+
+def measure(label)
+  puts label
+  before = allocated_bytes
+  time = Benchmark.measure { yield }
+  puts time
+  puts "  allocated: #{(allocated_bytes - before) / 1024 / 1024} MB"
+end
+
+(ENV["BENCH_ROUNDS"] || 30).to_i.times do
   arry = [*1..100000]
-  puts "Vector from Array"
-  puts Benchmark.measure {
+  measure("Vector from Array") {
     10.times { vector = Persistent::Vector[*1..100000] }
   }
-  puts "Vector#add"
-  puts Benchmark.measure {
+  measure("Vector.from") {
+    10.times { vector = Persistent::Vector.from(arry) }
+  }
+  measure("Vector.from_range") {
+    10.times { vector = Persistent::Vector.from_range(1..100000) }
+  }
+  measure("Vector#add") {
     10.times do
       v = Persistent::Vector[1]
       100000.times { |i| v = v.add(i) }
     end
   }
-  puts "Array#<<"
-  puts Benchmark.measure {
+  measure("TransientVector#<<") {
+    10.times do
+      v = Persistent::Vector[1].with_mutations do |t|
+        100000.times { |i| t << i }
+      end
+    end
+  }
+  measure("Vector#set") {
+    v = Persistent::Vector[*1..100000]
+    10.times do
+      100000.times { |i| v = v.set(i, i) }
+    end
+  }
+  measure("Array#<<") {
     10.times do
       d = []
       100000.times { |i| d << i }
@@ -0,0 +1,185 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.jruby.ext.persistent;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.runtime.Arity;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.BlockCallback;
+import org.jruby.runtime.CallBlock;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.jruby.ext.persistent.PersistentVectorLibrary.PersistentVector;
+import org.jruby.ext.persistent.PersistentVectorLibrary.TransientVector;
+
+/**
+ * Drives the vector from Java against an embedded JRuby runtime, so the
+ * numbers are for the trie itself rather than for Ruby method dispatch.
+ * Apart from equalVersions, each benchmark touches every element once;
+ * divide by size for per-element cost. Allocation rates come from JMH's GC profiler:
+ *
+ *     mvn -P bench package
+ *     java -jar target/benchmarks.jar VectorBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VectorBenchmark {
+    @Param({"32", "1024", "32768", "1048576"})
+    int size;
+
+    Ruby runtime;
+    ThreadContext context;
+    RubyClass vectorClass;
+    IRubyObject[] items;
+    int[] randomIndices;
+    PersistentVector vector;
+    // vector with its middle element set to an equal value, sharing all
+    // but one path with it.
+    PersistentVector updated;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        runtime = Ruby.newInstance();
+        new PersistentVectorLibrary().load(runtime, false);
+        context = runtime.getCurrentContext();
+        vectorClass = PersistentVectorLibrary.PersistentVector;
+
+        items = new IRubyObject[size];
+        for (int i = 0; i < size; i++)
+            items[i] = RubyFixnum.newFixnum(runtime, i);
+
+        Random random = new Random(42);
+        randomIndices = new int[size];
+        for (int i = 0; i < size; i++)
+            randomIndices[i] = random.nextInt(size);
+
+        vector = (PersistentVector) PersistentVector.create(context, vectorClass, items);
+        updated = (PersistentVector) vector.set(context, items[size / 2], RubyFixnum.newFixnum(runtime, size / 2));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        runtime.tearDown();
+    }
+
+    @Benchmark
+    public IRubyObject create() {
+        return PersistentVector.create(context, vectorClass, items);
+    }
+
+    @Benchmark
+    public void sequentialGet(Blackhole bh) {
+        for (int i = 0; i < size; i++)
+            bh.consume(vector.get(context, i));
+    }
+
+    @Benchmark
+    public void randomGet(Blackhole bh) {
+        for (int i : randomIndices)
+            bh.consume(vector.get(context, i));
+    }
+
+    @Benchmark
+    public IRubyObject add() {
+        IRubyObject v = PersistentVector.create(context, vectorClass, new IRubyObject[0]);
+        for (IRubyObject item : items)
+            v = ((PersistentVector) v).add(context, item);
+        return v;
+    }
+
+    @Benchmark
+    public IRubyObject sequentialSet() {
+        IRubyObject v = vector;
+        for (int i = 0; i < size; i++)
+            v = ((PersistentVector) v).set(context, items[i], items[i]);
+        return v;
+    }
+
+    @Benchmark
+    public IRubyObject randomSet() {
+        IRubyObject v = vector;
+        for (int i : randomIndices)
+            v = ((PersistentVector) v).set(context, items[i], items[i]);
+        return v;
+    }
+
+    @Benchmark
+    public IRubyObject pop() {
+        IRubyObject v = vector;
+        for (int i = 0; i < size; i++)
+            v = ((PersistentVector) v).pop(context);
+        return v;
+    }
+
+    @Benchmark
+    public IRubyObject each(final Blackhole bh) {
+        Block block = CallBlock.newCallClosure(vector, vectorClass, Arity.ONE_ARGUMENT, new BlockCallback() {
+            public IRubyObject call(ThreadContext context, IRubyObject[] args, Block block) {
+                bh.consume(args[0]);
+                return context.nil;
+            }
+        }, context);
+        return vector.each(context, block);
+    }
+
+    /** Two versions one set apart, which == should compare along a single path. */
+    @Benchmark
+    public IRubyObject equalVersions() {
+        return vector.op_equal(context, updated);
+    }
+
+    @Benchmark
+    public IRubyObject transientConj() {
+        TransientVector t = ((PersistentVector) PersistentVector.create(context, vectorClass, new IRubyObject[0])).asTransient(context);
+        for (IRubyObject item : items)
+            t.conj(context, item);
+        return t.persistent(context, vectorClass);
+    }
+
+    @Benchmark
+    public IRubyObject transientSet() {
+        TransientVector t = vector.asTransient(context);
+        for (int i : randomIndices)
+            t.assocN(context, items[i], items[i]);
+        return t.persistent(context, vectorClass);
+    }
+
+    @Benchmark
+    public IRubyObject toArray() {
+        return vector.toRubyArray(context);
+    }
+}
@@ -0,0 +1,264 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.jruby.ext.persistent;
+
+import java.lang.Override;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.load.Library;
+
+import org.jruby.ext.persistent.PersistentVectorLibrary.ChunkIterator;
+import org.jruby.ext.persistent.PersistentVectorLibrary.PersistentVector;
+import org.jruby.ext.persistent.PersistentVectorLibrary.TransientVector;
+
+import static org.jruby.RubyEnumerator.enumeratorize;
+
+/**
+ * Persistent::LazyVector, what Vector#lazy returns: a vector together with a
+ * chain of map, select, reject, take_while, take and flat_map stages that
+ * have not run yet. Adding a stage only records it. to_v then runs every
+ * element through the whole chain in one pass over the leaves and conj's
+ * the survivors onto a single transient, and each streams them into its
+ * block without building anything.
+ */
+public class LazyVectorLibrary implements Library {
+    static public RubyClass LazyVector;
+
+    public void load(Ruby runtime, boolean wrap) {
+        RubyModule persistent = runtime.getOrCreateModule("Persistent");
+        RubyClass lazyVector = persistent.defineOrGetClassUnder("LazyVector", runtime.getObject());
+        lazyVector.setAllocator(ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        lazyVector.includeModule(runtime.getEnumerable());
+        lazyVector.defineAnnotatedMethods(PersistentLazyVector.class);
+        LazyVector = lazyVector;
+    }
+
+    static final int MAP = 0;
+    static final int SELECT = 1;
+    static final int REJECT = 2;
+    static final int TAKE_WHILE = 3;
+    static final int TAKE = 4;
+    static final int FLAT_MAP = 5;
+
+    static final String[] STAGE_NAMES = {"map", "select", "reject", "take_while", "take", "flat_map"};
+
+    /** Receives the elements coming out of the last stage. */
+    interface Sink {
+        void accept(IRubyObject value);
+    }
+
+    @JRubyClass(name="LazyVector")
+    public static class PersistentLazyVector extends RubyObject {
+        PersistentVector source;
+        int[] kinds;
+        // The block of each stage, or for take the limit as an Integer.
+        Object[] args;
+
+        public PersistentLazyVector(Ruby runtime, RubyClass rubyClass) {
+            super(runtime, rubyClass);
+        }
+
+        public IRubyObject initialize(ThreadContext context, PersistentVector source, int[] kinds, Object[] args) {
+            this.source = source;
+            this.kinds = kinds;
+            this.args = args;
+            return this;
+        }
+
+        static PersistentLazyVector of(ThreadContext context, PersistentVector source) {
+            return (PersistentLazyVector) new PersistentLazyVector(context.runtime, LazyVector)
+                    .initialize(context, source, new int[0], new Object[0]);
+        }
+
+        private PersistentLazyVector with(ThreadContext context, int kind, Object arg) {
+            int n = kinds.length;
+            int[] newKinds = new int[n + 1];
+            Object[] newArgs = new Object[n + 1];
+            System.arraycopy(kinds, 0, newKinds, 0, n);
+            System.arraycopy(args, 0, newArgs, 0, n);
+            newKinds[n] = kind;
+            newArgs[n] = arg;
+            return (PersistentLazyVector) new PersistentLazyVector(context.runtime, getMetaClass())
+                    .initialize(context, source, newKinds, newArgs);
+        }
+
+        private PersistentLazyVector stage(ThreadContext context, int kind, Block block) {
+            if (!block.isGiven())
+                throw context.runtime.newArgumentError("tried to call lazy " + STAGE_NAMES[kind] + " without a block");
+            // Turned into a proc so the block outlives this call.
+            return with(context, kind, context.runtime.newProc(Block.Type.PROC, block).getBlock());
+        }
+
+        @JRubyMethod(name = {"map", "collect"})
+        public IRubyObject map(ThreadContext context, Block block) {
+            return stage(context, MAP, block);
+        }
+
+        @JRubyMethod(name = {"select", "find_all"})
+        public IRubyObject select(ThreadContext context, Block block) {
+            return stage(context, SELECT, block);
+        }
+
+        @JRubyMethod(name = "reject")
+        public IRubyObject reject(ThreadContext context, Block block) {
+            return stage(context, REJECT, block);
+        }
+
+        @JRubyMethod(name = "take_while")
+        public IRubyObject take_while(ThreadContext context, Block block) {
+            return stage(context, TAKE_WHILE, block);
+        }
+
+        @JRubyMethod(name = {"flat_map", "collect_concat"})
+        public IRubyObject flat_map(ThreadContext context, Block block) {
+            return stage(context, FLAT_MAP, block);
+        }
+
+        @JRubyMethod(name = "take", required = 1)
+        public IRubyObject take(ThreadContext context, IRubyObject n) {
+            int limit = RubyNumeric.num2int(n);
+            if (limit < 0)
+                throw context.runtime.newArgumentError("attempt to take negative size");
+            return with(context, TAKE, limit);
+        }
+
+        @JRubyMethod(name = "lazy")
+        public IRubyObject lazy(ThreadContext context) {
+            return this;
+        }
+
+        /** Runs the chain, building the result in a single transient vector. */
+        @JRubyMethod(name = {"to_v", "force"})
+        public IRubyObject to_v(final ThreadContext context) {
+            final TransientVector ret = ((PersistentVector) source.clear(context)).asTransient(context);
+            run(context, new Sink() {
+                public void accept(IRubyObject value) {
+                    ret.conj(context, value);
+                }
+            });
+            return ret.persistent(context, source.getMetaClass());
+        }
+
+        @JRubyMethod(name = {"to_a", "entries"})
+        public IRubyObject to_a(final ThreadContext context) {
+            final RubyArray ret = RubyArray.newArray(context.runtime);
+            run(context, new Sink() {
+                public void accept(IRubyObject value) {
+                    ret.append(value);
+                }
+            });
+            return ret;
+        }
+
+        /** Streams the elements coming out of the chain into the block. */
+        @JRubyMethod(name = "each")
+        public IRubyObject each(final ThreadContext context, final Block block) {
+            if (!block.isGiven()) return enumeratorize(context.runtime, this, "each");
+            run(context, new Sink() {
+                public void accept(IRubyObject value) {
+                    block.yield(context, value);
+                }
+            });
+            return this;
+        }
+
+        @JRubyMethod(name = "inspect")
+        public IRubyObject inspect(ThreadContext context) {
+            StringBuilder sb = new StringBuilder("#<").append(getMetaClass().getRealClass().getName()).append(": ");
+            sb.append(source.inspect(context).toString());
+            for (int i = 0; i < kinds.length; i++) {
+                sb.append('.').append(STAGE_NAMES[kinds[i]]);
+                if (kinds[i] == TAKE) sb.append('(').append(args[i]).append(')');
+            }
+            return context.runtime.newString(sb.append('>').toString());
+        }
+
+        private void run(ThreadContext context, Sink sink) {
+            // Countdowns for the take stages, fresh for every pass.
+            int[] remaining = new int[kinds.length];
+            for (int s = 0; s < kinds.length; s++) {
+                if (kinds[s] == TAKE) {
+                    remaining[s] = (Integer) args[s];
+                    if (remaining[s] == 0) return;
+                }
+            }
+            for (ChunkIterator it = source.chunks(); it.next(); ) {
+                Object[] chunk = it.chunk;
+                for (int j = 0, n = it.length; j < n; j++) {
+                    if (!push(context, 0, (IRubyObject) chunk[j], remaining, sink)) return;
+                }
+            }
+        }
+
+        /** Feeds value to the chain from stage on; false once nothing more can come out. */
+        private boolean push(ThreadContext context, int stage, IRubyObject value, int[] remaining, Sink sink) {
+            for (int s = stage; s < kinds.length; s++) {
+                switch (kinds[s]) {
+                    case MAP:
+                        value = ((Block) args[s]).yield(context, value);
+                        break;
+                    case SELECT:
+                        if (!((Block) args[s]).yield(context, value).isTrue()) return true;
+                        break;
+                    case REJECT:
+                        if (((Block) args[s]).yield(context, value).isTrue()) return true;
+                        break;
+                    case TAKE_WHILE:
+                        if (!((Block) args[s]).yield(context, value).isTrue()) return false;
+                        break;
+                    case TAKE:
+                        if (--remaining[s] == 0) {
+                            // The last element let through still goes down the
+                            // rest of the chain, then the pass is over.
+                            push(context, s + 1, value, remaining, sink);
+                            return false;
+                        }
+                        break;
+                    case FLAT_MAP:
+                        IRubyObject result = ((Block) args[s]).yield(context, value);
+                        if (result instanceof PersistentVector) {
+                            for (ChunkIterator it = ((PersistentVector) result).chunks(); it.next(); ) {
+                                for (int j = 0, n = it.length; j < n; j++) {
+                                    if (!push(context, s + 1, (IRubyObject) it.chunk[j], remaining, sink)) return false;
+                                }
+                            }
+                            return true;
+                        }
+                        IRubyObject ary = result.checkArrayType();
+                        if (ary.isNil()) {
+                            value = result;
+                            break;
+                        }
+                        RubyArray elements = (RubyArray) ary;
+                        for (int j = 0; j < elements.getLength(); j++) {
+                            if (!push(context, s + 1, elements.eltInternal(j), remaining, sink)) return false;
+                        }
+                        return true;
+                }
+            }
+            sink.accept(value);
+            return true;
+        }
+    }
+}
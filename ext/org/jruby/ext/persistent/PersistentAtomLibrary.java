@@ -0,0 +1,251 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.jruby.ext.persistent;
+
+import java.lang.Override;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.load.Library;
+
+/**
+ * Persistent::Atom (also Persistent::Ref), a mutable cell holding a single
+ * immutable value, typically one of the persistent collections. Reads never
+ * block; swap computes the next value from the current one and installs it
+ * with a compare-and-set, retrying only when another thread got in first.
+ * The block passed to swap may therefore run more than once and should have
+ * no side effects.
+ */
+public class PersistentAtomLibrary implements Library {
+    static public RubyClass Atom;
+
+    public void load(Ruby runtime, boolean wrap) {
+        RubyModule persistent = runtime.getOrCreateModule("Persistent");
+        RubyClass atom = persistent.defineOrGetClassUnder("Atom", runtime.getObject());
+        atom.setAllocator(new ObjectAllocator() {
+            @Override
+            public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
+                return new PersistentAtom(ruby, rubyClass);
+            }
+        });
+        atom.defineAnnotatedMethods(PersistentAtom.class);
+        persistent.setConstant("Ref", atom);
+        Atom = atom;
+    }
+
+    @JRubyClass(name="Atom")
+    public static class PersistentAtom extends RubyObject {
+        private static final IRubyObject[] NO_WATCHES = new IRubyObject[0];
+
+        final AtomicReference<IRubyObject> state = new AtomicReference<IRubyObject>();
+        // Key/callback pairs, replaced wholesale so notifying never locks.
+        final AtomicReference<IRubyObject[]> watches = new AtomicReference<IRubyObject[]>(NO_WATCHES);
+        volatile IRubyObject validator;
+
+        final AtomicLong swaps = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong contended = new AtomicLong();
+        final AtomicLong casFailures = new AtomicLong();
+
+        public PersistentAtom(Ruby runtime, RubyClass rubyClass) {
+            super(runtime, rubyClass);
+            state.set(runtime.getNil());
+        }
+
+        /** Atom.new(value = nil) { |v| valid? }, the block being an optional validator. */
+        @JRubyMethod(name = "initialize", optional = 1)
+        public IRubyObject initialize(ThreadContext context, IRubyObject[] args, Block block) {
+            if (block.isGiven())
+                validator = context.runtime.newProc(Block.Type.PROC, block);
+            IRubyObject value = args.length > 0 ? args[0] : context.nil;
+            validate(context, value);
+            state.set(value);
+            return this;
+        }
+
+        @JRubyMethod(name = "value", alias = {"deref", "get"})
+        public IRubyObject value(ThreadContext context) {
+            return state.get();
+        }
+
+        @JRubyMethod(name = "reset", alias = {"value=", "set"}, required = 1)
+        public IRubyObject reset(ThreadContext context, IRubyObject value) {
+            validate(context, value);
+            IRubyObject old = state.getAndSet(value);
+            notifyWatches(context, old, value);
+            return value;
+        }
+
+        /**
+         * Replaces the value by the block's result for it (and any extra
+         * arguments), retrying with the fresh value whenever another thread
+         * changed it in between. Returns the value installed.
+         */
+        @JRubyMethod(name = "swap", rest = true)
+        public IRubyObject swap(ThreadContext context, IRubyObject[] args, Block block) {
+            if (!block.isGiven())
+                throw context.runtime.newLocalJumpErrorNoBlock();
+            IRubyObject[] blockArgs = new IRubyObject[args.length + 1];
+            System.arraycopy(args, 0, blockArgs, 1, args.length);
+            boolean retried = false;
+            while (true) {
+                IRubyObject old = state.get();
+                blockArgs[0] = old;
+                IRubyObject value = block.call(context, blockArgs);
+                validate(context, value);
+                if (state.compareAndSet(old, value)) {
+                    swaps.incrementAndGet();
+                    notifyWatches(context, old, value);
+                    return value;
+                }
+                retries.incrementAndGet();
+                if (!retried) {
+                    retried = true;
+                    contended.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Sets the value to update if it currently is expected. Values are
+         * compared by identity, except that numbers compare by ==, since
+         * equal Fixnums and Floats are not always the same object.
+         */
+        @JRubyMethod(name = "compare_and_set", alias = "compare_and_swap", required = 2)
+        public IRubyObject compare_and_set(ThreadContext context, IRubyObject expected, IRubyObject update) {
+            IRubyObject old = state.get();
+            if (old != expected && !(expected instanceof RubyNumeric && old instanceof RubyNumeric
+                    && equalInternal(context, old, expected))) {
+                casFailures.incrementAndGet();
+                return context.runtime.getFalse();
+            }
+            validate(context, update);
+            if (!state.compareAndSet(old, update)) {
+                casFailures.incrementAndGet();
+                return context.runtime.getFalse();
+            }
+            notifyWatches(context, old, update);
+            return context.runtime.getTrue();
+        }
+
+        @JRubyMethod(name = "validator")
+        public IRubyObject validator(ThreadContext context) {
+            IRubyObject v = validator;
+            return v == null ? context.nil : v;
+        }
+
+        /** Sets a callable that every new value must satisfy, or nil for none. */
+        @JRubyMethod(name = "validator=", required = 1)
+        public IRubyObject set_validator(ThreadContext context, IRubyObject callable) {
+            IRubyObject v = callable.isNil() ? null : callable;
+            if (v != null && !v.respondsTo("call"))
+                throw context.runtime.newArgumentError("validator must respond to call");
+            if (v != null && !v.callMethod(context, "call", state.get()).isTrue())
+                throw context.runtime.newArgumentError("invalid reference state");
+            validator = v;
+            return callable;
+        }
+
+        /**
+         * Calls the block with (key, atom, old, new) after every change,
+         * on the thread that made it. A second watch under the same key
+         * replaces the first.
+         */
+        @JRubyMethod(name = "add_watch", required = 1)
+        public IRubyObject add_watch(ThreadContext context, IRubyObject key, Block block) {
+            if (!block.isGiven())
+                throw context.runtime.newLocalJumpErrorNoBlock();
+            IRubyObject fn = context.runtime.newProc(Block.Type.PROC, block);
+            while (true) {
+                IRubyObject[] current = watches.get();
+                IRubyObject[] next = without(current, key, 2);
+                next[next.length - 2] = key;
+                next[next.length - 1] = fn;
+                if (watches.compareAndSet(current, next))
+                    return this;
+            }
+        }
+
+        @JRubyMethod(name = "remove_watch", required = 1)
+        public IRubyObject remove_watch(ThreadContext context, IRubyObject key) {
+            while (true) {
+                IRubyObject[] current = watches.get();
+                IRubyObject[] next = without(current, key, 0);
+                if (next.length == current.length || watches.compareAndSet(current, next))
+                    return this;
+            }
+        }
+
+        /** Counts of successful swaps, swap retries, swaps that retried at all and failed compare_and_sets. */
+        @JRubyMethod(name = "stats")
+        public IRubyObject stats(ThreadContext context) {
+            Ruby runtime = context.runtime;
+            RubyHash hash = RubyHash.newHash(runtime);
+            hash.op_aset(context, runtime.newSymbol("swaps"), runtime.newFixnum(swaps.get()));
+            hash.op_aset(context, runtime.newSymbol("retries"), runtime.newFixnum(retries.get()));
+            hash.op_aset(context, runtime.newSymbol("contended"), runtime.newFixnum(contended.get()));
+            hash.op_aset(context, runtime.newSymbol("cas_failures"), runtime.newFixnum(casFailures.get()));
+            return hash;
+        }
+
+        @JRubyMethod(name = "inspect")
+        public IRubyObject inspect(ThreadContext context) {
+            String className = getMetaClass().getRealClass().getName();
+            return context.runtime.newString("#<" + className + " " + state.get().inspect() + ">");
+        }
+
+        private void validate(ThreadContext context, IRubyObject value) {
+            IRubyObject v = validator;
+            if (v != null && !v.callMethod(context, "call", value).isTrue())
+                throw context.runtime.newArgumentError("invalid reference state");
+        }
+
+        private void notifyWatches(ThreadContext context, IRubyObject old, IRubyObject value) {
+            IRubyObject[] w = watches.get();
+            for (int i = 0; i < w.length; i += 2)
+                w[i + 1].callMethod(context, "call", new IRubyObject[]{w[i], this, old, value});
+        }
+
+        /** A copy of the pairs without key, with room for extra more entries at the end. */
+        private static IRubyObject[] without(IRubyObject[] pairs, IRubyObject key, int extra) {
+            int at = -1;
+            for (int i = 0; i < pairs.length; i += 2) {
+                if (pairs[i].eql(key)) {
+                    at = i;
+                    break;
+                }
+            }
+            if (at < 0) {
+                IRubyObject[] copy = new IRubyObject[pairs.length + extra];
+                System.arraycopy(pairs, 0, copy, 0, pairs.length);
+                return copy;
+            }
+            IRubyObject[] copy = new IRubyObject[pairs.length - 2 + extra];
+            System.arraycopy(pairs, 0, copy, 0, at);
+            System.arraycopy(pairs, at + 2, copy, at, pairs.length - at - 2);
+            return copy;
+        }
+    }
+}
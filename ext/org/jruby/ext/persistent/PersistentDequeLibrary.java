@@ -0,0 +1,375 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.jruby.ext.persistent;
+
+import java.lang.Override;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.load.Library;
+
+import org.jruby.ext.persistent.PersistentVectorLibrary.ChunkIterator;
+import org.jruby.ext.persistent.PersistentVectorLibrary.PersistentVector;
+import org.jruby.ext.persistent.PersistentVectorLibrary.TransientVector;
+
+import static org.jruby.RubyEnumerator.enumeratorize;
+
+/**
+ * Persistent::Deque, a double-ended queue made of two vectors back to back.
+ * The front vector holds the leading elements in reverse, so unshift and
+ * shift are add and pop at its tail just as push and pop are on the rear
+ * one. Once one side runs dry, taking from that end reads the far end of the
+ * other side instead and only moves a start offset over it; the dead
+ * elements are dropped a leaf at a time. Every operation at either end is
+ * therefore O(1) amortized.
+ */
+public class PersistentDequeLibrary implements Library {
+    static public RubyClass Deque;
+    static public RubyClass TransientDeque;
+
+    public void load(Ruby runtime, boolean wrap) {
+        RubyModule persistent = runtime.getOrCreateModule("Persistent");
+        RubyClass deque = persistent.defineOrGetClassUnder("Deque", runtime.getObject());
+        deque.setAllocator(new ObjectAllocator() {
+            @Override
+            public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
+                return new PersistentDeque(ruby, rubyClass);
+            }
+        });
+        deque.includeModule(runtime.getEnumerable());
+        deque.defineAnnotatedMethods(PersistentDeque.class);
+        Deque = deque;
+
+        RubyClass transientDeque = persistent.defineOrGetClassUnder("TransientDeque", runtime.getObject());
+        transientDeque.setAllocator(ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        transientDeque.defineAnnotatedMethods(PersistentTransientDeque.class);
+        TransientDeque = transientDeque;
+    }
+
+    static PersistentVector emptyVector(ThreadContext context) {
+        return (PersistentVector) PersistentVector.create(context, PersistentVectorLibrary.PersistentVector, IRubyObject.NULL_ARRAY);
+    }
+
+    @JRubyClass(name="Deque")
+    public static class PersistentDeque extends RubyObject {
+        // Elements are front[front.cnt - 1] down to front[frontStart], then
+        // rear[rearStart] up to rear[rear.cnt - 1].
+        PersistentVector front;
+        int frontStart;
+        PersistentVector rear;
+        int rearStart;
+        private int hash;
+
+        public PersistentDeque(Ruby runtime, RubyClass rubyClass) {
+            super(runtime, rubyClass);
+        }
+
+        public IRubyObject initialize(ThreadContext context, PersistentVector front, int frontStart, PersistentVector rear, int rearStart) {
+            // Whole dead leaves are sliced away so the skipped elements can be collected.
+            if (front.cnt == frontStart) {
+                front = emptyVector(context);
+                frontStart = 0;
+            } else if (frontStart >= 32) {
+                front = front.slice(context, frontStart, front.cnt);
+                frontStart = 0;
+            }
+            if (rear.cnt == rearStart) {
+                rear = emptyVector(context);
+                rearStart = 0;
+            } else if (rearStart >= 32) {
+                rear = rear.slice(context, rearStart, rear.cnt);
+                rearStart = 0;
+            }
+            this.front = front;
+            this.frontStart = frontStart;
+            this.rear = rear;
+            this.rearStart = rearStart;
+            return this;
+        }
+
+        private PersistentDeque with(ThreadContext context, PersistentVector front, int frontStart, PersistentVector rear, int rearStart) {
+            return (PersistentDeque) new PersistentDeque(context.runtime, getMetaClass()).initialize(context, front, frontStart, rear, rearStart);
+        }
+
+        @JRubyMethod(name = "[]", rest = true, meta = true)
+        public static IRubyObject create(ThreadContext context, IRubyObject cls, IRubyObject[] items) {
+            PersistentVector rear = (PersistentVector) PersistentVector.create(context, PersistentVectorLibrary.PersistentVector, items);
+            return new PersistentDeque(context.runtime, (RubyClass) cls).initialize(context, emptyVector(context), 0, rear, 0);
+        }
+
+        int size() {
+            return front.cnt - frontStart + rear.cnt - rearStart;
+        }
+
+        IRubyObject get(ThreadContext context, int i) {
+            int inFront = front.cnt - frontStart;
+            return i < inFront ? front.get(context, front.cnt - 1 - i) : rear.get(context, rearStart + i - inFront);
+        }
+
+        @JRubyMethod(name = "size", alias = "length")
+        public IRubyObject count(ThreadContext context) {
+            return context.runtime.newFixnum(size());
+        }
+
+        @JRubyMethod(name = "empty?")
+        public IRubyObject isEmpty(ThreadContext context) {
+            return RubyBoolean.newBoolean(context.runtime, size() == 0);
+        }
+
+        @JRubyMethod(name = {"push", "add", "append"}, required = 1)
+        public IRubyObject push(ThreadContext context, IRubyObject val) {
+            return with(context, front, frontStart, (PersistentVector) rear.add(context, val), rearStart);
+        }
+
+        @JRubyMethod(name = {"unshift", "prepend"}, required = 1)
+        public IRubyObject unshift(ThreadContext context, IRubyObject val) {
+            return with(context, (PersistentVector) front.add(context, val), frontStart, rear, rearStart);
+        }
+
+        @JRubyMethod(name = "pop")
+        public IRubyObject pop(ThreadContext context) {
+            if (rear.cnt > rearStart)
+                return with(context, front, frontStart, (PersistentVector) rear.pop(context), rearStart);
+            if (front.cnt > frontStart)
+                return with(context, front, frontStart + 1, rear, rearStart);
+            throw context.runtime.newIndexError("pop from empty deque");
+        }
+
+        @JRubyMethod(name = "shift")
+        public IRubyObject shift(ThreadContext context) {
+            if (front.cnt > frontStart)
+                return with(context, (PersistentVector) front.pop(context), frontStart, rear, rearStart);
+            if (rear.cnt > rearStart)
+                return with(context, front, frontStart, rear, rearStart + 1);
+            throw context.runtime.newIndexError("shift from empty deque");
+        }
+
+        @JRubyMethod(name = {"first", "peek"}, optional = 1)
+        public IRubyObject first(ThreadContext context, IRubyObject[] args) {
+            if (args.length == 1)
+                return take(context, args[0]);
+            return size() == 0 ? context.nil : get(context, 0);
+        }
+
+        @JRubyMethod(name = "last")
+        public IRubyObject last(ThreadContext context) {
+            int n = size();
+            return n == 0 ? context.nil : get(context, n - 1);
+        }
+
+        @JRubyMethod(name = {"[]", "get"}, required = 1)
+        public IRubyObject aref(ThreadContext context, IRubyObject index) {
+            int n = size();
+            int i = RubyNumeric.num2int(index);
+            if (i < 0) i += n;
+            return i < 0 || i >= n ? context.nil : get(context, i);
+        }
+
+        @JRubyMethod(name = "take", required = 1)
+        public IRubyObject take(ThreadContext context, IRubyObject count) {
+            int n = Math.min(RubyNumeric.num2int(count), size());
+            if (n < 0)
+                throw context.runtime.newArgumentError("attempt to take negative size");
+            RubyArray ret = RubyArray.newArray(context.runtime, n);
+            for (int i = 0; i < n; i++)
+                ret.append(get(context, i));
+            return ret;
+        }
+
+        @JRubyMethod(name = "each")
+        public IRubyObject each(ThreadContext context, Block block) {
+            if (!block.isGiven()) return enumeratorize(context.runtime, this, "each");
+            for (int i = front.cnt - 1; i >= frontStart; i--)
+                block.yield(context, front.get(context, i));
+            for (ChunkIterator it = rear.chunks(); it.next(); ) {
+                Object[] chunk = it.chunk;
+                for (int j = Math.max(0, rearStart - it.base), n = it.length; j < n; j++)
+                    block.yield(context, (IRubyObject) chunk[j]);
+            }
+            return this;
+        }
+
+        @JRubyMethod(name = {"to_a", "to_ary"})
+        public IRubyObject to_a(ThreadContext context) {
+            int n = size();
+            IRubyObject[] elements = new IRubyObject[n];
+            int k = 0;
+            for (int i = front.cnt - 1; i >= frontStart; i--)
+                elements[k++] = front.get(context, i);
+            for (ChunkIterator it = rear.chunks(); it.next(); ) {
+                int from = Math.max(0, rearStart - it.base);
+                if (from < it.length) {
+                    System.arraycopy(it.chunk, from, elements, k, it.length - from);
+                    k += it.length - from;
+                }
+            }
+            return RubyArray.newArrayNoCopy(context.runtime, elements);
+        }
+
+        @JRubyMethod(name = "inspect")
+        public IRubyObject inspect(ThreadContext context) {
+            String className = getMetaClass().getRealClass().getName();
+            return context.runtime.newString(className + to_a(context).inspect());
+        }
+
+        @JRubyMethod(name = "==", required = 1)
+        public IRubyObject op_equal(ThreadContext context, IRubyObject obj) {
+            return RubyBoolean.newBoolean(context.runtime, equiv(context, obj, false));
+        }
+
+        @JRubyMethod(name = "eql?", required = 1)
+        public IRubyObject eql(ThreadContext context, IRubyObject obj) {
+            return RubyBoolean.newBoolean(context.runtime, obj instanceof PersistentDeque && equiv(context, obj, true));
+        }
+
+        private boolean equiv(ThreadContext context, IRubyObject obj, boolean eql) {
+            if (obj == this) return true;
+            if (!(obj instanceof PersistentDeque))
+                return obj.respondsTo("to_ary") && equalInternal(context, to_a(context), obj);
+            PersistentDeque other = (PersistentDeque) obj;
+            int n = size();
+            if (n != other.size() || (eql && hash != 0 && other.hash != 0 && hash != other.hash))
+                return false;
+            for (int i = 0; i < n; i++) {
+                IRubyObject a = get(context, i), b = other.get(context, i);
+                if (a != b && !(eql ? eqlInternal(context, a, b) : equalInternal(context, a, b)))
+                    return false;
+            }
+            return true;
+        }
+
+        @JRubyMethod(name = "hash")
+        public RubyFixnum hash(ThreadContext context) {
+            int h = hash;
+            if (h == 0) {
+                h = 1;
+                for (int i = 0, n = size(); i < n; i++)
+                    h = 31 * h + get(context, i).hashCode();
+                hash = h;
+            }
+            return context.runtime.newFixnum(h);
+        }
+
+        @JRubyMethod(name = "transient")
+        public IRubyObject transient_(ThreadContext context) {
+            return new PersistentTransientDeque(context.runtime, TransientDeque).initialize(context, this);
+        }
+
+        @JRubyMethod(name = "with_mutations")
+        public IRubyObject withMutations(ThreadContext context, Block block) {
+            PersistentTransientDeque ret = (PersistentTransientDeque) transient_(context);
+            block.yield(context, ret);
+            return ret.persistent(context);
+        }
+    }
+
+    @JRubyClass(name="TransientDeque")
+    public static class PersistentTransientDeque extends RubyObject {
+        RubyClass dequeClass;
+        TransientVector front;
+        int frontStart;
+        TransientVector rear;
+        int rearStart;
+
+        public PersistentTransientDeque(Ruby runtime, RubyClass rubyClass) {
+            super(runtime, rubyClass);
+        }
+
+        public IRubyObject initialize(ThreadContext context, PersistentDeque d) {
+            this.dequeClass = d.getMetaClass();
+            this.front = d.front.asTransient(context);
+            this.frontStart = d.frontStart;
+            this.rear = d.rear.asTransient(context);
+            this.rearStart = d.rearStart;
+            return this;
+        }
+
+        int size() {
+            return front.cnt - frontStart + rear.cnt - rearStart;
+        }
+
+        IRubyObject get(int i) {
+            int inFront = front.cnt - frontStart;
+            return i < inFront ? front.get(front.cnt - 1 - i) : rear.get(rearStart + i - inFront);
+        }
+
+        @JRubyMethod(name = "size", alias = "length")
+        public IRubyObject count(ThreadContext context) {
+            return context.runtime.newFixnum(size());
+        }
+
+        @JRubyMethod(name = {"push!", "<<"}, required = 1)
+        public IRubyObject push(ThreadContext context, IRubyObject val) {
+            rear.conj(context, val);
+            return this;
+        }
+
+        @JRubyMethod(name = "unshift!", required = 1)
+        public IRubyObject unshift(ThreadContext context, IRubyObject val) {
+            front.conj(context, val);
+            return this;
+        }
+
+        @JRubyMethod(name = "pop!")
+        public IRubyObject pop(ThreadContext context) {
+            if (rear.cnt > rearStart)
+                rear.pop(context);
+            else if (front.cnt > frontStart)
+                frontStart++;
+            else
+                throw context.runtime.newIndexError("pop from empty deque");
+            return this;
+        }
+
+        @JRubyMethod(name = "shift!")
+        public IRubyObject shift(ThreadContext context) {
+            if (front.cnt > frontStart)
+                front.pop(context);
+            else if (rear.cnt > rearStart)
+                rearStart++;
+            else
+                throw context.runtime.newIndexError("shift from empty deque");
+            return this;
+        }
+
+        @JRubyMethod(name = "first")
+        public IRubyObject first(ThreadContext context) {
+            return size() == 0 ? context.nil : get(0);
+        }
+
+        @JRubyMethod(name = "last")
+        public IRubyObject last(ThreadContext context) {
+            int n = size();
+            return n == 0 ? context.nil : get(n - 1);
+        }
+
+        @JRubyMethod(name = "persistent!")
+        public IRubyObject persistent(ThreadContext context) {
+            PersistentVector f = front.persistent(context, PersistentVectorLibrary.PersistentVector);
+            PersistentVector r = rear.persistent(context, PersistentVectorLibrary.PersistentVector);
+            return new PersistentDeque(context.runtime, dequeClass).initialize(context, f, frontStart, r, rearStart);
+        }
+    }
+}
@@ -0,0 +1,971 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.jruby.ext.persistent;
+
+import java.lang.Override;
+import java.lang.Thread;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyHash;
+import org.jruby.RubyModule;
+import org.jruby.RubyObject;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.load.Library;
+
+import static org.jruby.RubyEnumerator.enumeratorize;
+
+/**
+ * Persistent::Hash, a hash array mapped trie in the style of Clojure's
+ * PersistentHashMap. Keys are hashed with Ruby's hash and compared with eql?,
+ * the same way JRuby's own Hash does it.
+ */
+public class PersistentHashLibrary implements Library {
+    static public RubyClass PersistentHash;
+    static public RubyClass TransientHash;
+
+    public void load(Ruby runtime, boolean wrap) {
+        RubyModule persistent = runtime.getOrCreateModule("Persistent");
+        RubyClass persistentHash = persistent.defineOrGetClassUnder("Hash", runtime.getObject());
+        persistentHash.setAllocator(new ObjectAllocator() {
+            @Override
+            public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
+                return new PersistentHash(ruby, rubyClass);
+            }
+        });
+        persistentHash.includeModule(runtime.getEnumerable());
+        persistentHash.defineAnnotatedMethods(PersistentHash.class);
+        PersistentHash = persistentHash;
+
+        RubyClass transientHash = persistent.defineOrGetClassUnder("TransientHash", runtime.getObject());
+        transientHash.setAllocator(ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        transientHash.defineAnnotatedMethods(TransientHash.class);
+        TransientHash = transientHash;
+    }
+
+    static int hashOf(IRubyObject key) {
+        return key.hashCode();
+    }
+
+    static boolean equiv(IRubyObject k1, Object k2) {
+        return k1 == k2 || (k2 != null && k1.eql((IRubyObject) k2));
+    }
+
+    static IRubyObject frozenKey(Ruby runtime, IRubyObject key) {
+        if (key instanceof RubyString && !key.isFrozen()) {
+            key = ((RubyString) key).strDup(runtime);
+            key.setFrozen(true);
+        }
+        return key;
+    }
+
+    static int mask(int hash, int shift) {
+        return (hash >>> shift) & 0x01f;
+    }
+
+    static int bitpos(int hash, int shift) {
+        return 1 << mask(hash, shift);
+    }
+
+    static Object[] cloneAndSet(Object[] array, int i, Object a) {
+        Object[] clone = array.clone();
+        clone[i] = a;
+        return clone;
+    }
+
+    static Object[] cloneAndSet(Object[] array, int i, Object a, int j, Object b) {
+        Object[] clone = array.clone();
+        clone[i] = a;
+        clone[j] = b;
+        return clone;
+    }
+
+    static Object[] removePair(Object[] array, int i) {
+        Object[] newArray = new Object[array.length - 2];
+        System.arraycopy(array, 0, newArray, 0, 2*i);
+        System.arraycopy(array, 2*(i+1), newArray, 2*i, newArray.length - 2*i);
+        return newArray;
+    }
+
+    /** Set by the node that actually adds or removes an entry. */
+    static final class Box {
+        Object val;
+    }
+
+    abstract static class Visitor {
+        abstract void visit(IRubyObject key, IRubyObject val);
+    }
+
+    interface INode {
+        INode assoc(int shift, int hash, IRubyObject key, IRubyObject val, Box addedLeaf);
+
+        INode without(int shift, int hash, IRubyObject key);
+
+        IRubyObject find(int shift, int hash, IRubyObject key, IRubyObject notFound);
+
+        INode assoc(AtomicReference<Thread> edit, int shift, int hash, IRubyObject key, IRubyObject val, Box addedLeaf);
+
+        INode without(AtomicReference<Thread> edit, int shift, int hash, IRubyObject key, Box removedLeaf);
+
+        void visitAll(Visitor visitor);
+    }
+
+    static INode createNode(int shift, IRubyObject key1, IRubyObject val1, int key2hash, IRubyObject key2, IRubyObject val2) {
+        int key1hash = hashOf(key1);
+        if (key1hash == key2hash)
+            return new HashCollisionNode(null, key1hash, 2, new Object[] {key1, val1, key2, val2});
+        Box addedLeaf = new Box();
+        AtomicReference<Thread> edit = new AtomicReference<Thread>();
+        return BitmapIndexedNode.EMPTY
+                .assoc(edit, shift, key1hash, key1, val1, addedLeaf)
+                .assoc(edit, shift, key2hash, key2, val2, addedLeaf);
+    }
+
+    static INode createNode(AtomicReference<Thread> edit, int shift, IRubyObject key1, IRubyObject val1, int key2hash, IRubyObject key2, IRubyObject val2) {
+        int key1hash = hashOf(key1);
+        if (key1hash == key2hash)
+            return new HashCollisionNode(null, key1hash, 2, new Object[] {key1, val1, key2, val2});
+        Box addedLeaf = new Box();
+        return BitmapIndexedNode.EMPTY
+                .assoc(edit, shift, key1hash, key1, val1, addedLeaf)
+                .assoc(edit, shift, key2hash, key2, val2, addedLeaf);
+    }
+
+    static final class ArrayNode implements INode {
+        int count;
+        final INode[] array;
+        final AtomicReference<Thread> edit;
+
+        ArrayNode(AtomicReference<Thread> edit, int count, INode[] array) {
+            this.array = array;
+            this.edit = edit;
+            this.count = count;
+        }
+
+        public INode assoc(int shift, int hash, IRubyObject key, IRubyObject val, Box addedLeaf) {
+            int idx = mask(hash, shift);
+            INode node = array[idx];
+            if (node == null)
+                return new ArrayNode(null, count + 1, cloneAndSet(array, idx, BitmapIndexedNode.EMPTY.assoc(shift + 5, hash, key, val, addedLeaf)));
+            INode n = node.assoc(shift + 5, hash, key, val, addedLeaf);
+            if (n == node)
+                return this;
+            return new ArrayNode(null, count, cloneAndSet(array, idx, n));
+        }
+
+        public INode without(int shift, int hash, IRubyObject key) {
+            int idx = mask(hash, shift);
+            INode node = array[idx];
+            if (node == null)
+                return this;
+            INode n = node.without(shift + 5, hash, key);
+            if (n == node)
+                return this;
+            if (n == null) {
+                if (count <= 8)
+                    return pack(null, idx);
+                return new ArrayNode(null, count - 1, cloneAndSet(array, idx, n));
+            }
+            return new ArrayNode(null, count, cloneAndSet(array, idx, n));
+        }
+
+        public IRubyObject find(int shift, int hash, IRubyObject key, IRubyObject notFound) {
+            INode node = array[mask(hash, shift)];
+            if (node == null)
+                return notFound;
+            return node.find(shift + 5, hash, key, notFound);
+        }
+
+        public void visitAll(Visitor visitor) {
+            for (INode node : array) {
+                if (node != null)
+                    node.visitAll(visitor);
+            }
+        }
+
+        private static INode[] cloneAndSet(INode[] array, int i, INode a) {
+            INode[] clone = array.clone();
+            clone[i] = a;
+            return clone;
+        }
+
+        private ArrayNode ensureEditable(AtomicReference<Thread> edit) {
+            if (this.edit == edit)
+                return this;
+            return new ArrayNode(edit, count, this.array.clone());
+        }
+
+        private ArrayNode editAndSet(AtomicReference<Thread> edit, int i, INode n) {
+            ArrayNode editable = ensureEditable(edit);
+            editable.array[i] = n;
+            return editable;
+        }
+
+        private INode pack(AtomicReference<Thread> edit, int idx) {
+            Object[] newArray = new Object[2*(count - 1)];
+            int j = 1;
+            int bitmap = 0;
+            for (int i = 0; i < array.length; i++) {
+                if (i != idx && array[i] != null) {
+                    newArray[j] = array[i];
+                    bitmap |= 1 << i;
+                    j += 2;
+                }
+            }
+            return new BitmapIndexedNode(edit, bitmap, newArray);
+        }
+
+        public INode assoc(AtomicReference<Thread> edit, int shift, int hash, IRubyObject key, IRubyObject val, Box addedLeaf) {
+            int idx = mask(hash, shift);
+            INode node = array[idx];
+            if (node == null) {
+                ArrayNode editable = editAndSet(edit, idx, BitmapIndexedNode.EMPTY.assoc(edit, shift + 5, hash, key, val, addedLeaf));
+                editable.count++;
+                return editable;
+            }
+            INode n = node.assoc(edit, shift + 5, hash, key, val, addedLeaf);
+            if (n == node)
+                return this;
+            return editAndSet(edit, idx, n);
+        }
+
+        public INode without(AtomicReference<Thread> edit, int shift, int hash, IRubyObject key, Box removedLeaf) {
+            int idx = mask(hash, shift);
+            INode node = array[idx];
+            if (node == null)
+                return this;
+            INode n = node.without(edit, shift + 5, hash, key, removedLeaf);
+            if (n == node)
+                return this;
+            if (n == null) {
+                if (count <= 8)
+                    return pack(edit, idx);
+                ArrayNode editable = editAndSet(edit, idx, n);
+                editable.count--;
+                return editable;
+            }
+            return editAndSet(edit, idx, n);
+        }
+    }
+
+    static final class BitmapIndexedNode implements INode {
+        static final BitmapIndexedNode EMPTY = new BitmapIndexedNode(null, 0, new Object[0]);
+
+        int bitmap;
+        Object[] array;
+        final AtomicReference<Thread> edit;
+
+        BitmapIndexedNode(AtomicReference<Thread> edit, int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+            this.edit = edit;
+        }
+
+        final int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        public INode assoc(int shift, int hash, IRubyObject key, IRubyObject val, Box addedLeaf) {
+            int bit = bitpos(hash, shift);
+            int idx = index(bit);
+            if ((bitmap & bit) != 0) {
+                Object keyOrNull = array[2*idx];
+                Object valOrNode = array[2*idx+1];
+                if (keyOrNull == null) {
+                    INode n = ((INode) valOrNode).assoc(shift + 5, hash, key, val, addedLeaf);
+                    if (n == valOrNode)
+                        return this;
+                    return new BitmapIndexedNode(null, bitmap, cloneAndSet(array, 2*idx+1, n));
+                }
+                if (equiv(key, keyOrNull)) {
+                    if (val == valOrNode)
+                        return this;
+                    return new BitmapIndexedNode(null, bitmap, cloneAndSet(array, 2*idx+1, val));
+                }
+                addedLeaf.val = addedLeaf;
+                return new BitmapIndexedNode(null, bitmap,
+                        cloneAndSet(array, 2*idx, null, 2*idx+1,
+                                createNode(shift + 5, (IRubyObject) keyOrNull, (IRubyObject) valOrNode, hash, key, val)));
+            }
+
+            int n = Integer.bitCount(bitmap);
+            if (n >= 16) {
+                INode[] nodes = new INode[32];
+                int jdx = mask(hash, shift);
+                nodes[jdx] = EMPTY.assoc(shift + 5, hash, key, val, addedLeaf);
+                int j = 0;
+                for (int i = 0; i < 32; i++) {
+                    if (((bitmap >>> i) & 1) != 0) {
+                        if (array[j] == null)
+                            nodes[i] = (INode) array[j+1];
+                        else
+                            nodes[i] = EMPTY.assoc(shift + 5, hashOf((IRubyObject) array[j]), (IRubyObject) array[j], (IRubyObject) array[j+1], addedLeaf);
+                        j += 2;
+                    }
+                }
+                return new ArrayNode(null, n + 1, nodes);
+            }
+
+            Object[] newArray = new Object[2*(n+1)];
+            System.arraycopy(array, 0, newArray, 0, 2*idx);
+            newArray[2*idx] = key;
+            addedLeaf.val = addedLeaf;
+            newArray[2*idx+1] = val;
+            System.arraycopy(array, 2*idx, newArray, 2*(idx+1), 2*(n-idx));
+            return new BitmapIndexedNode(null, bitmap | bit, newArray);
+        }
+
+        public INode without(int shift, int hash, IRubyObject key) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0)
+                return this;
+            int idx = index(bit);
+            Object keyOrNull = array[2*idx];
+            Object valOrNode = array[2*idx+1];
+            if (keyOrNull == null) {
+                INode n = ((INode) valOrNode).without(shift + 5, hash, key);
+                if (n == valOrNode)
+                    return this;
+                if (n != null)
+                    return new BitmapIndexedNode(null, bitmap, cloneAndSet(array, 2*idx+1, n));
+                if (bitmap == bit)
+                    return null;
+                return new BitmapIndexedNode(null, bitmap ^ bit, removePair(array, idx));
+            }
+            if (equiv(key, keyOrNull)) {
+                if (bitmap == bit)
+                    return null;
+                return new BitmapIndexedNode(null, bitmap ^ bit, removePair(array, idx));
+            }
+            return this;
+        }
+
+        public IRubyObject find(int shift, int hash, IRubyObject key, IRubyObject notFound) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0)
+                return notFound;
+            int idx = index(bit);
+            Object keyOrNull = array[2*idx];
+            Object valOrNode = array[2*idx+1];
+            if (keyOrNull == null)
+                return ((INode) valOrNode).find(shift + 5, hash, key, notFound);
+            if (equiv(key, keyOrNull))
+                return (IRubyObject) valOrNode;
+            return notFound;
+        }
+
+        public void visitAll(Visitor visitor) {
+            for (int i = 0; i < array.length; i += 2) {
+                Object keyOrNull = array[i];
+                Object valOrNode = array[i+1];
+                if (keyOrNull != null)
+                    visitor.visit((IRubyObject) keyOrNull, (IRubyObject) valOrNode);
+                else if (valOrNode != null)
+                    ((INode) valOrNode).visitAll(visitor);
+            }
+        }
+
+        private BitmapIndexedNode ensureEditable(AtomicReference<Thread> edit) {
+            if (this.edit == edit)
+                return this;
+            int n = Integer.bitCount(bitmap);
+            Object[] newArray = new Object[n >= 0 ? 2*(n+1) : 4];
+            System.arraycopy(array, 0, newArray, 0, 2*n);
+            return new BitmapIndexedNode(edit, bitmap, newArray);
+        }
+
+        private BitmapIndexedNode editAndSet(AtomicReference<Thread> edit, int i, Object a) {
+            BitmapIndexedNode editable = ensureEditable(edit);
+            editable.array[i] = a;
+            return editable;
+        }
+
+        private BitmapIndexedNode editAndSet(AtomicReference<Thread> edit, int i, Object a, int j, Object b) {
+            BitmapIndexedNode editable = ensureEditable(edit);
+            editable.array[i] = a;
+            editable.array[j] = b;
+            return editable;
+        }
+
+        private BitmapIndexedNode editAndRemovePair(AtomicReference<Thread> edit, int bit, int i) {
+            if (bitmap == bit)
+                return null;
+            BitmapIndexedNode editable = ensureEditable(edit);
+            editable.bitmap ^= bit;
+            System.arraycopy(editable.array, 2*(i+1), editable.array, 2*i, editable.array.length - 2*(i+1));
+            editable.array[editable.array.length - 2] = null;
+            editable.array[editable.array.length - 1] = null;
+            return editable;
+        }
+
+        public INode assoc(AtomicReference<Thread> edit, int shift, int hash, IRubyObject key, IRubyObject val, Box addedLeaf) {
+            int bit = bitpos(hash, shift);
+            int idx = index(bit);
+            if ((bitmap & bit) != 0) {
+                Object keyOrNull = array[2*idx];
+                Object valOrNode = array[2*idx+1];
+                if (keyOrNull == null) {
+                    INode n = ((INode) valOrNode).assoc(edit, shift + 5, hash, key, val, addedLeaf);
+                    if (n == valOrNode)
+                        return this;
+                    return editAndSet(edit, 2*idx+1, n);
+                }
+                if (equiv(key, keyOrNull)) {
+                    if (val == valOrNode)
+                        return this;
+                    return editAndSet(edit, 2*idx+1, val);
+                }
+                addedLeaf.val = addedLeaf;
+                return editAndSet(edit, 2*idx, null, 2*idx+1,
+                        createNode(edit, shift + 5, (IRubyObject) keyOrNull, (IRubyObject) valOrNode, hash, key, val));
+            }
+
+            int n = Integer.bitCount(bitmap);
+            if (n*2 < array.length) {
+                addedLeaf.val = addedLeaf;
+                BitmapIndexedNode editable = ensureEditable(edit);
+                System.arraycopy(editable.array, 2*idx, editable.array, 2*(idx+1), 2*(n-idx));
+                editable.array[2*idx] = key;
+                editable.array[2*idx+1] = val;
+                editable.bitmap |= bit;
+                return editable;
+            }
+            if (n >= 16) {
+                INode[] nodes = new INode[32];
+                int jdx = mask(hash, shift);
+                nodes[jdx] = EMPTY.assoc(edit, shift + 5, hash, key, val, addedLeaf);
+                int j = 0;
+                for (int i = 0; i < 32; i++) {
+                    if (((bitmap >>> i) & 1) != 0) {
+                        if (array[j] == null)
+                            nodes[i] = (INode) array[j+1];
+                        else
+                            nodes[i] = EMPTY.assoc(edit, shift + 5, hashOf((IRubyObject) array[j]), (IRubyObject) array[j], (IRubyObject) array[j+1], addedLeaf);
+                        j += 2;
+                    }
+                }
+                return new ArrayNode(edit, n + 1, nodes);
+            }
+
+            Object[] newArray = new Object[2*(n+4)];
+            System.arraycopy(array, 0, newArray, 0, 2*idx);
+            newArray[2*idx] = key;
+            addedLeaf.val = addedLeaf;
+            newArray[2*idx+1] = val;
+            System.arraycopy(array, 2*idx, newArray, 2*(idx+1), 2*(n-idx));
+            BitmapIndexedNode editable = ensureEditable(edit);
+            editable.array = newArray;
+            editable.bitmap |= bit;
+            return editable;
+        }
+
+        public INode without(AtomicReference<Thread> edit, int shift, int hash, IRubyObject key, Box removedLeaf) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0)
+                return this;
+            int idx = index(bit);
+            Object keyOrNull = array[2*idx];
+            Object valOrNode = array[2*idx+1];
+            if (keyOrNull == null) {
+                INode n = ((INode) valOrNode).without(edit, shift + 5, hash, key, removedLeaf);
+                if (n == valOrNode)
+                    return this;
+                if (n != null)
+                    return editAndSet(edit, 2*idx+1, n);
+                if (bitmap == bit)
+                    return null;
+                return editAndRemovePair(edit, bit, idx);
+            }
+            if (equiv(key, keyOrNull)) {
+                removedLeaf.val = removedLeaf;
+                return editAndRemovePair(edit, bit, idx);
+            }
+            return this;
+        }
+    }
+
+    static final class HashCollisionNode implements INode {
+        final int hash;
+        int count;
+        Object[] array;
+        final AtomicReference<Thread> edit;
+
+        HashCollisionNode(AtomicReference<Thread> edit, int hash, int count, Object[] array) {
+            this.edit = edit;
+            this.hash = hash;
+            this.count = count;
+            this.array = array;
+        }
+
+        public INode assoc(int shift, int hash, IRubyObject key, IRubyObject val, Box addedLeaf) {
+            if (hash == this.hash) {
+                int idx = findIndex(key);
+                if (idx != -1) {
+                    if (array[idx + 1] == val)
+                        return this;
+                    return new HashCollisionNode(null, hash, count, cloneAndSet(array, idx + 1, val));
+                }
+                Object[] newArray = new Object[2 * (count + 1)];
+                System.arraycopy(array, 0, newArray, 0, 2 * count);
+                newArray[2 * count] = key;
+                newArray[2 * count + 1] = val;
+                addedLeaf.val = addedLeaf;
+                return new HashCollisionNode(edit, hash, count + 1, newArray);
+            }
+            // nest it in a bitmap node
+            return new BitmapIndexedNode(null, bitpos(this.hash, shift), new Object[] {null, this})
+                    .assoc(shift, hash, key, val, addedLeaf);
+        }
+
+        public INode without(int shift, int hash, IRubyObject key) {
+            int idx = findIndex(key);
+            if (idx == -1)
+                return this;
+            if (count == 1)
+                return null;
+            return new HashCollisionNode(null, hash, count - 1, removePair(array, idx/2));
+        }
+
+        public IRubyObject find(int shift, int hash, IRubyObject key, IRubyObject notFound) {
+            int idx = findIndex(key);
+            if (idx < 0)
+                return notFound;
+            return (IRubyObject) array[idx + 1];
+        }
+
+        public void visitAll(Visitor visitor) {
+            for (int i = 0; i < 2 * count; i += 2) {
+                visitor.visit((IRubyObject) array[i], (IRubyObject) array[i+1]);
+            }
+        }
+
+        int findIndex(IRubyObject key) {
+            for (int i = 0; i < 2 * count; i += 2) {
+                if (equiv(key, array[i]))
+                    return i;
+            }
+            return -1;
+        }
+
+        private HashCollisionNode ensureEditable(AtomicReference<Thread> edit) {
+            if (this.edit == edit)
+                return this;
+            Object[] newArray = new Object[2 * (count + 1)];
+            System.arraycopy(array, 0, newArray, 0, 2 * count);
+            return new HashCollisionNode(edit, hash, count, newArray);
+        }
+
+        private HashCollisionNode ensureEditable(AtomicReference<Thread> edit, int count, Object[] array) {
+            if (this.edit == edit) {
+                this.array = array;
+                this.count = count;
+                return this;
+            }
+            return new HashCollisionNode(edit, hash, count, array);
+        }
+
+        private HashCollisionNode editAndSet(AtomicReference<Thread> edit, int i, Object a) {
+            HashCollisionNode editable = ensureEditable(edit);
+            editable.array[i] = a;
+            return editable;
+        }
+
+        private HashCollisionNode editAndSet(AtomicReference<Thread> edit, int i, Object a, int j, Object b) {
+            HashCollisionNode editable = ensureEditable(edit);
+            editable.array[i] = a;
+            editable.array[j] = b;
+            return editable;
+        }
+
+        public INode assoc(AtomicReference<Thread> edit, int shift, int hash, IRubyObject key, IRubyObject val, Box addedLeaf) {
+            if (hash == this.hash) {
+                int idx = findIndex(key);
+                if (idx != -1) {
+                    if (array[idx + 1] == val)
+                        return this;
+                    return editAndSet(edit, idx + 1, val);
+                }
+                if (array.length > 2 * count) {
+                    addedLeaf.val = addedLeaf;
+                    HashCollisionNode editable = editAndSet(edit, 2 * count, key, 2 * count + 1, val);
+                    editable.count++;
+                    return editable;
+                }
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, array.length);
+                newArray[array.length] = key;
+                newArray[array.length + 1] = val;
+                addedLeaf.val = addedLeaf;
+                return ensureEditable(edit, count + 1, newArray);
+            }
+            // nest it in a bitmap node
+            return new BitmapIndexedNode(edit, bitpos(this.hash, shift), new Object[] {null, this, null, null})
+                    .assoc(edit, shift, hash, key, val, addedLeaf);
+        }
+
+        public INode without(AtomicReference<Thread> edit, int shift, int hash, IRubyObject key, Box removedLeaf) {
+            int idx = findIndex(key);
+            if (idx == -1)
+                return this;
+            removedLeaf.val = removedLeaf;
+            if (count == 1)
+                return null;
+            HashCollisionNode editable = ensureEditable(edit);
+            editable.array[idx] = editable.array[2 * count - 2];
+            editable.array[idx + 1] = editable.array[2 * count - 1];
+            editable.array[2 * count - 2] = editable.array[2 * count - 1] = null;
+            editable.count--;
+            return editable;
+        }
+    }
+
+    @JRubyClass(name="Hash")
+    public static class PersistentHash extends RubyObject {
+        public int count;
+        public INode root;
+        private int hash;
+
+        public PersistentHash(Ruby runtime, RubyClass rubyClass) {
+            super(runtime, rubyClass);
+        }
+
+        public IRubyObject initialize(ThreadContext context, int count, INode root) {
+            this.count = count;
+            this.root = root;
+            return this;
+        }
+
+        static PersistentHash emptyHash(ThreadContext context, RubyClass rubyClass) {
+            return (PersistentHash) new PersistentHash(context.runtime, rubyClass).initialize(context, 0, null);
+        }
+
+        public TransientHash asTransient(ThreadContext context) {
+            return (TransientHash) new TransientHash(context.runtime, TransientHash).initialize(context, this);
+        }
+
+        @JRubyMethod(name = "[]", rest = true, meta = true)
+        public static IRubyObject create(ThreadContext context, IRubyObject cls, IRubyObject[] items) {
+            final TransientHash ret = emptyHash(context, (RubyClass) cls).asTransient(context);
+            if (items.length == 1 && items[0] instanceof RubyHash) {
+                final ThreadContext ctx = context;
+                ((RubyHash) items[0]).visitAll(new RubyHash.Visitor() {
+                    @Override
+                    public void visit(IRubyObject key, IRubyObject value) {
+                        ret.assoc(ctx, key, value);
+                    }
+                });
+            } else {
+                if (items.length % 2 != 0)
+                    throw context.runtime.newArgumentError("odd number of arguments for Hash");
+                for (int i = 0; i < items.length; i += 2) {
+                    ret.assoc(context, items[i], items[i + 1]);
+                }
+            }
+            return ret.persistent(context, (RubyClass) cls);
+        }
+
+        @JRubyMethod(name = "size", alias = "length")
+        public IRubyObject size(ThreadContext context) {
+            return JavaUtil.convertJavaToRuby(context.runtime, count);
+        }
+
+        @JRubyMethod(name = "empty?")
+        public IRubyObject isEmpty(ThreadContext context) {
+            return RubyBoolean.newBoolean(context.runtime, count == 0);
+        }
+
+        public IRubyObject valAt(IRubyObject key, IRubyObject notFound) {
+            return (root == null) ? notFound : root.find(0, hashOf(key), key, notFound);
+        }
+
+        @JRubyMethod(name = {"get", "[]"}, required = 1, optional = 1)
+        public IRubyObject get(ThreadContext context, IRubyObject[] args) {
+            return valAt(args[0], (args.length > 1) ? args[1] : context.runtime.getNil());
+        }
+
+        @JRubyMethod(name = {"key?", "has_key?", "include?", "member?"}, required = 1)
+        public IRubyObject has_key_p(ThreadContext context, IRubyObject key) {
+            return RubyBoolean.newBoolean(context.runtime, valAt(key, null) != null);
+        }
+
+        @JRubyMethod(name = "assoc", required = 2)
+        public IRubyObject assoc(ThreadContext context, IRubyObject key, IRubyObject val) {
+            key = frozenKey(context.runtime, key);
+            Box addedLeaf = new Box();
+            INode newroot = (root == null ? BitmapIndexedNode.EMPTY : root).assoc(0, hashOf(key), key, val, addedLeaf);
+            if (newroot == root)
+                return this;
+            return new PersistentHash(context.runtime, getMetaClass()).initialize(context, addedLeaf.val == null ? count : count + 1, newroot);
+        }
+
+        @JRubyMethod(name = "dissoc", required = 1)
+        public IRubyObject dissoc(ThreadContext context, IRubyObject key) {
+            if (root == null)
+                return this;
+            INode newroot = root.without(0, hashOf(key), key);
+            if (newroot == root)
+                return this;
+            return new PersistentHash(context.runtime, getMetaClass()).initialize(context, count - 1, newroot);
+        }
+
+        @JRubyMethod(name = "merge", required = 1)
+        public IRubyObject merge(ThreadContext context, IRubyObject other) {
+            final TransientHash ret = asTransient(context);
+            final ThreadContext ctx = context;
+            if (other instanceof PersistentHash) {
+                ((PersistentHash) other).visitAll(new Visitor() {
+                    void visit(IRubyObject key, IRubyObject val) {
+                        ret.assoc(ctx, key, val);
+                    }
+                });
+            } else {
+                other.convertToHash().visitAll(new RubyHash.Visitor() {
+                    @Override
+                    public void visit(IRubyObject key, IRubyObject value) {
+                        ret.assoc(ctx, key, value);
+                    }
+                });
+            }
+            return ret.persistent(context, getMetaClass());
+        }
+
+        void visitAll(Visitor visitor) {
+            if (root != null)
+                root.visitAll(visitor);
+        }
+
+        @JRubyMethod(name = {"each", "each_pair"})
+        public IRubyObject each(ThreadContext context, Block block) {
+            if (!block.isGiven()) return enumeratorize(context.runtime, this, "each");
+
+            final Ruby runtime = context.runtime;
+            final ThreadContext ctx = context;
+            final Block blk = block;
+            visitAll(new Visitor() {
+                void visit(IRubyObject key, IRubyObject val) {
+                    blk.yield(ctx, RubyArray.newArray(runtime, key, val));
+                }
+            });
+            return this;
+        }
+
+        @JRubyMethod(name = "keys")
+        public IRubyObject keys(ThreadContext context) {
+            final IRubyObject[] keys = new IRubyObject[count];
+            visitAll(new Visitor() {
+                int i = 0;
+                void visit(IRubyObject key, IRubyObject val) {
+                    keys[i++] = key;
+                }
+            });
+            return RubyArray.newArrayNoCopy(context.runtime, keys);
+        }
+
+        @JRubyMethod(name = "values")
+        public IRubyObject values(ThreadContext context) {
+            final IRubyObject[] values = new IRubyObject[count];
+            visitAll(new Visitor() {
+                int i = 0;
+                void visit(IRubyObject key, IRubyObject val) {
+                    values[i++] = val;
+                }
+            });
+            return RubyArray.newArrayNoCopy(context.runtime, values);
+        }
+
+        @JRubyMethod(name = {"to_h", "to_hash"})
+        public IRubyObject to_h(ThreadContext context) {
+            final RubyHash hash = RubyHash.newHash(context.runtime);
+            final ThreadContext ctx = context;
+            visitAll(new Visitor() {
+                void visit(IRubyObject key, IRubyObject val) {
+                    hash.op_aset(ctx, key, val);
+                }
+            });
+            return hash;
+        }
+
+        @JRubyMethod(name = "inspect")
+        public IRubyObject inspect(ThreadContext context) {
+            String className = getMetaClass().getRealClass().getName();
+            return context.runtime.newString(className + to_h(context).inspect());
+        }
+
+        @JRubyMethod(name = "==", required = 1)
+        public IRubyObject op_equal(ThreadContext context, IRubyObject obj) {
+            return equalCommon(context, obj, false);
+        }
+
+        @JRubyMethod(name = "eql?", required = 1)
+        public IRubyObject eql(ThreadContext context, IRubyObject obj) {
+            return equalCommon(context, obj, true);
+        }
+
+        /**
+         * The sum of key.hash ^ value.hash over the entries, so it does not
+         * depend on the order they are stored in. Cached like Vector#hash,
+         * with 0 meaning not computed yet.
+         */
+        @JRubyMethod(name = "hash")
+        public RubyFixnum hash(ThreadContext context) {
+            int h = hash;
+            if (h == 0) {
+                final int[] sum = {1};
+                visitAll(new Visitor() {
+                    void visit(IRubyObject key, IRubyObject val) {
+                        sum[0] += key.hashCode() ^ val.hashCode();
+                    }
+                });
+                h = sum[0];
+                hash = h;
+            }
+            return context.runtime.newFixnum(h);
+        }
+
+        private IRubyObject equalCommon(final ThreadContext context, IRubyObject obj, final boolean eql) {
+            Ruby runtime = context.runtime;
+            if (this == obj)
+                return runtime.getTrue();
+            if (!(obj instanceof PersistentHash))
+                return runtime.getFalse();
+
+            final PersistentHash other = (PersistentHash) obj;
+            if (count != other.count)
+                return runtime.getFalse();
+            if (root == other.root)
+                return runtime.getTrue();
+            if (eql && hash != 0 && other.hash != 0 && hash != other.hash)
+                return runtime.getFalse();
+
+            final boolean[] same = {true};
+            visitAll(new Visitor() {
+                void visit(IRubyObject key, IRubyObject val) {
+                    if (!same[0])
+                        return;
+                    IRubyObject otherVal = other.valAt(key, null);
+                    if (otherVal == null)
+                        same[0] = false;
+                    else if (eql)
+                        same[0] = val.eql(otherVal);
+                    else
+                        same[0] = equalInternal(context, val, otherVal);
+                }
+            });
+            return RubyBoolean.newBoolean(runtime, same[0]);
+        }
+
+        @JRubyMethod(name = "transient")
+        public IRubyObject transient_(ThreadContext context) {
+            return asTransient(context);
+        }
+
+        @JRubyMethod(name = "with_mutations")
+        public IRubyObject withMutations(ThreadContext context, Block block) {
+            TransientHash ret = asTransient(context);
+            block.yield(context, ret);
+            return ret.persistent(context, getMetaClass());
+        }
+    }
+
+    @JRubyClass(name="TransientHash")
+    public static class TransientHash extends RubyObject {
+        AtomicReference<Thread> edit;
+        INode root;
+        int count;
+        RubyClass hashClass;
+        final Box leafFlag = new Box();
+
+        public TransientHash(Ruby runtime, RubyClass rubyClass) {
+            super(runtime, rubyClass);
+        }
+
+        public IRubyObject initialize(ThreadContext context, PersistentHash h) {
+            this.edit = new AtomicReference<Thread>(Thread.currentThread());
+            this.root = h.root;
+            this.count = h.count;
+            this.hashClass = h.getMetaClass();
+            return this;
+        }
+
+        void ensureEditable() {
+            Thread owner = edit.get();
+            if (owner == Thread.currentThread())
+                return;
+            if (owner != null)
+                throw new IllegalAccessError("Transient used by non-owner thread");
+            throw new IllegalAccessError("Transient used after persistent! call");
+        }
+
+        @JRubyMethod(name = {"assoc!", "store", "[]="}, required = 2)
+        public IRubyObject assoc(ThreadContext context, IRubyObject key, IRubyObject val) {
+            ensureEditable();
+            key = frozenKey(context.runtime, key);
+            leafFlag.val = null;
+            INode n = (root == null ? BitmapIndexedNode.EMPTY : root).assoc(edit, 0, hashOf(key), key, val, leafFlag);
+            if (n != root)
+                root = n;
+            if (leafFlag.val != null)
+                count++;
+            return this;
+        }
+
+        @JRubyMethod(name = "dissoc!", required = 1)
+        public IRubyObject dissoc(ThreadContext context, IRubyObject key) {
+            ensureEditable();
+            if (root == null)
+                return this;
+            leafFlag.val = null;
+            INode n = root.without(edit, 0, hashOf(key), key, leafFlag);
+            if (n != root)
+                root = n;
+            if (leafFlag.val != null)
+                count--;
+            return this;
+        }
+
+        @JRubyMethod(name = {"get", "[]"}, required = 1, optional = 1)
+        public IRubyObject get(ThreadContext context, IRubyObject[] args) {
+            ensureEditable();
+            IRubyObject notFound = (args.length > 1) ? args[1] : context.runtime.getNil();
+            return (root == null) ? notFound : root.find(0, hashOf(args[0]), args[0], notFound);
+        }
+
+        @JRubyMethod(name = "size", alias = "length")
+        public IRubyObject size(ThreadContext context) {
+            ensureEditable();
+            return JavaUtil.convertJavaToRuby(context.runtime, count);
+        }
+
+        public PersistentHash persistent(ThreadContext context, RubyClass cls) {
+            ensureEditable();
+            edit.set(null);
+            return (PersistentHash) new PersistentHash(context.runtime, cls).initialize(context, count, root);
+        }
+
+        @JRubyMethod(name = "persistent!")
+        public IRubyObject persistent(ThreadContext context) {
+            return persistent(context, hashClass);
+        }
+    }
+}
@@ -0,0 +1,610 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.jruby.ext.persistent;
+
+import java.lang.Override;
+import java.lang.Thread;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyModule;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.BlockCallback;
+import org.jruby.runtime.CallBlock;
+import org.jruby.runtime.Arity;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.load.Library;
+
+import org.jruby.ext.persistent.PersistentHashLibrary.ArrayNode;
+import org.jruby.ext.persistent.PersistentHashLibrary.BitmapIndexedNode;
+import org.jruby.ext.persistent.PersistentHashLibrary.Box;
+import org.jruby.ext.persistent.PersistentHashLibrary.HashCollisionNode;
+import org.jruby.ext.persistent.PersistentHashLibrary.INode;
+import org.jruby.ext.persistent.PersistentHashLibrary.Visitor;
+
+import static org.jruby.RubyEnumerator.enumeratorize;
+import static org.jruby.ext.persistent.PersistentHashLibrary.frozenKey;
+import static org.jruby.ext.persistent.PersistentHashLibrary.hashOf;
+
+/**
+ * Persistent::Set, the hash trie of Persistent::Hash with every element mapped
+ * to itself. Union, intersection and difference walk both tries side by side
+ * and hand back untouched subtrees as they are, so combining two versions of
+ * the same set only pays for the parts that differ.
+ */
+public class PersistentSetLibrary implements Library {
+    static public RubyClass PersistentSet;
+    static public RubyClass TransientSet;
+
+    public void load(Ruby runtime, boolean wrap) {
+        RubyModule persistent = runtime.getOrCreateModule("Persistent");
+        RubyClass persistentSet = persistent.defineOrGetClassUnder("Set", runtime.getObject());
+        persistentSet.setAllocator(new ObjectAllocator() {
+            @Override
+            public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
+                return new PersistentSet(ruby, rubyClass);
+            }
+        });
+        persistentSet.includeModule(runtime.getEnumerable());
+        persistentSet.defineAnnotatedMethods(PersistentSet.class);
+        PersistentSet = persistentSet;
+
+        RubyClass transientSet = persistent.defineOrGetClassUnder("TransientSet", runtime.getObject());
+        transientSet.setAllocator(ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        transientSet.defineAnnotatedMethods(TransientSet.class);
+        TransientSet = transientSet;
+    }
+
+    // Structural set algebra. Each node is spread over its 32 slots, where a
+    // slot holds nothing, a single element or a child node, and the two sides
+    // are combined slot by slot. Identical children are never descended into.
+    // Collision nodes are rare enough that they are merged element by element.
+
+    private static void spread(INode node, IRubyObject[] keys, Object[] vals) {
+        if (node instanceof ArrayNode) {
+            INode[] array = ((ArrayNode) node).array;
+            for (int i = 0; i < 32; i++)
+                vals[i] = array[i];
+        } else {
+            BitmapIndexedNode bin = (BitmapIndexedNode) node;
+            int j = 0;
+            for (int i = 0; i < 32; i++) {
+                if (((bin.bitmap >>> i) & 1) != 0) {
+                    keys[i] = (IRubyObject) bin.array[j];
+                    vals[i] = bin.array[j+1];
+                    j += 2;
+                }
+            }
+        }
+    }
+
+    private static boolean contains(INode node, int shift, IRubyObject key) {
+        return node.find(shift, hashOf(key), key, null) != null;
+    }
+
+    private static boolean sameSlots(IRubyObject[] keys, Object[] vals, IRubyObject[] otherKeys, Object[] otherVals) {
+        for (int i = 0; i < 32; i++) {
+            if (keys[i] != otherKeys[i] || vals[i] != otherVals[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static INode build(int shift, IRubyObject[] keys, Object[] vals) {
+        int n = 0;
+        for (int i = 0; i < 32; i++) {
+            if (vals[i] != null)
+                n++;
+        }
+        if (n == 0)
+            return null;
+        if (n > 16) {
+            INode[] nodes = new INode[32];
+            Box addedLeaf = new Box();
+            for (int i = 0; i < 32; i++) {
+                if (keys[i] != null)
+                    nodes[i] = BitmapIndexedNode.EMPTY.assoc(shift + 5, hashOf(keys[i]), keys[i], (IRubyObject) vals[i], addedLeaf);
+                else
+                    nodes[i] = (INode) vals[i];
+            }
+            return new ArrayNode(null, n, nodes);
+        }
+        int bitmap = 0;
+        Object[] array = new Object[2*n];
+        int j = 0;
+        for (int i = 0; i < 32; i++) {
+            if (vals[i] != null) {
+                bitmap |= 1 << i;
+                array[j] = keys[i];
+                array[j+1] = vals[i];
+                j += 2;
+            }
+        }
+        return new BitmapIndexedNode(null, bitmap, array);
+    }
+
+    /** A child reduced to a single element is pulled up into its parent's slot. */
+    private static void putChild(IRubyObject[] keys, Object[] vals, int i, INode child) {
+        if (child instanceof BitmapIndexedNode) {
+            BitmapIndexedNode bin = (BitmapIndexedNode) child;
+            if (Integer.bitCount(bin.bitmap) == 1 && bin.array[0] != null) {
+                keys[i] = (IRubyObject) bin.array[0];
+                vals[i] = bin.array[1];
+                return;
+            }
+        }
+        keys[i] = null;
+        vals[i] = child;
+    }
+
+    static INode union(INode a, INode b, int shift) {
+        if (a == b || b == null)
+            return a;
+        if (a == null)
+            return b;
+        if (a instanceof HashCollisionNode)
+            return addAll(b, a, shift);
+        if (b instanceof HashCollisionNode)
+            return addAll(a, b, shift);
+
+        IRubyObject[] ak = new IRubyObject[32], bk = new IRubyObject[32], rk = new IRubyObject[32];
+        Object[] av = new Object[32], bv = new Object[32], rv = new Object[32];
+        spread(a, ak, av);
+        spread(b, bk, bv);
+        Box addedLeaf = new Box();
+        for (int i = 0; i < 32; i++) {
+            if (bv[i] == null) {
+                rk[i] = ak[i];
+                rv[i] = av[i];
+            } else if (av[i] == null) {
+                rk[i] = bk[i];
+                rv[i] = bv[i];
+            } else if (ak[i] != null && bk[i] != null) {
+                if (PersistentHashLibrary.equiv(ak[i], bk[i])) {
+                    rk[i] = ak[i];
+                    rv[i] = av[i];
+                } else {
+                    rv[i] = PersistentHashLibrary.createNode(shift + 5, ak[i], (IRubyObject) av[i], hashOf(bk[i]), bk[i], (IRubyObject) bv[i]);
+                }
+            } else if (ak[i] != null) {
+                INode node = (INode) bv[i];
+                rv[i] = contains(node, shift + 5, ak[i]) ? node : node.assoc(shift + 5, hashOf(ak[i]), ak[i], (IRubyObject) av[i], addedLeaf);
+            } else if (bk[i] != null) {
+                INode node = (INode) av[i];
+                rv[i] = contains(node, shift + 5, bk[i]) ? node : node.assoc(shift + 5, hashOf(bk[i]), bk[i], (IRubyObject) bv[i], addedLeaf);
+            } else {
+                rv[i] = union((INode) av[i], (INode) bv[i], shift + 5);
+            }
+        }
+        if (sameSlots(rk, rv, ak, av))
+            return a;
+        if (sameSlots(rk, rv, bk, bv))
+            return b;
+        return build(shift, rk, rv);
+    }
+
+    private static INode addAll(INode node, INode collisions, final int shift) {
+        final INode[] ret = {node};
+        final Box addedLeaf = new Box();
+        collisions.visitAll(new Visitor() {
+            void visit(IRubyObject key, IRubyObject val) {
+                if (!contains(ret[0], shift, key))
+                    ret[0] = ret[0].assoc(shift, hashOf(key), key, val, addedLeaf);
+            }
+        });
+        return ret[0];
+    }
+
+    static INode intersection(INode a, INode b, final int shift) {
+        if (a == b)
+            return a;
+        if (a == null || b == null)
+            return null;
+        if (a instanceof HashCollisionNode || b instanceof HashCollisionNode) {
+            final INode other = b;
+            final INode[] ret = {null};
+            final Box addedLeaf = new Box();
+            a.visitAll(new Visitor() {
+                void visit(IRubyObject key, IRubyObject val) {
+                    if (contains(other, shift, key))
+                        ret[0] = (ret[0] == null ? BitmapIndexedNode.EMPTY : ret[0]).assoc(shift, hashOf(key), key, val, addedLeaf);
+                }
+            });
+            return ret[0];
+        }
+
+        IRubyObject[] ak = new IRubyObject[32], bk = new IRubyObject[32], rk = new IRubyObject[32];
+        Object[] av = new Object[32], bv = new Object[32], rv = new Object[32];
+        spread(a, ak, av);
+        spread(b, bk, bv);
+        for (int i = 0; i < 32; i++) {
+            if (av[i] == null || bv[i] == null)
+                continue;
+            if (ak[i] != null) {
+                boolean found = bk[i] != null ? PersistentHashLibrary.equiv(ak[i], bk[i]) : contains((INode) bv[i], shift + 5, ak[i]);
+                if (found) {
+                    rk[i] = ak[i];
+                    rv[i] = av[i];
+                }
+            } else if (bk[i] != null) {
+                if (contains((INode) av[i], shift + 5, bk[i])) {
+                    rk[i] = bk[i];
+                    rv[i] = bv[i];
+                }
+            } else {
+                INode child = intersection((INode) av[i], (INode) bv[i], shift + 5);
+                if (child != null)
+                    putChild(rk, rv, i, child);
+            }
+        }
+        if (sameSlots(rk, rv, ak, av))
+            return a;
+        if (sameSlots(rk, rv, bk, bv))
+            return b;
+        return build(shift, rk, rv);
+    }
+
+    static INode difference(INode a, INode b, final int shift) {
+        if (a == b || a == null)
+            return null;
+        if (b == null)
+            return a;
+        if (a instanceof HashCollisionNode || b instanceof HashCollisionNode) {
+            final INode[] ret = {a};
+            b.visitAll(new Visitor() {
+                void visit(IRubyObject key, IRubyObject val) {
+                    if (ret[0] != null)
+                        ret[0] = ret[0].without(shift, hashOf(key), key);
+                }
+            });
+            return ret[0];
+        }
+
+        IRubyObject[] ak = new IRubyObject[32], bk = new IRubyObject[32], rk = new IRubyObject[32];
+        Object[] av = new Object[32], bv = new Object[32], rv = new Object[32];
+        spread(a, ak, av);
+        spread(b, bk, bv);
+        for (int i = 0; i < 32; i++) {
+            if (av[i] == null)
+                continue;
+            if (bv[i] == null) {
+                rk[i] = ak[i];
+                rv[i] = av[i];
+            } else if (ak[i] != null) {
+                boolean found = bk[i] != null ? PersistentHashLibrary.equiv(ak[i], bk[i]) : contains((INode) bv[i], shift + 5, ak[i]);
+                if (!found) {
+                    rk[i] = ak[i];
+                    rv[i] = av[i];
+                }
+            } else {
+                INode child = bk[i] != null
+                        ? ((INode) av[i]).without(shift + 5, hashOf(bk[i]), bk[i])
+                        : difference((INode) av[i], (INode) bv[i], shift + 5);
+                if (child != null)
+                    putChild(rk, rv, i, child);
+            }
+        }
+        if (sameSlots(rk, rv, ak, av))
+            return a;
+        return build(shift, rk, rv);
+    }
+
+    @JRubyClass(name="Set")
+    public static class PersistentSet extends RubyObject {
+        /** -1 until first asked for; the set operations do not track it. */
+        int count;
+        INode root;
+        private int hash;
+
+        public PersistentSet(Ruby runtime, RubyClass rubyClass) {
+            super(runtime, rubyClass);
+        }
+
+        public IRubyObject initialize(ThreadContext context, int count, INode root) {
+            this.count = root == null ? 0 : count;
+            this.root = root;
+            return this;
+        }
+
+        static PersistentSet emptySet(ThreadContext context, RubyClass rubyClass) {
+            return (PersistentSet) new PersistentSet(context.runtime, rubyClass).initialize(context, 0, null);
+        }
+
+        public TransientSet asTransient(ThreadContext context) {
+            return (TransientSet) new TransientSet(context.runtime, TransientSet).initialize(context, this);
+        }
+
+        int count() {
+            if (count < 0) {
+                final int[] n = {0};
+                root.visitAll(new Visitor() {
+                    void visit(IRubyObject key, IRubyObject val) {
+                        n[0]++;
+                    }
+                });
+                count = n[0];
+            }
+            return count;
+        }
+
+        @JRubyMethod(name = "[]", rest = true, meta = true)
+        public static IRubyObject create(ThreadContext context, IRubyObject cls, IRubyObject[] items) {
+            TransientSet ret = emptySet(context, (RubyClass) cls).asTransient(context);
+            for (IRubyObject item : items)
+                ret.conj(context, item);
+            return ret.persistent(context, (RubyClass) cls);
+        }
+
+        @JRubyMethod(name = "size", alias = "length")
+        public IRubyObject size(ThreadContext context) {
+            return JavaUtil.convertJavaToRuby(context.runtime, count());
+        }
+
+        @JRubyMethod(name = "empty?")
+        public IRubyObject isEmpty(ThreadContext context) {
+            return RubyBoolean.newBoolean(context.runtime, root == null);
+        }
+
+        boolean contains(IRubyObject key) {
+            return root != null && root.find(0, hashOf(key), key, null) != null;
+        }
+
+        @JRubyMethod(name = {"include?", "member?", "contains?"}, required = 1)
+        public IRubyObject include_p(ThreadContext context, IRubyObject key) {
+            return RubyBoolean.newBoolean(context.runtime, contains(key));
+        }
+
+        @JRubyMethod(name = {"add", "<<"}, required = 1)
+        public IRubyObject add(ThreadContext context, IRubyObject key) {
+            key = frozenKey(context.runtime, key);
+            Box addedLeaf = new Box();
+            INode newroot = (root == null ? BitmapIndexedNode.EMPTY : root).assoc(0, hashOf(key), key, key, addedLeaf);
+            if (addedLeaf.val == null)
+                return this;
+            return new PersistentSet(context.runtime, getMetaClass()).initialize(context, count < 0 ? -1 : count + 1, newroot);
+        }
+
+        @JRubyMethod(name = "delete", required = 1)
+        public IRubyObject delete(ThreadContext context, IRubyObject key) {
+            if (root == null)
+                return this;
+            INode newroot = root.without(0, hashOf(key), key);
+            if (newroot == root)
+                return this;
+            return new PersistentSet(context.runtime, getMetaClass()).initialize(context, count < 0 ? -1 : count - 1, newroot);
+        }
+
+        private PersistentSet toSet(ThreadContext context, IRubyObject other) {
+            if (other instanceof PersistentSet)
+                return (PersistentSet) other;
+            final TransientSet ret = emptySet(context, getMetaClass()).asTransient(context);
+            final ThreadContext ctx = context;
+            if (other instanceof RubyArray) {
+                RubyArray array = (RubyArray) other;
+                for (int i = 0, n = array.getLength(); i < n; i++)
+                    ret.conj(context, array.eltInternal(i));
+            } else {
+                other.callMethod(context, "each", IRubyObject.NULL_ARRAY,
+                        CallBlock.newCallClosure(this, getMetaClass(), Arity.ONE_ARGUMENT, new BlockCallback() {
+                            public IRubyObject call(ThreadContext context, IRubyObject[] args, Block block) {
+                                ret.conj(ctx, args[0]);
+                                return ctx.runtime.getNil();
+                            }
+                        }, context));
+            }
+            return ret.persistent(context, getMetaClass());
+        }
+
+        private IRubyObject withRoot(ThreadContext context, INode newroot, int newcount) {
+            if (newroot == root)
+                return this;
+            return new PersistentSet(context.runtime, getMetaClass()).initialize(context, newcount, newroot);
+        }
+
+        @JRubyMethod(name = {"union", "|", "+"}, required = 1)
+        public IRubyObject union(ThreadContext context, IRubyObject obj) {
+            PersistentSet other = toSet(context, obj);
+            INode newroot = PersistentSetLibrary.union(root, other.root, 0);
+            return withRoot(context, newroot, newroot == other.root ? other.count : -1);
+        }
+
+        @JRubyMethod(name = {"intersection", "&"}, required = 1)
+        public IRubyObject intersection(ThreadContext context, IRubyObject obj) {
+            PersistentSet other = toSet(context, obj);
+            INode newroot = PersistentSetLibrary.intersection(root, other.root, 0);
+            return withRoot(context, newroot, newroot == other.root ? other.count : -1);
+        }
+
+        @JRubyMethod(name = {"difference", "-"}, required = 1)
+        public IRubyObject difference(ThreadContext context, IRubyObject obj) {
+            INode newroot = PersistentSetLibrary.difference(root, toSet(context, obj).root, 0);
+            return withRoot(context, newroot, -1);
+        }
+
+        void visitAll(Visitor visitor) {
+            if (root != null)
+                root.visitAll(visitor);
+        }
+
+        @JRubyMethod(name = "each")
+        public IRubyObject each(ThreadContext context, Block block) {
+            if (!block.isGiven()) return enumeratorize(context.runtime, this, "each");
+
+            final ThreadContext ctx = context;
+            final Block blk = block;
+            visitAll(new Visitor() {
+                void visit(IRubyObject key, IRubyObject val) {
+                    blk.yield(ctx, key);
+                }
+            });
+            return this;
+        }
+
+        @JRubyMethod(name = "to_a")
+        public IRubyObject to_a(ThreadContext context) {
+            final IRubyObject[] keys = new IRubyObject[count()];
+            visitAll(new Visitor() {
+                int i = 0;
+                void visit(IRubyObject key, IRubyObject val) {
+                    keys[i++] = key;
+                }
+            });
+            return RubyArray.newArrayNoCopy(context.runtime, keys);
+        }
+
+        @JRubyMethod(name = "inspect")
+        public IRubyObject inspect(ThreadContext context) {
+            String className = getMetaClass().getRealClass().getName();
+            return context.runtime.newString(className + to_a(context).inspect());
+        }
+
+        @JRubyMethod(name = {"==", "eql?"}, required = 1)
+        public IRubyObject op_equal(ThreadContext context, IRubyObject obj) {
+            Ruby runtime = context.runtime;
+            if (this == obj)
+                return runtime.getTrue();
+            if (!(obj instanceof PersistentSet))
+                return runtime.getFalse();
+
+            final PersistentSet other = (PersistentSet) obj;
+            if (root == other.root)
+                return runtime.getTrue();
+            if (count() != other.count())
+                return runtime.getFalse();
+
+            final boolean[] same = {true};
+            visitAll(new Visitor() {
+                void visit(IRubyObject key, IRubyObject val) {
+                    if (same[0] && !other.contains(key))
+                        same[0] = false;
+                }
+            });
+            return RubyBoolean.newBoolean(runtime, same[0]);
+        }
+
+        /** The sum of the members' hashes, cached with 0 meaning not computed yet. */
+        @JRubyMethod(name = "hash")
+        public RubyFixnum hash(ThreadContext context) {
+            int h = hash;
+            if (h == 0) {
+                final int[] sum = {1};
+                visitAll(new Visitor() {
+                    void visit(IRubyObject key, IRubyObject val) {
+                        sum[0] += hashOf(key);
+                    }
+                });
+                h = sum[0];
+                hash = h;
+            }
+            return context.runtime.newFixnum(h);
+        }
+
+        @JRubyMethod(name = "transient")
+        public IRubyObject transient_(ThreadContext context) {
+            return asTransient(context);
+        }
+
+        @JRubyMethod(name = "with_mutations")
+        public IRubyObject withMutations(ThreadContext context, Block block) {
+            TransientSet ret = asTransient(context);
+            block.yield(context, ret);
+            return ret.persistent(context, getMetaClass());
+        }
+    }
+
+    @JRubyClass(name="TransientSet")
+    public static class TransientSet extends RubyObject {
+        AtomicReference<Thread> edit;
+        INode root;
+        int count;
+        RubyClass setClass;
+        final Box leafFlag = new Box();
+
+        public TransientSet(Ruby runtime, RubyClass rubyClass) {
+            super(runtime, rubyClass);
+        }
+
+        public IRubyObject initialize(ThreadContext context, PersistentSet s) {
+            this.edit = new AtomicReference<Thread>(Thread.currentThread());
+            this.root = s.root;
+            this.count = s.count();
+            this.setClass = s.getMetaClass();
+            return this;
+        }
+
+        void ensureEditable() {
+            Thread owner = edit.get();
+            if (owner == Thread.currentThread())
+                return;
+            if (owner != null)
+                throw new IllegalAccessError("Transient used by non-owner thread");
+            throw new IllegalAccessError("Transient used after persistent! call");
+        }
+
+        @JRubyMethod(name = {"conj!", "add!", "<<"}, required = 1)
+        public IRubyObject conj(ThreadContext context, IRubyObject key) {
+            ensureEditable();
+            key = frozenKey(context.runtime, key);
+            leafFlag.val = null;
+            root = (root == null ? BitmapIndexedNode.EMPTY : root).assoc(edit, 0, hashOf(key), key, key, leafFlag);
+            if (leafFlag.val != null)
+                count++;
+            return this;
+        }
+
+        @JRubyMethod(name = "delete!", required = 1)
+        public IRubyObject delete(ThreadContext context, IRubyObject key) {
+            ensureEditable();
+            if (root == null)
+                return this;
+            leafFlag.val = null;
+            root = root.without(edit, 0, hashOf(key), key, leafFlag);
+            if (leafFlag.val != null)
+                count--;
+            return this;
+        }
+
+        @JRubyMethod(name = {"include?", "member?"}, required = 1)
+        public IRubyObject include_p(ThreadContext context, IRubyObject key) {
+            ensureEditable();
+            return RubyBoolean.newBoolean(context.runtime, root != null && root.find(0, hashOf(key), key, null) != null);
+        }
+
+        @JRubyMethod(name = "size", alias = "length")
+        public IRubyObject size(ThreadContext context) {
+            ensureEditable();
+            return JavaUtil.convertJavaToRuby(context.runtime, count);
+        }
+
+        public PersistentSet persistent(ThreadContext context, RubyClass cls) {
+            ensureEditable();
+            edit.set(null);
+            return (PersistentSet) new PersistentSet(context.runtime, cls).initialize(context, count, root);
+        }
+
+        @JRubyMethod(name = "persistent!")
+        public IRubyObject persistent(ThreadContext context) {
+            return persistent(context, setClass);
+        }
+    }
+}
@@ -0,0 +1,877 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.jruby.ext.persistent;
+
+import java.lang.Override;
+import java.lang.Thread;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyClass;
+import org.jruby.RubyComparable;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyHash;
+import org.jruby.RubyModule;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.load.Library;
+
+import org.jruby.ext.persistent.PersistentHashLibrary.Box;
+import org.jruby.ext.persistent.PersistentHashLibrary.Visitor;
+
+import static org.jruby.RubyEnumerator.enumeratorize;
+import static org.jruby.ext.persistent.PersistentHashLibrary.frozenKey;
+
+/**
+ * Persistent::SortedMap and Persistent::SortedSet, kept in key order by <=>.
+ * Both sit on a persistent AVL tree whose nodes carry the same kind of edit
+ * token as the vector trie, so transients update nodes they own in place.
+ */
+public class PersistentSortedLibrary implements Library {
+    static public RubyClass PersistentSortedMap;
+    static public RubyClass TransientSortedMap;
+    static public RubyClass PersistentSortedSet;
+    static public RubyClass TransientSortedSet;
+
+    public void load(Ruby runtime, boolean wrap) {
+        RubyModule persistent = runtime.getOrCreateModule("Persistent");
+        RubyClass sortedMap = persistent.defineOrGetClassUnder("SortedMap", runtime.getObject());
+        sortedMap.setAllocator(new ObjectAllocator() {
+            @Override
+            public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
+                return new SortedMap(ruby, rubyClass);
+            }
+        });
+        sortedMap.includeModule(runtime.getEnumerable());
+        sortedMap.defineAnnotatedMethods(SortedMap.class);
+        PersistentSortedMap = sortedMap;
+
+        RubyClass transientMap = persistent.defineOrGetClassUnder("TransientSortedMap", runtime.getObject());
+        transientMap.setAllocator(ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        transientMap.defineAnnotatedMethods(TransientSortedMap.class);
+        TransientSortedMap = transientMap;
+
+        RubyClass sortedSet = persistent.defineOrGetClassUnder("SortedSet", runtime.getObject());
+        sortedSet.setAllocator(new ObjectAllocator() {
+            @Override
+            public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
+                return new SortedSet(ruby, rubyClass);
+            }
+        });
+        sortedSet.includeModule(runtime.getEnumerable());
+        sortedSet.defineAnnotatedMethods(SortedSet.class);
+        PersistentSortedSet = sortedSet;
+
+        RubyClass transientSet = persistent.defineOrGetClassUnder("TransientSortedSet", runtime.getObject());
+        transientSet.setAllocator(ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        transientSet.defineAnnotatedMethods(TransientSortedSet.class);
+        TransientSortedSet = transientSet;
+    }
+
+    static int compare(ThreadContext context, IRubyObject a, IRubyObject b) {
+        if (a instanceof RubyFixnum && b instanceof RubyFixnum) {
+            long x = ((RubyFixnum) a).getLongValue();
+            long y = ((RubyFixnum) b).getLongValue();
+            return x < y ? -1 : (x > y ? 1 : 0);
+        }
+        return RubyComparable.cmpint(context, a.callMethod(context, "<=>", b), a, b);
+    }
+
+    static final class TreeNode {
+        final AtomicReference<Thread> edit;
+        IRubyObject key;
+        IRubyObject val;
+        TreeNode left;
+        TreeNode right;
+        int height;
+
+        TreeNode(AtomicReference<Thread> edit, IRubyObject key, IRubyObject val, TreeNode left, TreeNode right) {
+            this.edit = edit;
+            this.key = key;
+            this.val = val;
+            this.left = left;
+            this.right = right;
+            this.height = 1 + Math.max(height(left), height(right));
+        }
+    }
+
+    static int height(TreeNode node) {
+        return node == null ? 0 : node.height;
+    }
+
+    static TreeNode editable(AtomicReference<Thread> edit, TreeNode node) {
+        if (node.edit == edit)
+            return node;
+        return new TreeNode(edit, node.key, node.val, node.left, node.right);
+    }
+
+    // Rotations and balance take a node already owned by edit.
+
+    private static TreeNode rotateRight(AtomicReference<Thread> edit, TreeNode node) {
+        TreeNode l = editable(edit, node.left);
+        node.left = l.right;
+        node.height = 1 + Math.max(height(node.left), height(node.right));
+        l.right = node;
+        l.height = 1 + Math.max(height(l.left), height(l.right));
+        return l;
+    }
+
+    private static TreeNode rotateLeft(AtomicReference<Thread> edit, TreeNode node) {
+        TreeNode r = editable(edit, node.right);
+        node.right = r.left;
+        node.height = 1 + Math.max(height(node.left), height(node.right));
+        r.left = node;
+        r.height = 1 + Math.max(height(r.left), height(r.right));
+        return r;
+    }
+
+    private static TreeNode balance(AtomicReference<Thread> edit, TreeNode node) {
+        int lh = height(node.left), rh = height(node.right);
+        if (lh > rh + 1) {
+            if (height(node.left.left) < height(node.left.right))
+                node.left = rotateLeft(edit, editable(edit, node.left));
+            return rotateRight(edit, node);
+        }
+        if (rh > lh + 1) {
+            if (height(node.right.right) < height(node.right.left))
+                node.right = rotateRight(edit, editable(edit, node.right));
+            return rotateLeft(edit, node);
+        }
+        node.height = 1 + Math.max(lh, rh);
+        return node;
+    }
+
+    static TreeNode find(ThreadContext context, TreeNode node, IRubyObject key) {
+        while (node != null) {
+            int c = compare(context, key, node.key);
+            if (c == 0)
+                return node;
+            node = c < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /** Returns node itself when key is already bound to val. */
+    static TreeNode assoc(ThreadContext context, AtomicReference<Thread> edit, TreeNode node, IRubyObject key, IRubyObject val, Box addedLeaf) {
+        if (node == null) {
+            addedLeaf.val = addedLeaf;
+            return new TreeNode(edit, key, val, null, null);
+        }
+        int c = compare(context, key, node.key);
+        if (c == 0) {
+            if (node.val == val)
+                return node;
+            TreeNode n = editable(edit, node);
+            n.val = val;
+            return n;
+        }
+        TreeNode child = c < 0 ? node.left : node.right;
+        TreeNode newChild = assoc(context, edit, child, key, val, addedLeaf);
+        if (newChild == child)
+            return node;
+        TreeNode n = editable(edit, node);
+        if (c < 0)
+            n.left = newChild;
+        else
+            n.right = newChild;
+        return balance(edit, n);
+    }
+
+    /** Returns node itself when key is absent. */
+    static TreeNode without(ThreadContext context, AtomicReference<Thread> edit, TreeNode node, IRubyObject key, Box removedLeaf) {
+        if (node == null)
+            return null;
+        int c = compare(context, key, node.key);
+        if (c == 0) {
+            removedLeaf.val = removedLeaf;
+            if (node.left == null)
+                return node.right;
+            if (node.right == null)
+                return node.left;
+            TreeNode min = node.right;
+            while (min.left != null)
+                min = min.left;
+            TreeNode n = editable(edit, node);
+            n.key = min.key;
+            n.val = min.val;
+            n.right = withoutMin(edit, node.right);
+            return balance(edit, n);
+        }
+        TreeNode child = c < 0 ? node.left : node.right;
+        TreeNode newChild = without(context, edit, child, key, removedLeaf);
+        if (newChild == child)
+            return node;
+        TreeNode n = editable(edit, node);
+        if (c < 0)
+            n.left = newChild;
+        else
+            n.right = newChild;
+        return balance(edit, n);
+    }
+
+    private static TreeNode withoutMin(AtomicReference<Thread> edit, TreeNode node) {
+        if (node.left == null)
+            return node.right;
+        TreeNode n = editable(edit, node);
+        n.left = withoutMin(edit, node.left);
+        return balance(edit, n);
+    }
+
+    /** Builds a balanced tree from keys already sorted and free of duplicates. */
+    static TreeNode build(AtomicReference<Thread> edit, IRubyObject[] keys, IRubyObject[] vals, int from, int to) {
+        if (from >= to)
+            return null;
+        int mid = (from + to) >>> 1;
+        return new TreeNode(edit, keys[mid], vals[mid],
+                build(edit, keys, vals, from, mid), build(edit, keys, vals, mid + 1, to));
+    }
+
+    static void visitAll(TreeNode node, Visitor visitor) {
+        while (node != null) {
+            visitAll(node.left, visitor);
+            visitor.visit(node.key, node.val);
+            node = node.right;
+        }
+    }
+
+    /** In-order visit of the keys between lo and hi inclusive; a null bound is open. */
+    static void visitRange(ThreadContext context, TreeNode node, IRubyObject lo, IRubyObject hi, Visitor visitor) {
+        while (node != null) {
+            boolean aboveLo = lo == null || compare(context, node.key, lo) >= 0;
+            boolean belowHi = hi == null || compare(context, node.key, hi) <= 0;
+            if (aboveLo && belowHi) {
+                visitRange(context, node.left, lo, null, visitor);
+                visitor.visit(node.key, node.val);
+                lo = null;
+                node = node.right;
+            } else if (aboveLo) {
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Sorts keys (and their vals) by <=> and drops all but the last binding of
+     * equal keys, leaving the result in the first n slots. Returns n.
+     */
+    static int sortUnique(final ThreadContext context, IRubyObject[] keys, IRubyObject[] vals) {
+        int len = keys.length;
+        Integer[] order = new Integer[len];
+        for (int i = 0; i < len; i++)
+            order[i] = i;
+        final IRubyObject[] k = keys.clone();
+        final IRubyObject[] v = vals.clone();
+        // Arrays.sort on objects is a stable merge sort, so later bindings stay last.
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return PersistentSortedLibrary.compare(context, k[a], k[b]);
+            }
+        });
+        int n = 0;
+        for (int i = 0; i < len; i++) {
+            int j = order[i];
+            if (n > 0 && compare(context, keys[n - 1], k[j]) == 0)
+                n--;
+            keys[n] = k[j];
+            vals[n] = v[j];
+            n++;
+        }
+        return n;
+    }
+
+    static IRubyObject[] entries(TreeNode root, int count, final boolean pairs, final Ruby runtime) {
+        final IRubyObject[] ret = new IRubyObject[count];
+        visitAll(root, new Visitor() {
+            int i = 0;
+            void visit(IRubyObject key, IRubyObject val) {
+                ret[i++] = pairs ? RubyArray.newArray(runtime, key, val) : key;
+            }
+        });
+        return ret;
+    }
+
+    static IRubyObject firstOrLast(ThreadContext context, TreeNode root, int count, IRubyObject[] args, boolean first, boolean pairs) {
+        Ruby runtime = context.runtime;
+        if (args.length == 0) {
+            if (root == null)
+                return runtime.getNil();
+            TreeNode node = root;
+            while ((first ? node.left : node.right) != null)
+                node = first ? node.left : node.right;
+            return pairs ? RubyArray.newArray(runtime, node.key, node.val) : node.key;
+        }
+        int n = RubyFixnum.num2int(args[0]);
+        if (n < 0)
+            throw runtime.newArgumentError("negative array size");
+        IRubyObject[] all = entries(root, count, pairs, runtime);
+        n = Math.min(n, count);
+        return RubyArray.newArrayNoCopy(runtime, all, first ? 0 : count - n, n);
+    }
+
+    static boolean sameEntries(ThreadContext context, TreeNode a, int aCount, TreeNode b, int bCount, boolean eql) {
+        if (a == b)
+            return true;
+        if (aCount != bCount)
+            return false;
+        Ruby runtime = context.runtime;
+        IRubyObject[] x = entries(a, aCount, true, runtime);
+        IRubyObject[] y = entries(b, bCount, true, runtime);
+        for (int i = 0; i < aCount; i++) {
+            if (eql ? !x[i].eql(y[i]) : !x[i].op_equal(context, y[i]).isTrue())
+                return false;
+        }
+        return true;
+    }
+
+    /** Hashes the keys, and the values too when pairs, in key order. */
+    static int hashEntries(TreeNode node, int h, boolean pairs) {
+        if (node == null)
+            return h;
+        h = hashEntries(node.left, h, pairs);
+        h = 31 * h + node.key.hashCode();
+        if (pairs)
+            h = 31 * h + node.val.hashCode();
+        return hashEntries(node.right, h, pairs);
+    }
+
+    @JRubyClass(name="SortedMap")
+    public static class SortedMap extends RubyObject {
+        int count;
+        TreeNode root;
+        private int hash;
+
+        public SortedMap(Ruby runtime, RubyClass rubyClass) {
+            super(runtime, rubyClass);
+        }
+
+        public IRubyObject initialize(ThreadContext context, int count, TreeNode root) {
+            this.count = count;
+            this.root = root;
+            return this;
+        }
+
+        public TransientSortedMap asTransient(ThreadContext context) {
+            return (TransientSortedMap) new TransientSortedMap(context.runtime, TransientSortedMap).initialize(context, this);
+        }
+
+        static SortedMap fromUnsorted(ThreadContext context, RubyClass cls, IRubyObject[] keys, IRubyObject[] vals) {
+            int n = sortUnique(context, keys, vals);
+            TreeNode root = build(new AtomicReference<Thread>(), keys, vals, 0, n);
+            return (SortedMap) new SortedMap(context.runtime, cls).initialize(context, n, root);
+        }
+
+        @JRubyMethod(name = "[]", rest = true, meta = true)
+        public static IRubyObject create(ThreadContext context, IRubyObject cls, IRubyObject[] items) {
+            final Ruby runtime = context.runtime;
+            final IRubyObject[] keys, vals;
+            if (items.length == 1 && items[0] instanceof RubyHash) {
+                RubyHash hash = (RubyHash) items[0];
+                keys = new IRubyObject[hash.size()];
+                vals = new IRubyObject[hash.size()];
+                hash.visitAll(new RubyHash.Visitor() {
+                    int i = 0;
+                    @Override
+                    public void visit(IRubyObject key, IRubyObject value) {
+                        keys[i] = frozenKey(runtime, key);
+                        vals[i++] = value;
+                    }
+                });
+            } else {
+                if (items.length % 2 != 0)
+                    throw runtime.newArgumentError("odd number of arguments for SortedMap");
+                keys = new IRubyObject[items.length / 2];
+                vals = new IRubyObject[items.length / 2];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = frozenKey(runtime, items[2*i]);
+                    vals[i] = items[2*i + 1];
+                }
+            }
+            return fromUnsorted(context, (RubyClass) cls, keys, vals);
+        }
+
+        @JRubyMethod(name = "size", alias = "length")
+        public IRubyObject size(ThreadContext context) {
+            return JavaUtil.convertJavaToRuby(context.runtime, count);
+        }
+
+        @JRubyMethod(name = "empty?")
+        public IRubyObject isEmpty(ThreadContext context) {
+            return RubyBoolean.newBoolean(context.runtime, count == 0);
+        }
+
+        @JRubyMethod(name = {"get", "[]"}, required = 1, optional = 1)
+        public IRubyObject get(ThreadContext context, IRubyObject[] args) {
+            TreeNode node = find(context, root, args[0]);
+            if (node != null)
+                return node.val;
+            return (args.length > 1) ? args[1] : context.runtime.getNil();
+        }
+
+        @JRubyMethod(name = {"key?", "has_key?", "include?", "member?"}, required = 1)
+        public IRubyObject has_key_p(ThreadContext context, IRubyObject key) {
+            return RubyBoolean.newBoolean(context.runtime, find(context, root, key) != null);
+        }
+
+        @JRubyMethod(name = "assoc", required = 2)
+        public IRubyObject assoc(ThreadContext context, IRubyObject key, IRubyObject val) {
+            key = frozenKey(context.runtime, key);
+            Box addedLeaf = new Box();
+            TreeNode newroot = PersistentSortedLibrary.assoc(context, new AtomicReference<Thread>(), root, key, val, addedLeaf);
+            if (newroot == root)
+                return this;
+            return new SortedMap(context.runtime, getMetaClass()).initialize(context, addedLeaf.val == null ? count : count + 1, newroot);
+        }
+
+        @JRubyMethod(name = "dissoc", required = 1)
+        public IRubyObject dissoc(ThreadContext context, IRubyObject key) {
+            Box removedLeaf = new Box();
+            TreeNode newroot = without(context, new AtomicReference<Thread>(), root, key, removedLeaf);
+            if (removedLeaf.val == null)
+                return this;
+            return new SortedMap(context.runtime, getMetaClass()).initialize(context, count - 1, newroot);
+        }
+
+        @JRubyMethod(name = "range", required = 2)
+        public IRubyObject range(ThreadContext context, IRubyObject lo, IRubyObject hi) {
+            final ArrayList<IRubyObject> keys = new ArrayList<IRubyObject>();
+            final ArrayList<IRubyObject> vals = new ArrayList<IRubyObject>();
+            visitRange(context, root, lo.isNil() ? null : lo, hi.isNil() ? null : hi, new Visitor() {
+                void visit(IRubyObject key, IRubyObject val) {
+                    keys.add(key);
+                    vals.add(val);
+                }
+            });
+            int n = keys.size();
+            if (n == count)
+                return this;
+            TreeNode newroot = build(new AtomicReference<Thread>(),
+                    keys.toArray(new IRubyObject[n]), vals.toArray(new IRubyObject[n]), 0, n);
+            return new SortedMap(context.runtime, getMetaClass()).initialize(context, n, newroot);
+        }
+
+        @JRubyMethod(name = "first", optional = 1)
+        public IRubyObject first(ThreadContext context, IRubyObject[] args) {
+            return firstOrLast(context, root, count, args, true, true);
+        }
+
+        @JRubyMethod(name = "last", optional = 1)
+        public IRubyObject last(ThreadContext context, IRubyObject[] args) {
+            return firstOrLast(context, root, count, args, false, true);
+        }
+
+        @JRubyMethod(name = {"each", "each_pair"})
+        public IRubyObject each(ThreadContext context, Block block) {
+            if (!block.isGiven()) return enumeratorize(context.runtime, this, "each");
+
+            final Ruby runtime = context.runtime;
+            final ThreadContext ctx = context;
+            final Block blk = block;
+            visitAll(root, new Visitor() {
+                void visit(IRubyObject key, IRubyObject val) {
+                    blk.yield(ctx, RubyArray.newArray(runtime, key, val));
+                }
+            });
+            return this;
+        }
+
+        @JRubyMethod(name = "keys")
+        public IRubyObject keys(ThreadContext context) {
+            return RubyArray.newArrayNoCopy(context.runtime, entries(root, count, false, context.runtime));
+        }
+
+        @JRubyMethod(name = "values")
+        public IRubyObject values(ThreadContext context) {
+            final IRubyObject[] values = new IRubyObject[count];
+            visitAll(root, new Visitor() {
+                int i = 0;
+                void visit(IRubyObject key, IRubyObject val) {
+                    values[i++] = val;
+                }
+            });
+            return RubyArray.newArrayNoCopy(context.runtime, values);
+        }
+
+        @JRubyMethod(name = "to_a")
+        public IRubyObject to_a(ThreadContext context) {
+            return RubyArray.newArrayNoCopy(context.runtime, entries(root, count, true, context.runtime));
+        }
+
+        @JRubyMethod(name = {"to_h", "to_hash"})
+        public IRubyObject to_h(ThreadContext context) {
+            final RubyHash hash = RubyHash.newHash(context.runtime);
+            final ThreadContext ctx = context;
+            visitAll(root, new Visitor() {
+                void visit(IRubyObject key, IRubyObject val) {
+                    hash.op_aset(ctx, key, val);
+                }
+            });
+            return hash;
+        }
+
+        @JRubyMethod(name = "inspect")
+        public IRubyObject inspect(ThreadContext context) {
+            String className = getMetaClass().getRealClass().getName();
+            return context.runtime.newString(className + to_h(context).inspect());
+        }
+
+        @JRubyMethod(name = "==", required = 1)
+        public IRubyObject op_equal(ThreadContext context, IRubyObject obj) {
+            return RubyBoolean.newBoolean(context.runtime, obj instanceof SortedMap &&
+                    sameEntries(context, root, count, ((SortedMap) obj).root, ((SortedMap) obj).count, false));
+        }
+
+        @JRubyMethod(name = "eql?", required = 1)
+        public IRubyObject eql(ThreadContext context, IRubyObject obj) {
+            return RubyBoolean.newBoolean(context.runtime, obj instanceof SortedMap &&
+                    sameEntries(context, root, count, ((SortedMap) obj).root, ((SortedMap) obj).count, true));
+        }
+
+        /** Cached, with 0 meaning not computed yet. */
+        @JRubyMethod(name = "hash")
+        public RubyFixnum hash(ThreadContext context) {
+            int h = hash;
+            if (h == 0) {
+                h = hashEntries(root, 1, true);
+                hash = h;
+            }
+            return context.runtime.newFixnum(h);
+        }
+
+        @JRubyMethod(name = "transient")
+        public IRubyObject transient_(ThreadContext context) {
+            return asTransient(context);
+        }
+
+        @JRubyMethod(name = "with_mutations")
+        public IRubyObject withMutations(ThreadContext context, Block block) {
+            TransientSortedMap ret = asTransient(context);
+            block.yield(context, ret);
+            return ret.persistent(context, getMetaClass());
+        }
+    }
+
+    @JRubyClass(name="TransientSortedMap")
+    public static class TransientSortedMap extends RubyObject {
+        AtomicReference<Thread> edit;
+        TreeNode root;
+        int count;
+        RubyClass mapClass;
+        final Box leafFlag = new Box();
+
+        public TransientSortedMap(Ruby runtime, RubyClass rubyClass) {
+            super(runtime, rubyClass);
+        }
+
+        public IRubyObject initialize(ThreadContext context, SortedMap m) {
+            this.edit = new AtomicReference<Thread>(Thread.currentThread());
+            this.root = m.root;
+            this.count = m.count;
+            this.mapClass = m.getMetaClass();
+            return this;
+        }
+
+        void ensureEditable() {
+            Thread owner = edit.get();
+            if (owner == Thread.currentThread())
+                return;
+            if (owner != null)
+                throw new IllegalAccessError("Transient used by non-owner thread");
+            throw new IllegalAccessError("Transient used after persistent! call");
+        }
+
+        @JRubyMethod(name = {"assoc!", "store", "[]="}, required = 2)
+        public IRubyObject assoc(ThreadContext context, IRubyObject key, IRubyObject val) {
+            ensureEditable();
+            leafFlag.val = null;
+            root = PersistentSortedLibrary.assoc(context, edit, root, frozenKey(context.runtime, key), val, leafFlag);
+            if (leafFlag.val != null)
+                count++;
+            return this;
+        }
+
+        @JRubyMethod(name = "dissoc!", required = 1)
+        public IRubyObject dissoc(ThreadContext context, IRubyObject key) {
+            ensureEditable();
+            leafFlag.val = null;
+            root = without(context, edit, root, key, leafFlag);
+            if (leafFlag.val != null)
+                count--;
+            return this;
+        }
+
+        @JRubyMethod(name = {"get", "[]"}, required = 1, optional = 1)
+        public IRubyObject get(ThreadContext context, IRubyObject[] args) {
+            ensureEditable();
+            TreeNode node = find(context, root, args[0]);
+            if (node != null)
+                return node.val;
+            return (args.length > 1) ? args[1] : context.runtime.getNil();
+        }
+
+        @JRubyMethod(name = "size", alias = "length")
+        public IRubyObject size(ThreadContext context) {
+            ensureEditable();
+            return JavaUtil.convertJavaToRuby(context.runtime, count);
+        }
+
+        public SortedMap persistent(ThreadContext context, RubyClass cls) {
+            ensureEditable();
+            edit.set(null);
+            return (SortedMap) new SortedMap(context.runtime, cls).initialize(context, count, root);
+        }
+
+        @JRubyMethod(name = "persistent!")
+        public IRubyObject persistent(ThreadContext context) {
+            return persistent(context, mapClass);
+        }
+    }
+
+    @JRubyClass(name="SortedSet")
+    public static class SortedSet extends RubyObject {
+        int count;
+        TreeNode root;
+        private int hash;
+
+        public SortedSet(Ruby runtime, RubyClass rubyClass) {
+            super(runtime, rubyClass);
+        }
+
+        public IRubyObject initialize(ThreadContext context, int count, TreeNode root) {
+            this.count = count;
+            this.root = root;
+            return this;
+        }
+
+        public TransientSortedSet asTransient(ThreadContext context) {
+            return (TransientSortedSet) new TransientSortedSet(context.runtime, TransientSortedSet).initialize(context, this);
+        }
+
+        @JRubyMethod(name = "[]", rest = true, meta = true)
+        public static IRubyObject create(ThreadContext context, IRubyObject cls, IRubyObject[] items) {
+            IRubyObject[] keys = new IRubyObject[items.length];
+            for (int i = 0; i < items.length; i++)
+                keys[i] = frozenKey(context.runtime, items[i]);
+            int n = sortUnique(context, keys, keys.clone());
+            TreeNode root = build(new AtomicReference<Thread>(), keys, keys, 0, n);
+            return new SortedSet(context.runtime, (RubyClass) cls).initialize(context, n, root);
+        }
+
+        @JRubyMethod(name = "size", alias = "length")
+        public IRubyObject size(ThreadContext context) {
+            return JavaUtil.convertJavaToRuby(context.runtime, count);
+        }
+
+        @JRubyMethod(name = "empty?")
+        public IRubyObject isEmpty(ThreadContext context) {
+            return RubyBoolean.newBoolean(context.runtime, count == 0);
+        }
+
+        @JRubyMethod(name = {"include?", "member?"}, required = 1)
+        public IRubyObject include_p(ThreadContext context, IRubyObject key) {
+            return RubyBoolean.newBoolean(context.runtime, find(context, root, key) != null);
+        }
+
+        @JRubyMethod(name = {"add", "<<"}, required = 1)
+        public IRubyObject add(ThreadContext context, IRubyObject key) {
+            if (find(context, root, key) != null)
+                return this;
+            key = frozenKey(context.runtime, key);
+            Box addedLeaf = new Box();
+            TreeNode newroot = PersistentSortedLibrary.assoc(context, new AtomicReference<Thread>(), root, key, key, addedLeaf);
+            return new SortedSet(context.runtime, getMetaClass()).initialize(context, count + 1, newroot);
+        }
+
+        @JRubyMethod(name = "delete", required = 1)
+        public IRubyObject delete(ThreadContext context, IRubyObject key) {
+            Box removedLeaf = new Box();
+            TreeNode newroot = without(context, new AtomicReference<Thread>(), root, key, removedLeaf);
+            if (removedLeaf.val == null)
+                return this;
+            return new SortedSet(context.runtime, getMetaClass()).initialize(context, count - 1, newroot);
+        }
+
+        @JRubyMethod(name = "range", required = 2)
+        public IRubyObject range(ThreadContext context, IRubyObject lo, IRubyObject hi) {
+            final ArrayList<IRubyObject> keys = new ArrayList<IRubyObject>();
+            visitRange(context, root, lo.isNil() ? null : lo, hi.isNil() ? null : hi, new Visitor() {
+                void visit(IRubyObject key, IRubyObject val) {
+                    keys.add(key);
+                }
+            });
+            int n = keys.size();
+            if (n == count)
+                return this;
+            IRubyObject[] array = keys.toArray(new IRubyObject[n]);
+            TreeNode newroot = build(new AtomicReference<Thread>(), array, array, 0, n);
+            return new SortedSet(context.runtime, getMetaClass()).initialize(context, n, newroot);
+        }
+
+        @JRubyMethod(name = "first", optional = 1)
+        public IRubyObject first(ThreadContext context, IRubyObject[] args) {
+            return firstOrLast(context, root, count, args, true, false);
+        }
+
+        @JRubyMethod(name = "last", optional = 1)
+        public IRubyObject last(ThreadContext context, IRubyObject[] args) {
+            return firstOrLast(context, root, count, args, false, false);
+        }
+
+        @JRubyMethod(name = "each")
+        public IRubyObject each(ThreadContext context, Block block) {
+            if (!block.isGiven()) return enumeratorize(context.runtime, this, "each");
+
+            final ThreadContext ctx = context;
+            final Block blk = block;
+            visitAll(root, new Visitor() {
+                void visit(IRubyObject key, IRubyObject val) {
+                    blk.yield(ctx, key);
+                }
+            });
+            return this;
+        }
+
+        @JRubyMethod(name = "to_a")
+        public IRubyObject to_a(ThreadContext context) {
+            return RubyArray.newArrayNoCopy(context.runtime, entries(root, count, false, context.runtime));
+        }
+
+        @JRubyMethod(name = "inspect")
+        public IRubyObject inspect(ThreadContext context) {
+            String className = getMetaClass().getRealClass().getName();
+            return context.runtime.newString(className + to_a(context).inspect());
+        }
+
+        @JRubyMethod(name = "==", required = 1)
+        public IRubyObject op_equal(ThreadContext context, IRubyObject obj) {
+            return RubyBoolean.newBoolean(context.runtime, obj instanceof SortedSet &&
+                    sameEntries(context, root, count, ((SortedSet) obj).root, ((SortedSet) obj).count, false));
+        }
+
+        @JRubyMethod(name = "eql?", required = 1)
+        public IRubyObject eql(ThreadContext context, IRubyObject obj) {
+            return RubyBoolean.newBoolean(context.runtime, obj instanceof SortedSet &&
+                    sameEntries(context, root, count, ((SortedSet) obj).root, ((SortedSet) obj).count, true));
+        }
+
+        /** Cached, with 0 meaning not computed yet. */
+        @JRubyMethod(name = "hash")
+        public RubyFixnum hash(ThreadContext context) {
+            int h = hash;
+            if (h == 0) {
+                h = hashEntries(root, 1, false);
+                hash = h;
+            }
+            return context.runtime.newFixnum(h);
+        }
+
+        @JRubyMethod(name = "transient")
+        public IRubyObject transient_(ThreadContext context) {
+            return asTransient(context);
+        }
+
+        @JRubyMethod(name = "with_mutations")
+        public IRubyObject withMutations(ThreadContext context, Block block) {
+            TransientSortedSet ret = asTransient(context);
+            block.yield(context, ret);
+            return ret.persistent(context, getMetaClass());
+        }
+    }
+
+    @JRubyClass(name="TransientSortedSet")
+    public static class TransientSortedSet extends RubyObject {
+        AtomicReference<Thread> edit;
+        TreeNode root;
+        int count;
+        RubyClass setClass;
+        final Box leafFlag = new Box();
+
+        public TransientSortedSet(Ruby runtime, RubyClass rubyClass) {
+            super(runtime, rubyClass);
+        }
+
+        public IRubyObject initialize(ThreadContext context, SortedSet s) {
+            this.edit = new AtomicReference<Thread>(Thread.currentThread());
+            this.root = s.root;
+            this.count = s.count;
+            this.setClass = s.getMetaClass();
+            return this;
+        }
+
+        void ensureEditable() {
+            Thread owner = edit.get();
+            if (owner == Thread.currentThread())
+                return;
+            if (owner != null)
+                throw new IllegalAccessError("Transient used by non-owner thread");
+            throw new IllegalAccessError("Transient used after persistent! call");
+        }
+
+        @JRubyMethod(name = {"conj!", "add!", "<<"}, required = 1)
+        public IRubyObject conj(ThreadContext context, IRubyObject key) {
+            ensureEditable();
+            if (find(context, root, key) != null)
+                return this;
+            key = frozenKey(context.runtime, key);
+            leafFlag.val = null;
+            root = PersistentSortedLibrary.assoc(context, edit, root, key, key, leafFlag);
+            count++;
+            return this;
+        }
+
+        @JRubyMethod(name = "delete!", required = 1)
+        public IRubyObject delete(ThreadContext context, IRubyObject key) {
+            ensureEditable();
+            leafFlag.val = null;
+            root = without(context, edit, root, key, leafFlag);
+            if (leafFlag.val != null)
+                count--;
+            return this;
+        }
+
+        @JRubyMethod(name = {"include?", "member?"}, required = 1)
+        public IRubyObject include_p(ThreadContext context, IRubyObject key) {
+            ensureEditable();
+            return RubyBoolean.newBoolean(context.runtime, find(context, root, key) != null);
+        }
+
+        @JRubyMethod(name = "size", alias = "length")
+        public IRubyObject size(ThreadContext context) {
+            ensureEditable();
+            return JavaUtil.convertJavaToRuby(context.runtime, count);
+        }
+
+        public SortedSet persistent(ThreadContext context, RubyClass cls) {
+            ensureEditable();
+            edit.set(null);
+            return (SortedSet) new SortedSet(context.runtime, cls).initialize(context, count, root);
+        }
+
+        @JRubyMethod(name = "persistent!")
+        public IRubyObject persistent(ThreadContext context) {
+            return persistent(context, setClass);
+        }
+    }
+}
@@ -16,6 +16,7 @@ import java.lang.Override;
 import java.lang.Thread;
 import java.lang.reflect.Field;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.jruby.*;
@@ -24,8 +25,11 @@ import org.jruby.RubyArgsFile;
 import org.jruby.javasupport.JavaUtil;
 import org.jruby.RubyArray;
 import org.jruby.RubyClass;
+import org.jruby.runtime.Arity;
 import org.jruby.runtime.Block;
 import org.jruby.runtime.BlockBody;
+import org.jruby.runtime.BlockCallback;
+import org.jruby.runtime.CallBlock;
 import org.jruby.RubyFixnum;
 import org.jruby.RubyModule;
 import org.jruby.RubyNumeric;
@@ -36,14 +40,15 @@ import org.jruby.runtime.ObjectAllocator;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.runtime.load.Library;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.jruby.RubyEnumerator.enumeratorize;
 
 public class PersistentVectorLibrary implements Library {
-    static private RubyClass Node;
     static public RubyClass PersistentVector;
-    static private RubyClass TransientVector;
+    static public RubyClass TransientVector;
 
     public void load(Ruby runtime, boolean wrap) {
         RubyModule persistent = runtime.getOrCreateModule("Persistent");
@@ -56,48 +61,603 @@ public class PersistentVectorLibrary implements Library {
         });
         persistentVector.includeModule(runtime.getEnumerable());
         persistentVector.defineAnnotatedMethods(PersistentVector.class);
+        PersistentVector = persistentVector;
+
+        RubyClass transientVector = persistent.defineOrGetClassUnder("TransientVector", runtime.getObject());
+        transientVector.setAllocator(ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        transientVector.defineAnnotatedMethods(TransientVector.class);
+        TransientVector = transientVector;
+        persistentVector.defineAnnotatedMethods(VectorDump.class);
+        persistentVector.defineAnnotatedMethods(VectorSort.class);
+        persistentVector.defineAnnotatedMethods(VectorMemory.class);
+        persistentVector.defineAnnotatedMethods(VectorBatch.class);
+        persistent.defineAnnotatedMethods(VectorStats.class);
+        if (VectorStats.ENABLED)
+            VectorStats.register();
+
+        new PersistentHashLibrary().load(runtime, wrap);
+        new PersistentSetLibrary().load(runtime, wrap);
+        new PersistentSortedLibrary().load(runtime, wrap);
+        new PrimitiveVectorLibrary().load(runtime, wrap);
+        new PersistentAtomLibrary().load(runtime, wrap);
+        new LazyVectorLibrary().load(runtime, wrap);
+        new PersistentDequeLibrary().load(runtime, wrap);
     }
 
-    private static class Node extends RubyObject {
-        transient public AtomicReference<Thread> edit;
-        public RubyArray array;
+    static Object[] leafFor(Node node, int shift, int i){
+        for(int level = shift; level > 0; level -= 5)
+            node = (Node) node.array[(i >>> level) & 0x01f];
+        return node.array;
+    }
 
-        public Node(Ruby runtime, RubyClass rubyClass) {
-            super(runtime, rubyClass);
+    // Relaxed radix balanced (RRB) support. A node with a size table is
+    // "relaxed": its children may hold fewer than 32^level elements and are
+    // located through the cumulative sizes instead of by radix alone. Nodes
+    // without a size table are always laid out exactly as the plain radix trie
+    // expects, and any relaxed node has only relaxed ancestors, so a vector
+    // whose root has no size table can keep using the arrayFor/shift fast path.
+
+    static final int RRB_EXTRAS = 2;
+
+    static Object[] relaxedLeafFor(Node node, int shift, int i){
+        for(int level = shift; level > 0; level -= 5)
+        {
+            int subidx = (i >>> level) & 0x01f;
+            if(node.sizes != null)
+            {
+                while(node.sizes[subidx] <= i)
+                    subidx++;
+                if(subidx > 0)
+                    i -= node.sizes[subidx - 1];
+            }
+            node = (Node) node.array[subidx];
+        }
+        return node.array;
+    }
+
+    static Object relaxedGet(Node node, int shift, int i){
+        for(int level = shift; level > 0; level -= 5)
+        {
+            int subidx = (i >>> level) & 0x01f;
+            if(node.sizes != null)
+            {
+                while(node.sizes[subidx] <= i)
+                    subidx++;
+                if(subidx > 0)
+                    i -= node.sizes[subidx - 1];
+            }
+            node = (Node) node.array[subidx];
         }
+        return node.array[i & 0x01f];
+    }
 
-        public Node initialize_params(ThreadContext context, AtomicReference<Thread> edit) {
-            this.edit = edit;
-            this.array = RubyArray.newArray(context.runtime, 32);
-            return this;
+    static int childCount(Node node){
+        if(node.sizes != null)
+            return node.sizes.length;
+        int n = 0;
+        while(n < 32 && node.array[n] != null)
+            n++;
+        return n;
+    }
+
+    static int slotCount(Node node, int level){
+        return level == 0 ? node.array.length : childCount(node);
+    }
+
+    static int sizeOf(Node node, int level){
+        if(level == 0)
+            return node.array.length;
+        if(node.sizes != null)
+            return node.sizes[node.sizes.length - 1];
+        int n = childCount(node);
+        if(n == 0)
+            return 0;
+        return ((n - 1) << level) + sizeOf((Node) node.array[n - 1], level - 5);
+    }
+
+    static int[] sizeTable(Node node, int level){
+        if(node.sizes != null)
+            return node.sizes;
+        int n = childCount(node);
+        int[] sizes = new int[n];
+        for(int k = 0; k < n - 1; k++)
+            sizes[k] = (k + 1) << level;
+        if(n > 0)
+            sizes[n - 1] = ((n - 1) << level) + sizeOf((Node) node.array[n - 1], level - 5);
+        return sizes;
+    }
+
+    static Node relaxedNode(AtomicReference<Thread> edit, Object[] children, int level){
+        int[] sizes = new int[children.length];
+        int total = 0;
+        for(int k = 0; k < children.length; k++)
+        {
+            total += sizeOf((Node) children[k], level - 5);
+            sizes[k] = total;
+        }
+        return new Node(edit, children, sizes);
+    }
+
+    static Node lastLeaf(Node node, int level){
+        for(; level > 0; level -= 5)
+            node = (Node) node.array[childCount(node) - 1];
+        return node;
+    }
+
+    static Node newPath(AtomicReference<Thread> edit, int level, Node node) {
+        if (level == 0)
+            return node;
+        Node ret = new Node(edit);
+        ret.array[0] = newPath(edit, level - 5, node);
+        return  ret;
+    }
+
+    // Bulk construction. Full leaves are gathered into parents 32 at a time,
+    // one level after another, which gives the same balanced trie conj would
+    // have built without any of the intermediate path copies.
+
+    static int shiftFor(int leafCount) {
+        int shift = 5;
+        while (leafCount > (1 << shift))
+            shift += 5;
+        return shift;
+    }
+
+    /** Assembles count leaf nodes into a root at shift, reusing nodes as scratch space. */
+    static Node assemble(AtomicReference<Thread> edit, Node[] nodes, int count, int shift) {
+        for (int level = 5; level <= shift; level += 5) {
+            int parents = (count + 31) >>> 5;
+            for (int p = 0; p < parents; p++) {
+                Node parent = new Node(edit);
+                System.arraycopy(nodes, p << 5, parent.array, 0, Math.min(32, count - (p << 5)));
+                nodes[p] = parent;
+            }
+            count = parents;
+        }
+        return nodes[0];
+    }
+
+    static Node pushTail(AtomicReference<Thread> edit, int level, Node parent, int index, Node tailnode){
+        if (VectorStats.ENABLED) VectorStats.PUSH_TAIL_COPIES.increment();
+        int subidx = (index >>> level) & 0x01f;
+        Node ret = new Node(parent.edit, parent.array.clone());
+        Node nodeToInsert;
+        if(level == 5)
+        {
+            nodeToInsert = tailnode;
+        }
+        else
+        {
+            Node child = (Node) parent.array[subidx];
+            nodeToInsert = (child != null)?
+                    pushTail(edit, level-5, child, index, tailnode)
+                    :newPath(edit,level-5, tailnode);
+        }
+        ret.array[subidx] = nodeToInsert;
+        return ret;
+    }
+
+    /**
+     * Appends a full 32-element leaf to the right edge of a tree whose root is
+     * relaxed. Returns null when the subtree has no room left at this level.
+     */
+    static Node appendLeaf(AtomicReference<Thread> edit, int level, Node node, Node leaf){
+        if(node.sizes == null)
+        {
+            int size = sizeOf(node, level);
+            if(size == 1 << (level + 5))
+                return null;
+            return pushTail(edit, level, node, size, leaf);
+        }
+        int n = node.sizes.length;
+        if(level > 5)
+        {
+            Node child = appendLeaf(edit, level - 5, (Node) node.array[n - 1], leaf);
+            if(child != null)
+            {
+                Node ret = new Node(edit, node.array.clone(), node.sizes.clone());
+                ret.array[n - 1] = child;
+                ret.sizes[n - 1] += leaf.array.length;
+                return ret;
+            }
+        }
+        if(n == 32)
+            return null;
+        Object[] array = Arrays.copyOf(node.array, n + 1);
+        int[] sizes = Arrays.copyOf(node.sizes, n + 1);
+        array[n] = newPath(edit, level - 5, leaf);
+        sizes[n] = sizes[n - 1] + leaf.array.length;
+        return new Node(edit, array, sizes);
+    }
+
+    /**
+     * Removes the rightmost leaf of a subtree, returning null when nothing is
+     * left of it.
+     */
+    static Node popLeaf(AtomicReference<Thread> edit, int level, Node node, int leafLength){
+        int n = childCount(node);
+        Node child = (level > 5) ? popLeaf(edit, level - 5, (Node) node.array[n - 1], leafLength) : null;
+        if(child == null && n == 1)
+            return null;
+        if(node.sizes == null)
+        {
+            Node ret = new Node(edit, node.array.clone());
+            ret.array[n - 1] = child;
+            return ret;
+        }
+        int keep = (child == null) ? n - 1 : n;
+        Node ret = new Node(edit, Arrays.copyOf(node.array, keep), Arrays.copyOf(node.sizes, keep));
+        if(child != null)
+        {
+            ret.array[n - 1] = child;
+            ret.sizes[n - 1] -= leafLength;
+        }
+        return ret;
+    }
+
+    /** Keeps elements [0, end) of a non-empty subtree. */
+    static Node sliceRight(Node node, int level, int end){
+        if(level == 0)
+            return (end == node.array.length) ? node : new Node(node.edit, Arrays.copyOf(node.array, end));
+        int[] sizes = sizeTable(node, level);
+        if(end == sizes[sizes.length - 1])
+            return node;
+        int subidx = ((end - 1) >>> level) & 0x01f;
+        while(sizes[subidx] < end)
+            subidx++;
+        int childStart = (subidx == 0) ? 0 : sizes[subidx - 1];
+        Object[] array = Arrays.copyOf(node.array, subidx + 1);
+        int[] newSizes = Arrays.copyOf(sizes, subidx + 1);
+        array[subidx] = sliceRight((Node) node.array[subidx], level - 5, end - childStart);
+        newSizes[subidx] = end;
+        return new Node(node.edit, array, newSizes);
+    }
+
+    /** Keeps elements [start, size) of a non-empty subtree. */
+    static Node sliceLeft(Node node, int level, int start){
+        if(start == 0)
+            return node;
+        if(level == 0)
+            return new Node(node.edit, Arrays.copyOfRange(node.array, start, node.array.length));
+        int[] sizes = sizeTable(node, level);
+        int subidx = (start >>> level) & 0x01f;
+        while(sizes[subidx] <= start)
+            subidx++;
+        int childStart = (subidx == 0) ? 0 : sizes[subidx - 1];
+        Object[] array = Arrays.copyOfRange(node.array, subidx, sizes.length);
+        int[] newSizes = new int[array.length];
+        for(int k = 0; k < newSizes.length; k++)
+            newSizes[k] = sizes[subidx + k] - start;
+        array[0] = sliceLeft((Node) node.array[subidx], level - 5, start - childStart);
+        return new Node(node.edit, array, newSizes);
+    }
+
+    /**
+     * Concatenates two subtrees, returning one or two nodes at the level of
+     * the taller one. Only the right spine of left and the left spine of
+     * right are rebuilt; everything else is shared.
+     */
+    static Node[] concatSubTree(AtomicReference<Thread> edit, Node left, int lLevel, Node right, int rLevel){
+        if(lLevel > rLevel)
+        {
+            Node[] mid = concatSubTree(edit, (Node) left.array[childCount(left) - 1], lLevel - 5, right, rLevel);
+            return rebalance(edit, left, mid, null, lLevel);
+        }
+        if(lLevel < rLevel)
+        {
+            Node[] mid = concatSubTree(edit, left, lLevel, (Node) right.array[0], rLevel - 5);
+            return rebalance(edit, null, mid, right, rLevel);
+        }
+        if(lLevel == 0)
+        {
+            int total = left.array.length + right.array.length;
+            if(total > 32)
+                return new Node[]{left, right};
+            Object[] merged = Arrays.copyOf(left.array, total);
+            System.arraycopy(right.array, 0, merged, left.array.length, right.array.length);
+            return new Node[]{new Node(edit, merged)};
+        }
+        Node[] mid = concatSubTree(edit, (Node) left.array[childCount(left) - 1], lLevel - 5, (Node) right.array[0], rLevel - 5);
+        return rebalance(edit, left, mid, right, lLevel);
+    }
+
+    private static Node[] rebalance(AtomicReference<Thread> edit, Node left, Node[] mid, Node right, int level){
+        int ln = (left == null) ? 0 : childCount(left) - 1;
+        int rn = (right == null) ? 0 : childCount(right) - 1;
+        Node[] all = new Node[ln + mid.length + rn];
+        if(ln > 0)
+            System.arraycopy(left.array, 0, all, 0, ln);
+        System.arraycopy(mid, 0, all, ln, mid.length);
+        if(rn > 0)
+            System.arraycopy(right.array, 1, all, ln + mid.length, rn);
+
+        Object[] children = executeConcatPlan(edit, all, level - 5, concatPlan(all, level - 5));
+        if(children.length <= 32)
+            return new Node[]{relaxedNode(edit, children, level)};
+        return new Node[]{
+                relaxedNode(edit, Arrays.copyOf(children, 32), level),
+                relaxedNode(edit, Arrays.copyOfRange(children, 32, children.length), level)};
+    }
+
+    /**
+     * Decides how many slots each merged node gets. Underfull nodes are
+     * packed into their right neighbours until the node count is within
+     * RRB_EXTRAS of the optimum, which bounds the extra search steps a
+     * relaxed lookup can take.
+     */
+    private static int[] concatPlan(Node[] all, int level){
+        int n = all.length;
+        int[] plan = new int[n];
+        int total = 0;
+        for(int k = 0; k < n; k++)
+        {
+            plan[k] = slotCount(all[k], level);
+            total += plan[k];
+        }
+        int optimal = ((total - 1) >> 5) + 1;
+        int i = 0;
+        while(optimal + RRB_EXTRAS < n)
+        {
+            while(plan[i] >= 32 - RRB_EXTRAS / 2)
+                i++;
+            int r = plan[i];
+            while(r > 0)
+            {
+                int minSize = Math.min(r + plan[i + 1], 32);
+                plan[i] = minSize;
+                r = r + plan[i + 1] - minSize;
+                i++;
+            }
+            for(int j = i; j < n - 1; j++)
+                plan[j] = plan[j + 1];
+            i--;
+            n--;
+        }
+        return Arrays.copyOf(plan, n);
+    }
+
+    private static Object[] executeConcatPlan(AtomicReference<Thread> edit, Node[] all, int level, int[] plan){
+        Object[] out = new Object[plan.length];
+        int src = 0;
+        int offset = 0;
+        for(int k = 0; k < plan.length; k++)
+        {
+            int want = plan[k];
+            if(offset == 0 && slotCount(all[src], level) == want)
+            {
+                out[k] = all[src++];
+                continue;
+            }
+            Object[] items = new Object[want];
+            int filled = 0;
+            while(filled < want)
+            {
+                Node from = all[src];
+                int available = slotCount(from, level);
+                int take = Math.min(available - offset, want - filled);
+                System.arraycopy(from.array, offset, items, filled, take);
+                filled += take;
+                offset += take;
+                if(offset == available)
+                {
+                    src++;
+                    offset = 0;
+                }
+            }
+            out[k] = (level == 0) ? new Node(edit, items) : relaxedNode(edit, items, level);
+        }
+        return out;
+    }
+
+    /**
+     * Internal trie node. Plain Java object with no Ruby identity; interior
+     * nodes hold child Nodes, leaves hold the IRubyObject elements directly.
+     * Relaxed nodes carry a cumulative size table and an exactly sized array.
+     */
+    static final class Node {
+        final AtomicReference<Thread> edit;
+        final Object[] array;
+        final int[] sizes;
+
+        Node(AtomicReference<Thread> edit) {
+            this(edit, new Object[32], null);
+        }
+
+        Node(AtomicReference<Thread> edit, Object[] array) {
+            this(edit, array, null);
         }
 
-        public Node initialize_params_arry(ThreadContext context, AtomicReference<Thread> edit, RubyArray arry) {
+        Node(AtomicReference<Thread> edit, Object[] array, int[] sizes) {
             this.edit = edit;
-            this.array = arry;
-            return this;
+            this.array = array;
+            this.sizes = sizes;
+        }
+    }
+
+    /**
+     * Walks a vector one leaf at a time. Each call to next() descends from the
+     * root once and exposes the whole leaf, so a full scan costs one trie walk
+     * per leaf instead of one per element.
+     */
+    static final class ChunkIterator {
+        private final PersistentVector vector;
+        Object[] chunk;
+        int base;
+        int length;
+
+        ChunkIterator(PersistentVector vector) {
+            this.vector = vector;
         }
 
-        public boolean equals(Object other) {
-            return (other instanceof Node) && array.equals(((Node)other).array);
+        boolean next() {
+            base += length;
+            if (base >= vector.cnt)
+                return false;
+            chunk = vector.arrayFor(base);
+            length = Math.min(chunk.length, vector.cnt - base);
+            return true;
+        }
+    }
+
+    // Parallel bulk operations. The leaves are handed out in runs to fork/join
+    // tasks; each run is built into its own transient and the partial vectors
+    // are joined again with concat. Runs are split on level-1 node boundaries
+    // where possible so the partial trees line up with the original one.
+
+    static final int PARALLEL_THRESHOLD = 4096;
+    static final int LEAVES_PER_TASK = 16;
+
+    static final class Pool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool();
+    }
+
+    abstract static class LeafTask<T> extends RecursiveTask<T> {
+        final Ruby runtime;
+        final Object[][] leaves;
+        final int[] lengths;
+        final int lo, hi;
+
+        LeafTask(Ruby runtime, Object[][] leaves, int[] lengths, int lo, int hi) {
+            this.runtime = runtime;
+            this.leaves = leaves;
+            this.lengths = lengths;
+            this.lo = lo;
+            this.hi = hi;
         }
 
+        abstract T run(ThreadContext context, int lo, int hi);
+
+        abstract T combine(ThreadContext context, T left, T right);
+
+        abstract LeafTask<T> child(int lo, int hi);
+
+        @Override
+        protected T compute() {
+            ThreadContext context = runtime.getCurrentContext();
+            if (hi - lo <= LEAVES_PER_TASK)
+                return run(context, lo, hi);
+            int mid = (lo + hi) >>> 1;
+            if (hi - lo > 64)
+                mid &= ~0x01f;
+            LeafTask<T> left = child(lo, mid);
+            LeafTask<T> right = child(mid, hi);
+            right.fork();
+            T l = left.compute();
+            return combine(context, l, right.join());
+        }
+    }
+
+    abstract static class VectorTask extends LeafTask<PersistentVector> {
+        final PersistentVector empty;
+        final Block block;
+
+        VectorTask(Ruby runtime, Object[][] leaves, int[] lengths, int lo, int hi, PersistentVector empty, Block block) {
+            super(runtime, leaves, lengths, lo, hi);
+            this.empty = empty;
+            this.block = block;
+        }
+
+        abstract void run(ThreadContext context, TransientVector ret, IRubyObject value);
+
+        PersistentVector run(ThreadContext context, int lo, int hi) {
+            TransientVector ret = empty.asTransient(context);
+            for (int i = lo; i < hi; i++) {
+                Object[] leaf = leaves[i];
+                for (int j = 0, n = lengths[i]; j < n; j++)
+                    run(context, ret, (IRubyObject) leaf[j]);
+            }
+            return ret.persistent(context, empty.getMetaClass());
+        }
+
+        PersistentVector combine(ThreadContext context, PersistentVector left, PersistentVector right) {
+            return (PersistentVector) left.concat(context, right);
+        }
+    }
+
+    static final class MapTask extends VectorTask {
+        MapTask(Ruby runtime, Object[][] leaves, int[] lengths, int lo, int hi, PersistentVector empty, Block block) {
+            super(runtime, leaves, lengths, lo, hi, empty, block);
+        }
+
+        void run(ThreadContext context, TransientVector ret, IRubyObject value) {
+            ret.conj(context, block.yield(context, value));
+        }
+
+        LeafTask<PersistentVector> child(int lo, int hi) {
+            return new MapTask(runtime, leaves, lengths, lo, hi, empty, block);
+        }
+    }
+
+    static final class SelectTask extends VectorTask {
+        SelectTask(Ruby runtime, Object[][] leaves, int[] lengths, int lo, int hi, PersistentVector empty, Block block) {
+            super(runtime, leaves, lengths, lo, hi, empty, block);
+        }
+
+        void run(ThreadContext context, TransientVector ret, IRubyObject value) {
+            if (block.yield(context, value).isTrue()) ret.conj(context, value);
+        }
+
+        LeafTask<PersistentVector> child(int lo, int hi) {
+            return new SelectTask(runtime, leaves, lengths, lo, hi, empty, block);
+        }
+    }
+
+    static final class ReduceTask extends LeafTask<IRubyObject> {
+        final Block block;
+
+        ReduceTask(Ruby runtime, Object[][] leaves, int[] lengths, int lo, int hi, Block block) {
+            super(runtime, leaves, lengths, lo, hi);
+            this.block = block;
+        }
+
+        IRubyObject run(ThreadContext context, int lo, int hi) {
+            IRubyObject acc = null;
+            for (int i = lo; i < hi; i++) {
+                Object[] leaf = leaves[i];
+                for (int j = 0, n = lengths[i]; j < n; j++) {
+                    IRubyObject value = (IRubyObject) leaf[j];
+                    acc = acc == null ? value : block.yieldSpecific(context, acc, value);
+                }
+            }
+            return acc;
+        }
+
+        IRubyObject combine(ThreadContext context, IRubyObject left, IRubyObject right) {
+            return block.yieldSpecific(context, left, right);
+        }
+
+        LeafTask<IRubyObject> child(int lo, int hi) {
+            return new ReduceTask(runtime, leaves, lengths, lo, hi, block);
+        }
     }
 
     @JRubyClass(name="Vector")
     public static class PersistentVector extends RubyObject {
         static final AtomicReference<Thread> NOEDIT = new AtomicReference<Thread>(null);
+        static final Node EMPTY_NODE = new Node(NOEDIT);
+        static final Object[] EMPTY_TAIL = new Object[0];
 
         public int cnt;
         public int shift;
+        // Read through root(), which first writes any pending display into it.
         public Node root;
-        public RubyArray tail;
+        public Object[] tail;
+        private int hash;
+
+        // The focus. display is a leaf copied by set but not yet written into
+        // root, standing in for the leaf at displayBase, so a run of sets to
+        // one leaf copies just that leaf and the path is paid for once, when
+        // the trie is next needed. It is fixed when the vector is built and
+        // get only reads it; threads racing to commit it end up with the
+        // same trie.
+        private volatile Object[] display;
+        private int displayBase;
 
         public PersistentVector(Ruby runtime, RubyClass rubyClass) {
             super(runtime, rubyClass);
         }
 
-        public IRubyObject initialize(ThreadContext context, int cnt, int shift, Node root, RubyArray tail) {
+        public IRubyObject initialize(ThreadContext context, int cnt, int shift, Node root, Object[] tail) {
             this.cnt = cnt;
             this.shift = shift;
             this.root = root;
@@ -105,26 +665,193 @@ public class PersistentVectorLibrary implements Library {
             return this;
         }
 
+        private PersistentVector withDisplay(Object[] display, int displayBase) {
+            this.displayBase = displayBase;
+            this.display = display;
+            return this;
+        }
+
+        /** A vector sharing this one's trie, and display, under a new tail. */
+        private PersistentVector withTail(ThreadContext context, int cnt, Object[] tail) {
+            // display is read before root, so a commit racing with this is
+            // either seen whole or not at all.
+            Object[] d = display;
+            PersistentVector ret = (PersistentVector) new PersistentVector(context.runtime, getMetaClass()).initialize(context, cnt, shift, root, tail);
+            return d == null ? ret : ret.withDisplay(d, displayBase);
+        }
+
+        /** The trie with the pending display, if any, written into it. */
+        final Node root() {
+            Object[] d = display;
+            if (d == null)
+                return root;
+            Node committed = setLeaf(shift, root, displayBase, d);
+            root = committed;
+            display = null;
+            return committed;
+        }
+
+        private static Node setLeaf(int level, Node node, int i, Object[] leaf) {
+            if (VectorStats.ENABLED) VectorStats.SET_COPIES.increment();
+            Node ret = new Node(node.edit, node.array.clone());
+            int subidx = (i >>> level) & 0x01f;
+            ret.array[subidx] = level == 5 ? new Node(node.edit, leaf) : setLeaf(level - 5, (Node) ret.array[subidx], i, leaf);
+            return ret;
+        }
+
         public TransientVector asTransient(ThreadContext context){
             return (TransientVector) new TransientVector(context.runtime, TransientVector).initialize(context, this);
         }
 
+        @JRubyMethod(name = "transient")
+        public IRubyObject transient_(ThreadContext context) {
+            return asTransient(context);
+        }
+
+        @JRubyMethod(name = "with_mutations")
+        public IRubyObject withMutations(ThreadContext context, Block block) {
+            TransientVector ret = asTransient(context);
+            block.yield(context, ret);
+            return ret.persistent(context, getMetaClass());
+        }
+
         static private PersistentVector emptyVector(ThreadContext context, RubyClass rubyClass) {
-            Node emptyNode =  emptyNode(context);
-            return (PersistentVector) new PersistentVector(context.runtime, rubyClass).initialize(context, 0, 5, emptyNode, RubyArray.newArray(context.runtime, 32));
+            return (PersistentVector) new PersistentVector(context.runtime, rubyClass).initialize(context, 0, 5, EMPTY_NODE, EMPTY_TAIL);
+        }
+
+        /**
+         * A vector of cnt elements over leafCount full leaves and the tail,
+         * which must be exactly cnt - 32 * leafCount long.
+         */
+        static PersistentVector fromLeaves(ThreadContext context, RubyClass cls, Node[] leaves, int leafCount, Object[] tail, int cnt) {
+            if (leafCount == 0)
+                return (PersistentVector) new PersistentVector(context.runtime, cls).initialize(context, cnt, 5, EMPTY_NODE, tail);
+            int shift = shiftFor(leafCount);
+            Node root = assemble(NOEDIT, leaves, leafCount, shift);
+            return (PersistentVector) new PersistentVector(context.runtime, cls).initialize(context, cnt, shift, root, tail);
         }
 
-        static private Node emptyNode(ThreadContext context) {
-            return new Node(context.runtime, Node).initialize_params(context, NOEDIT);
+        /** Collects elements into full leaves, then hands them to fromLeaves in one go. */
+        static final class LeafBuilder {
+            Node[] leaves;
+            int leafCount;
+            Object[] leaf = new Object[32];
+            int n;
+
+            LeafBuilder(int expected) {
+                leaves = new Node[Math.max(4, (expected + 31) >>> 5)];
+            }
+
+            void add(IRubyObject value) {
+                if (n == 32) flushLeaf();
+                leaf[n++] = value;
+            }
+
+            void addAll(Object[] src, int from, int len) {
+                while (len > 0) {
+                    if (n == 32) flushLeaf();
+                    int k = Math.min(32 - n, len);
+                    System.arraycopy(src, from, leaf, n, k);
+                    n += k;
+                    from += k;
+                    len -= k;
+                }
+            }
+
+            /** Adds a full leaf, taking the array itself when it lines up with the leaves so far. */
+            void addLeaf(Object[] src) {
+                if (n != 0 && n != 32) {
+                    addAll(src, 0, 32);
+                    return;
+                }
+                if (n == 32) pushLeaf(leaf);
+                leaf = src;
+                n = 32;
+            }
+
+            // Only called once more elements follow, so the last leaf always
+            // stays behind to become the tail.
+            private void flushLeaf() {
+                pushLeaf(leaf);
+                leaf = new Object[32];
+                n = 0;
+            }
+
+            private void pushLeaf(Object[] full) {
+                if (leafCount == leaves.length)
+                    leaves = Arrays.copyOf(leaves, leafCount * 2);
+                leaves[leafCount++] = new Node(NOEDIT, full);
+            }
+
+            PersistentVector build(ThreadContext context, RubyClass cls) {
+                if (n == 0)
+                    return emptyVector(context, cls);
+                Object[] tail = n == 32 ? leaf : Arrays.copyOf(leaf, n);
+                return fromLeaves(context, cls, leaves, leafCount, tail, (leafCount << 5) + n);
+            }
         }
 
         @JRubyMethod(name = "[]", rest = true, meta = true)
         public static IRubyObject create(ThreadContext context, IRubyObject cls, IRubyObject[] items) {
-            TransientVector ret = emptyVector(context, (RubyClass) cls).asTransient(context);
-            for(IRubyObject item : items) {
-                ret = (TransientVector) ret.conj(context, item);
+            LeafBuilder builder = new LeafBuilder(items.length);
+            builder.addAll(items, 0, items.length);
+            return builder.build(context, (RubyClass) cls);
+        }
+
+        /**
+         * A vector of the elements of an array, vector, integer range or any
+         * other enumerable, copied into leaves 32 at a time rather than
+         * conj'd one by one.
+         */
+        @JRubyMethod(name = "from", required = 1, meta = true)
+        public static IRubyObject from(ThreadContext context, IRubyObject cls, IRubyObject source) {
+            if (source instanceof PersistentVector && source.getMetaClass() == cls)
+                return source;
+            if (source instanceof RubyRange && ((RubyRange) source).first() instanceof RubyFixnum
+                    && ((RubyRange) source).last() instanceof RubyFixnum)
+                return from_range(context, cls, source);
+
+            final LeafBuilder builder;
+            IRubyObject ary = source.checkArrayType();
+            if (!ary.isNil()) {
+                RubyArray array = (RubyArray) ary;
+                builder = new LeafBuilder(array.getLength());
+                builder.addAll(array.toJavaArrayMaybeUnsafe(), 0, array.getLength());
+            } else if (source instanceof PersistentVector) {
+                builder = new LeafBuilder(((PersistentVector) source).cnt);
+                for (ChunkIterator it = ((PersistentVector) source).chunks(); it.next(); )
+                    builder.addAll(it.chunk, 0, it.length);
+            } else {
+                builder = new LeafBuilder(0);
+                source.callMethod(context, "each", IRubyObject.NULL_ARRAY,
+                        CallBlock.newCallClosure(source, (RubyClass) cls, Arity.ONE_ARGUMENT, new BlockCallback() {
+                            public IRubyObject call(ThreadContext context, IRubyObject[] args, Block block) {
+                                builder.add(args[0]);
+                                return context.nil;
+                            }
+                        }, context));
             }
-            return ret.persistent(context, (RubyClass) cls);
+            return builder.build(context, (RubyClass) cls);
+        }
+
+        /** A vector of the integers in range, built leaf by leaf. */
+        @JRubyMethod(name = "from_range", required = 1, meta = true)
+        public static IRubyObject from_range(ThreadContext context, IRubyObject cls, IRubyObject obj) {
+            Ruby runtime = context.runtime;
+            if (!(obj instanceof RubyRange))
+                throw runtime.newTypeError(obj, runtime.getRange());
+            RubyRange range = (RubyRange) obj;
+            long first = RubyNumeric.num2long(range.first());
+            long last = RubyNumeric.num2long(range.last());
+            if (range.exclude_end_p().isTrue()) last--;
+            long size = last < first ? 0 : last - first + 1;
+            if (size > Integer.MAX_VALUE)
+                throw runtime.newArgumentError("range too large for a vector");
+
+            LeafBuilder builder = new LeafBuilder((int) size);
+            for (long i = first; i <= last; i++)
+                builder.add(RubyFixnum.newFixnum(runtime, i));
+            return builder.build(context, (RubyClass) cls);
         }
 
         @JRubyMethod(name = "size", alias = "length")
@@ -134,19 +861,94 @@ public class PersistentVectorLibrary implements Library {
 
         @JRubyMethod(name = "tail")
         public IRubyObject tail(ThreadContext context) {
-            return tail;
+            IRubyObject[] elements = new IRubyObject[tail.length];
+            System.arraycopy(tail, 0, elements, 0, tail.length);
+            return RubyArray.newArrayNoCopy(context.runtime, elements);
         }
 
         @JRubyMethod
         public IRubyObject each(ThreadContext context, Block block) {
             if (!block.isGiven()) return enumeratorize(context.runtime, this, "each");
 
-            for(int i=0; i < cnt; i++) {
-                block.yield(context, nth(context, RubyFixnum.newFixnum(context.runtime, i)));
+            for (ChunkIterator it = chunks(); it.next(); ) {
+                Object[] chunk = it.chunk;
+                for (int j = 0, n = it.length; j < n; j++) {
+                    block.yield(context, (IRubyObject) chunk[j]);
+                }
+            }
+            return this;
+        }
+
+        @JRubyMethod
+        public IRubyObject each_with_index(ThreadContext context, Block block) {
+            if (!block.isGiven()) return enumeratorize(context.runtime, this, "each_with_index");
+
+            Ruby runtime = context.runtime;
+            for (ChunkIterator it = chunks(); it.next(); ) {
+                Object[] chunk = it.chunk;
+                for (int j = 0, n = it.length; j < n; j++) {
+                    block.yieldSpecific(context, (IRubyObject) chunk[j], RubyFixnum.newFixnum(runtime, it.base + j));
+                }
             }
             return this;
         }
 
+        @JRubyMethod(name = {"inject", "reduce"}, optional = 2)
+        public IRubyObject inject(ThreadContext context, IRubyObject[] args, Block block) {
+            IRubyObject acc = null;
+            String op = null;
+
+            if (args.length == 2) {
+                acc = args[0];
+                op = args[1].asJavaString();
+            } else if (args.length == 1 && block.isGiven()) {
+                acc = args[0];
+            } else if (args.length == 1) {
+                op = args[0].asJavaString();
+            }
+
+            for (ChunkIterator it = chunks(); it.next(); ) {
+                Object[] chunk = it.chunk;
+                for (int j = 0, n = it.length; j < n; j++) {
+                    IRubyObject value = (IRubyObject) chunk[j];
+                    if (acc == null) {
+                        acc = value;
+                    } else if (op != null) {
+                        acc = acc.callMethod(context, op, value);
+                    } else {
+                        acc = block.yieldSpecific(context, acc, value);
+                    }
+                }
+            }
+            return acc == null ? context.runtime.getNil() : acc;
+        }
+
+        @JRubyMethod(name = {"include?", "member?"}, required = 1)
+        public IRubyObject include_p(ThreadContext context, IRubyObject obj) {
+            for (ChunkIterator it = chunks(); it.next(); ) {
+                Object[] chunk = it.chunk;
+                for (int j = 0, n = it.length; j < n; j++) {
+                    if (equalInternal(context, (IRubyObject) chunk[j], obj)) return context.runtime.getTrue();
+                }
+            }
+            return context.runtime.getFalse();
+        }
+
+        @JRubyMethod(name = {"find", "detect"}, optional = 1)
+        public IRubyObject find(ThreadContext context, IRubyObject[] args, Block block) {
+            if (!block.isGiven()) return enumeratorize(context.runtime, this, "find", args);
+
+            for (ChunkIterator it = chunks(); it.next(); ) {
+                Object[] chunk = it.chunk;
+                for (int j = 0, n = it.length; j < n; j++) {
+                    IRubyObject value = (IRubyObject) chunk[j];
+                    if (block.yield(context, value).isTrue()) return value;
+                }
+            }
+            if (args.length == 1 && !args[0].isNil()) return args[0].callMethod(context, "call");
+            return context.runtime.getNil();
+        }
+
         @JRubyMethod(name = {"collect", "map"})
         public IRubyObject collect(ThreadContext context, Block block) {
             Ruby runtime = context.runtime;
@@ -154,13 +956,25 @@ public class PersistentVectorLibrary implements Library {
 
             TransientVector ret = emptyVector(context, getMetaClass()).asTransient(context);
 
-            for (int i = 0; i < cnt; i++) {
-               ret = (TransientVector) ret.conj(context, block.yield(context, get(context, i)));
+            for (ChunkIterator it = chunks(); it.next(); ) {
+                Object[] chunk = it.chunk;
+                for (int j = 0, n = it.length; j < n; j++) {
+                    ret = (TransientVector) ret.conj(context, block.yield(context, (IRubyObject) chunk[j]));
+                }
             }
 
             return ret.persistent(context, getMetaClass());
         }
 
+        /**
+         * A lazy view whose map, select, reject, take_while, take and
+         * flat_map are fused into a single pass, run by to_v or each.
+         */
+        @JRubyMethod(name = "lazy")
+        public IRubyObject lazy(ThreadContext context) {
+            return LazyVectorLibrary.PersistentLazyVector.of(context, this);
+        }
+
         @JRubyMethod(name = "clear")
         public IRubyObject clear(ThreadContext context) {
            return emptyVector(context, getMetaClass());
@@ -175,9 +989,12 @@ public class PersistentVectorLibrary implements Library {
             Ruby runtime = context.runtime;
             TransientVector ret = emptyVector(context, getMetaClass()).asTransient(context);
 
-            for (int i = 0; i < cnt; i++) {
-                IRubyObject value = get(context, i);
-                if (block.yield(context, value).isTrue()) ret = (TransientVector) ret.conj(context, value);
+            for (ChunkIterator it = chunks(); it.next(); ) {
+                Object[] chunk = it.chunk;
+                for (int j = 0, n = it.length; j < n; j++) {
+                    IRubyObject value = (IRubyObject) chunk[j];
+                    if (block.yield(context, value).isTrue()) ret = (TransientVector) ret.conj(context, value);
+                }
             }
 
             return ret.persistent(context, getMetaClass());
@@ -188,7 +1005,67 @@ public class PersistentVectorLibrary implements Library {
             return block.isGiven() ? selectCommon(context, block) : enumeratorize(context.runtime, this, "select");
         }
 
-        @JRubyMethod(name = "get", alias = "[]", required=1)
+        /** Leaves in order, with how many elements of each are in use. */
+        private int leaves(Object[][] leaves, int[] lengths) {
+            int i = 0;
+            for (ChunkIterator it = chunks(); it.next(); i++) {
+                leaves[i] = it.chunk;
+                lengths[i] = it.length;
+            }
+            return i;
+        }
+
+        private <T> T invokeParallel(LeafTask<T> task) {
+            return Pool.INSTANCE.invoke(task);
+        }
+
+        private PersistentVector parallel(ThreadContext context, Block block, boolean select) {
+            Object[][] leaves = new Object[(cnt >>> 5) + 2][];
+            int[] lengths = new int[leaves.length];
+            int n = leaves(leaves, lengths);
+            PersistentVector empty = emptyVector(context, getMetaClass());
+            return invokeParallel(select
+                    ? new SelectTask(context.runtime, leaves, lengths, 0, n, empty, block)
+                    : new MapTask(context.runtime, leaves, lengths, 0, n, empty, block));
+        }
+
+        /**
+         * map, with the block called from a fork/join pool. Small vectors are
+         * mapped sequentially; the block must be safe to run concurrently.
+         */
+        @JRubyMethod(name = "pmap")
+        public IRubyObject pmap(ThreadContext context, Block block) {
+            if (!block.isGiven()) return enumeratorize(context.runtime, this, "pmap");
+            if (cnt < PARALLEL_THRESHOLD) return collect(context, block);
+            return parallel(context, block, false);
+        }
+
+        @JRubyMethod(name = "pselect")
+        public IRubyObject pselect(ThreadContext context, Block block) {
+            if (!block.isGiven()) return enumeratorize(context.runtime, this, "pselect");
+            if (cnt < PARALLEL_THRESHOLD) return selectCommon(context, block);
+            return parallel(context, block, true);
+        }
+
+        /**
+         * inject for an associative block: runs are folded in parallel and
+         * their results folded together, so the grouping of calls differs
+         * from inject but the order of the elements does not.
+         */
+        @JRubyMethod(name = "preduce", optional = 1)
+        public IRubyObject preduce(ThreadContext context, IRubyObject[] args, Block block) {
+            Ruby runtime = context.runtime;
+            if (!block.isGiven()) throw runtime.newArgumentError("no block given");
+            if (cnt < PARALLEL_THRESHOLD) return inject(context, args, block);
+
+            Object[][] leaves = new Object[(cnt >>> 5) + 2][];
+            int[] lengths = new int[leaves.length];
+            int n = leaves(leaves, lengths);
+            IRubyObject result = invokeParallel(new ReduceTask(runtime, leaves, lengths, 0, n, block));
+            return args.length > 0 ? block.yieldSpecific(context, args[0], result) : result;
+        }
+
+        @JRubyMethod(name = "get", required=1)
         public IRubyObject nth(ThreadContext context, IRubyObject i) {
             int j = RubyNumeric.num2int(i);
             return get(context, j);
@@ -198,10 +1075,13 @@ public class PersistentVectorLibrary implements Library {
             Ruby runtime = context.runtime;
             TransientVector ret = emptyVector(context, getMetaClass()).asTransient(context);
 
-            for (int i = 0; i < cnt; i++) {
-                IRubyObject value = get(context, i);
-                if (block.yield(context, value).isTrue()) continue;
-                ret = (TransientVector) ret.conj(context, value);
+            for (ChunkIterator it = chunks(); it.next(); ) {
+                Object[] chunk = it.chunk;
+                for (int j = 0, n = it.length; j < n; j++) {
+                    IRubyObject value = (IRubyObject) chunk[j];
+                    if (block.yield(context, value).isTrue()) continue;
+                    ret = (TransientVector) ret.conj(context, value);
+                }
             }
 
             return ret.persistent(context, getMetaClass());
@@ -213,150 +1093,184 @@ public class PersistentVectorLibrary implements Library {
         }
 
         public IRubyObject get(ThreadContext context, int i) {
-            RubyArray node = arrayFor(i);
-            return node.entry(i & 0x01f);
+            if (i >= 0 && i < cnt) {
+                int off = tailoff();
+                if (i >= off)
+                    return (IRubyObject) tail[i - off];
+                Object[] d = display;
+                if (d != null && (i & ~0x01f) == displayBase)
+                    return (IRubyObject) d[i & 0x01f];
+                if (root.sizes != null)
+                    return (IRubyObject) relaxedGet(root, shift, i);
+                return (IRubyObject) leafFor(root, shift, i)[i & 0x01f];
+            }
+            throw new IndexOutOfBoundsException();
         }
-        private RubyArray arrayFor(int i){
+
+        Object[] arrayFor(int i){
             if(i >= 0 && i < cnt)
             {
                 if(i >= tailoff())
                     return tail;
-                Node node = root;
-                for(int level = shift; level > 0; level -= 5)
-                    node = (Node) node.array.entry((i >>> level) & 0x01f);
-                return node.array;
+                if(root.sizes != null)
+                    return relaxedLeafFor(root, shift, i);
+                Object[] d = display;
+                if(d != null && (i & ~0x01f) == displayBase)
+                    return d;
+                return leafFor(root, shift, i);
             }
             throw new IndexOutOfBoundsException();
         }
 
         @JRubyMethod(name = "set", required=2)
         public IRubyObject set(ThreadContext context, IRubyObject i, IRubyObject val) {
+            if (VectorStats.ENABLED) VectorStats.recordShift(shift);
             int j = RubyNumeric.num2int(i);
             if (j >=0 && j < cnt) {
                 if (j >= tailoff()) {
-                    RubyArray newTail = tail.aryDup();
-                    newTail.store(j & 0x01f, val);
-                    return new PersistentVector(context.runtime, getMetaClass()).initialize(context, cnt, shift, root, newTail);
+                    Object[] newTail = tail.clone();
+                    newTail[j - tailoff()] = val;
+                    return withTail(context, cnt, newTail);
                 }
-                return new PersistentVector(context.runtime, getMetaClass()).initialize(context, cnt, shift, doSet(context, shift, root, j, val), tail);
+                if (root.sizes != null)
+                    return new PersistentVector(context.runtime, getMetaClass()).initialize(context, cnt, shift, doSet(shift, root, j, val), tail);
+
+                // Balanced trie: only the leaf is copied, and becomes the new
+                // vector's display. It replaces this one's if it is the same leaf.
+                int base = j & ~0x01f;
+                Object[] d = display;
+                Node r = d != null && displayBase == base ? root : root();
+                Object[] leaf = (d != null && displayBase == base ? d : leafFor(r, shift, j)).clone();
+                leaf[j & 0x01f] = val;
+                // The leaf copy now, the path above it when display is committed.
+                if (VectorStats.ENABLED) VectorStats.SET_COPIES.increment();
+                return ((PersistentVector) new PersistentVector(context.runtime, getMetaClass()).initialize(context, cnt, shift, r, tail)).withDisplay(leaf, base);
             }
 
             if (j == cnt)
-                add(context, val);
+                return add(context, val);
 
             throw new IndexOutOfBoundsException();
         }
 
-        private Node doSet(ThreadContext context, int level, Node node, int i, IRubyObject val) {
-            Node ret = new Node(context.runtime, Node).initialize_params_arry(context, node.edit, node.array.aryDup());
+        private static Node doSet(int level, Node node, int i, IRubyObject val) {
+            if (VectorStats.ENABLED) VectorStats.SET_COPIES.increment();
+            Node ret = new Node(node.edit, node.array.clone(), node.sizes);
             if (level == 0)
-                ret.array.store(i & 0x01f, val);
+                ret.array[i & 0x01f] = val;
             else {
-                int subidx = (i >> level) & 0x01f;
-                ret.array.store(subidx, doSet(context, level-5, (Node) node.array.entry(subidx), i, val));
-            }
-            return ret;
-        }
-
-
-        private static Node newPath(ThreadContext context, AtomicReference<Thread> edit, int level, Node node) {
-            if (level == 0)
-                return node;
-            Node ret = new Node(context.runtime, Node).initialize_params(context, edit);
-            ret.array.store(0, newPath(context, edit, level - 5, node));
-            return  ret;
-        }
-
-        private Node pushTail(ThreadContext context, int level, Node parent, Node tailnode){
-            int subidx = ((cnt - 1) >>> level) & 0x01f;
-            Node ret = new Node(context.runtime, Node).initialize_params_arry(context, parent.edit, parent.array.aryDup());
-            Node nodeToInsert;
-            if(level == 5)
-            {
-                nodeToInsert = tailnode;
-            }
-            else
-            {
-                IRubyObject child = parent.array.entry(subidx);
-                nodeToInsert = (!child.isNil())?
-                        pushTail(context, level-5,(Node) child, tailnode)
-                        :newPath(context, root.edit,level-5, tailnode);
+                int subidx = (i >>> level) & 0x01f;
+                if (node.sizes != null) {
+                    while (node.sizes[subidx] <= i)
+                        subidx++;
+                    if (subidx > 0)
+                        i -= node.sizes[subidx - 1];
+                }
+                ret.array[subidx] = doSet(level-5, (Node) node.array[subidx], i, val);
             }
-            ret.array.store(subidx, nodeToInsert);
             return ret;
         }
 
         @JRubyMethod(name = {"add", "append"}, required = 1)
         public IRubyObject add(ThreadContext context, IRubyObject val) {
+            if (VectorStats.ENABLED) VectorStats.recordShift(shift);
             if (cnt - tailoff() < 32) {
-                PersistentVector ret = new PersistentVector(context.runtime, getMetaClass());
-                RubyArray newTail = tail.aryDup();
-                newTail.append(val);
-                return ret.initialize(context, this.cnt+1, this.shift, this.root, newTail);
+                if (VectorStats.ENABLED) VectorStats.TAIL_ADDS.increment();
+                Object[] newTail = new Object[tail.length + 1];
+                System.arraycopy(tail, 0, newTail, 0, tail.length);
+                newTail[tail.length] = val;
+                return withTail(context, cnt + 1, newTail);
             }
 
+            if (VectorStats.ENABLED) VectorStats.TRIE_ADDS.increment();
+            Node r = root();
             Node newroot;
-            Node tailnode = new Node(context.runtime, Node).initialize_params_arry(context, root.edit, tail);
+            Node tailnode = new Node(r.edit, tail);
             int newshift = shift;
 
-            if ((cnt >>> 5) > (1 << shift)) {
-                newroot = new Node(context.runtime, Node).initialize_params(context, root.edit);
-                newroot.array.store(0, root);
-                newroot.array.store(1, newPath(context, root.edit, shift, tailnode));
+            if (r.sizes != null) {
+                newroot = appendLeaf(r.edit, shift, r, tailnode);
+                if (newroot == null) {
+                    newroot = relaxedNode(r.edit, new Object[]{r, newPath(r.edit, shift, tailnode)}, shift + 5);
+                    newshift += 5;
+                }
+            } else if ((cnt >>> 5) > (1 << shift)) {
+                newroot = new Node(r.edit);
+                newroot.array[0] = r;
+                newroot.array[1] = newPath(r.edit, shift, tailnode);
                 newshift += 5;
             } else
-                newroot = pushTail(context, shift, root, tailnode);
+                newroot = pushTail(r.edit, shift, r, cnt - 1, tailnode);
 
-            RubyArray arry = RubyArray.newArray(context.runtime);
-            arry.store(0, val);
-
-            return new PersistentVector(context.runtime, getMetaClass()).initialize(context, cnt + 1, newshift, newroot, arry);
+            return new PersistentVector(context.runtime, getMetaClass()).initialize(context, cnt + 1, newshift, newroot, new Object[]{val});
         }
 
         final int tailoff(){
-            if (cnt < 32)
-                return 0;
-            return ((cnt-1) >>> 5) << 5;
+            return cnt - tail.length;
+        }
+
+        ChunkIterator chunks() {
+            return new ChunkIterator(this);
         }
 
         @JRubyMethod(name = "pop")
         public IRubyObject pop(ThreadContext context){
+            if (VectorStats.ENABLED) VectorStats.recordShift(shift);
             if(cnt == 0)
                 throw new IllegalStateException("Can't pop empty vector");
             if(cnt == 1)
                 return emptyVector(context, getMetaClass());
             if(cnt-tailoff() > 1)
             {
-                RubyArray newTail = (RubyArray) tail.subseq(0, tail.getLength()-1).dup();
-                return new PersistentVector(context.runtime, getMetaClass()).initialize(context, cnt - 1, shift, root, newTail);
+                Object[] newTail = Arrays.copyOf(tail, tail.length - 1);
+                return withTail(context, cnt - 1, newTail);
+            }
+            Node r = root();
+            if(r.sizes != null)
+            {
+                Node leaf = lastLeaf(r, shift);
+                Node newroot = popLeaf(r.edit, shift, r, leaf.array.length);
+                int newshift = shift;
+                if(newroot == null)
+                {
+                    newroot = EMPTY_NODE;
+                    newshift = 5;
+                }
+                while(newshift > 5 && childCount(newroot) == 1)
+                {
+                    newroot = (Node) newroot.array[0];
+                    newshift -= 5;
+                }
+                return new PersistentVector(context.runtime, getMetaClass()).initialize(context, cnt - 1, newshift, newroot, leaf.array);
             }
-            RubyArray newtail = arrayFor(cnt - 2);
+            Object[] newtail = arrayFor(cnt - 2);
 
-            Node newroot = popTail(context, shift, root);
+            Node newroot = popTail(shift, r);
             int newshift = shift;
             if(newroot == null)
             {
-                newroot = emptyNode(context);
+                newroot = EMPTY_NODE;
             }
-            if(shift > 5 && newroot.array.entry(1) == null)
+            if(shift > 5 && newroot.array[1] == null)
             {
-                newroot = (Node) newroot.array.entry(0);
+                newroot = (Node) newroot.array[0];
                 newshift -= 5;
             }
             return new PersistentVector(context.runtime, getMetaClass()).initialize(context, cnt - 1, newshift, newroot, newtail);
         }
 
-        private Node popTail(ThreadContext context, int level, Node node){
+        private Node popTail(int level, Node node){
             int subidx = ((cnt-2) >>> level) & 0x01f;
             if(level > 5)
             {
-                Node newchild = popTail(context, level - 5, (Node) node.array.entry(subidx));
+                Node newchild = popTail(level - 5, (Node) node.array[subidx]);
                 if(newchild == null && subidx == 0)
                     return null;
                 else
                 {
-                    Node ret = new Node(context.runtime, Node).initialize_params_arry(context, root.edit, node.array.aryDup());
-                    ret.array.store(subidx, newchild);
+                    if (VectorStats.ENABLED) VectorStats.POP_TAIL_COPIES.increment();
+                    Node ret = new Node(node.edit, node.array.clone());
+                    ret.array[subidx] = newchild;
                     return ret;
                 }
             }
@@ -364,21 +1278,173 @@ public class PersistentVectorLibrary implements Library {
                 return null;
             else
             {
-                Node ret = new Node(context.runtime, Node).initialize_params_arry(context, root.edit, node.array.aryDup());
-                ret.array.store(subidx, null);
+                if (VectorStats.ENABLED) VectorStats.POP_TAIL_COPIES.increment();
+                Node ret = new Node(node.edit, node.array.clone());
+                ret.array[subidx] = null;
                 return ret;
             }
         }
 
+        @JRubyMethod(name = {"[]", "slice"}, required = 1, optional = 1)
+        public IRubyObject aref(ThreadContext context, IRubyObject[] args) {
+            Ruby runtime = context.runtime;
+            int start;
+            int length;
+
+            if (args.length == 2) {
+                start = RubyNumeric.num2int(args[0]);
+                length = RubyNumeric.num2int(args[1]);
+            } else if (args[0] instanceof RubyRange) {
+                RubyRange range = (RubyRange) args[0];
+                start = RubyNumeric.num2int(range.first());
+                int end = RubyNumeric.num2int(range.last());
+                if (start < 0) start += cnt;
+                if (end < 0) end += cnt;
+                if (!range.exclude_end_p().isTrue()) end++;
+                if (start < 0) return runtime.getNil();
+                length = Math.max(end - start, 0);
+            } else {
+                return nth(context, args[0]);
+            }
+
+            if (args.length == 2 && start < 0) start += cnt;
+            if (start < 0 || start > cnt || length < 0) return runtime.getNil();
+            return slice(context, start, Math.min(start + length, cnt));
+        }
+
+        @JRubyMethod(name = "take", required = 1)
+        public IRubyObject take(ThreadContext context, IRubyObject n) {
+            int j = RubyNumeric.num2int(n);
+            if (j < 0) throw context.runtime.newArgumentError("attempt to take negative size");
+            return slice(context, 0, Math.min(j, cnt));
+        }
+
+        @JRubyMethod(name = "drop", required = 1)
+        public IRubyObject drop(ThreadContext context, IRubyObject n) {
+            int j = RubyNumeric.num2int(n);
+            if (j < 0) throw context.runtime.newArgumentError("attempt to drop negative size");
+            return slice(context, Math.min(j, cnt), cnt);
+        }
+
+        /**
+         * Elements [from, to) as a new vector. Only the two edge paths are
+         * copied, so this is O(log n) regardless of the slice length.
+         */
+        public PersistentVector slice(ThreadContext context, int from, int to) {
+            if (from == 0 && to == cnt) return this;
+            if (from == to) return emptyVector(context, getMetaClass());
+
+            int off = tailoff();
+            if (from >= off) {
+                Object[] newTail = Arrays.copyOfRange(tail, from - off, to - off);
+                return (PersistentVector) new PersistentVector(context.runtime, getMetaClass()).initialize(context, to - from, 5, EMPTY_NODE, newTail);
+            }
+
+            Node newroot;
+            int newshift = shift;
+            Object[] newTail;
+            if (to > off) {
+                newroot = sliceLeft(root(), shift, from);
+                newTail = (to - off == tail.length) ? tail : Arrays.copyOf(tail, to - off);
+            } else {
+                newroot = sliceLeft(sliceRight(root(), shift, to), shift, from);
+                Node leaf = lastLeaf(newroot, shift);
+                newTail = leaf.array;
+                newroot = popLeaf(NOEDIT, shift, newroot, leaf.array.length);
+                if (newroot == null) {
+                    newroot = EMPTY_NODE;
+                    newshift = 5;
+                }
+            }
+            while (newshift > 5 && childCount(newroot) == 1) {
+                newroot = (Node) newroot.array[0];
+                newshift -= 5;
+            }
+            return (PersistentVector) new PersistentVector(context.runtime, getMetaClass()).initialize(context, to - from, newshift, newroot, newTail);
+        }
+
+        /** Appends the elements of an array, a whole leaf at a time once the tail is full. */
+        @JRubyMethod(name = "concat_array", required = 1)
+        public IRubyObject concat_array(ThreadContext context, IRubyObject obj) {
+            RubyArray array = obj.convertToArray();
+            if (array.getLength() == 0) return this;
+            TransientVector ret = asTransient(context);
+            ret.conjAll(context, array.toJavaArrayMaybeUnsafe(), 0, array.getLength());
+            return ret.persistent(context, getMetaClass());
+        }
+
+        @JRubyMethod(name = {"+", "concat"}, required = 1)
+        public IRubyObject concat(ThreadContext context, IRubyObject other) {
+            if (!(other instanceof PersistentVector))
+                return concat_array(context, other);
+
+            PersistentVector right = (PersistentVector) other;
+            if (right.cnt == 0) return this;
+            if (cnt == 0) return new PersistentVector(context.runtime, getMetaClass()).initialize(context, right.cnt, right.shift, right.root(), right.tail);
+
+            if (right.tailoff() == 0) {
+                TransientVector ret = asTransient(context);
+                ret.conjAll(context, right.tail, 0, right.tail.length);
+                return ret.persistent(context, getMetaClass());
+            }
+
+            Node leftRoot = new Node(NOEDIT, tail);
+            int leftShift = 0;
+            if (tailoff() > 0) {
+                Node[] merged = concatSubTree(NOEDIT, root(), shift, leftRoot, 0);
+                leftShift = shift;
+                if (merged.length == 1) {
+                    leftRoot = merged[0];
+                } else {
+                    leftShift += 5;
+                    leftRoot = relaxedNode(NOEDIT, merged, leftShift);
+                }
+            }
+
+            Node[] merged = concatSubTree(NOEDIT, leftRoot, leftShift, right.root(), right.shift);
+            int newshift = Math.max(leftShift, right.shift);
+            Node newroot;
+            if (merged.length == 1) {
+                newroot = merged[0];
+            } else {
+                newshift += 5;
+                newroot = relaxedNode(NOEDIT, merged, newshift);
+            }
+            while (newshift > 5 && childCount(newroot) == 1) {
+                newroot = (Node) newroot.array[0];
+                newshift -= 5;
+            }
+            return new PersistentVector(context.runtime, getMetaClass()).initialize(context, cnt + right.cnt, newshift, newroot, right.tail);
+        }
+
+        @JRubyMethod(name = "insert_at", required = 2)
+        public IRubyObject insert_at(ThreadContext context, IRubyObject i, IRubyObject val) {
+            int j = RubyNumeric.num2int(i);
+            if (j == cnt) return add(context, val);
+            if (j < 0 || j > cnt) throw new IndexOutOfBoundsException();
+
+            PersistentVector front = (PersistentVector) slice(context, 0, j).add(context, val);
+            return front.concat(context, slice(context, j, cnt));
+        }
+
+        @JRubyMethod(name = "delete_at", required = 1)
+        public IRubyObject delete_at(ThreadContext context, IRubyObject i) {
+            int j = RubyNumeric.num2int(i);
+            if (j < 0 || j >= cnt) throw new IndexOutOfBoundsException();
+            if (j == cnt - 1) return pop(context);
+
+            return slice(context, 0, j).concat(context, slice(context, j + 1, cnt));
+        }
+
         @JRubyMethod(name = {"to_a", "to_ary"})
         public RubyArray toRubyArray(ThreadContext context) {
             IRubyObject[] array = new IRubyObject[cnt];
 
-            for(int i=0; i < cnt; i++) {
-                array[i] = nth(context, RubyFixnum.newFixnum(context.runtime, i));
+            for (ChunkIterator it = chunks(); it.next(); ) {
+                System.arraycopy(it.chunk, 0, array, it.base, it.length);
             }
 
-            return getRuntime().newArray(array);
+            return RubyArray.newArrayNoCopy(context.runtime, array);
         }
 
         @JRubyMethod(name = "inspect")
@@ -392,8 +1458,8 @@ public class PersistentVectorLibrary implements Library {
         public IRubyObject op_equal(ThreadContext context, IRubyObject obj) {
             Ruby runtime = context.runtime;
 
-            if (eql(obj)) {
-                return runtime.getTrue();
+            if (obj instanceof PersistentVector) {
+                return RubyBoolean.newBoolean(runtime, equiv(context, (PersistentVector) obj, false));
             }
 
             if (!obj.respondsTo("to_ary")) {
@@ -405,29 +1471,243 @@ public class PersistentVectorLibrary implements Library {
 
         @JRubyMethod(name = "eql?")
         public IRubyObject eql(ThreadContext context, IRubyObject obj) {
-            Ruby runtime = context.runtime;
+            return RubyBoolean.newBoolean(context.runtime, obj instanceof PersistentVector && equiv(context, (PersistentVector) obj, true));
+        }
 
-            if (this == obj) {
-                return runtime.getTrue();
+        /**
+         * Computed on first use and cached; 0 doubles as "not computed yet",
+         * the same trick java.lang.String uses, so racing readers at worst
+         * compute it twice.
+         */
+        @JRubyMethod(name = "hash")
+        public RubyFixnum hash(ThreadContext context) {
+            int h = hash;
+            if (h == 0) {
+                h = 1;
+                for (ChunkIterator it = chunks(); it.next(); ) {
+                    Object[] chunk = it.chunk;
+                    for (int j = 0, n = it.length; j < n; j++) {
+                        h = 31 * h + chunk[j].hashCode();
+                    }
+                }
+                hash = h;
             }
+            return context.runtime.newFixnum(h);
+        }
 
-            if (obj instanceof PersistentVector) {
-                Node otherRoot = ((PersistentVector)obj).root;
-                RubyArray otherTail = ((PersistentVector)obj).tail;
-                if (root.equals(otherRoot) && tail.equals(otherTail)) {
-                    return runtime.getTrue();
+        /**
+         * Versions of one vector share most of their nodes, so the trees are
+         * walked side by side and identical nodes are skipped without looking
+         * inside. Comparing two versions that differ in a single element only
+         * descends the one path that was copied.
+         */
+        boolean equiv(ThreadContext context, PersistentVector other, boolean eql) {
+            if (this == other) return true;
+            if (cnt != other.cnt) return false;
+            if (eql && hash != 0 && other.hash != 0 && hash != other.hash) return false;
+
+            if (shift == other.shift && tail.length == other.tail.length) {
+                int same = nodesEquiv(context, root(), other.root(), shift, eql);
+                if (same != SHAPE_MISMATCH) {
+                    return same == SAME && leavesEquiv(context, tail, other.tail, tail.length, eql) == SAME;
+                }
+            }
+
+            for (ChunkIterator it = chunks(); it.next(); ) {
+                Object[] chunk = it.chunk;
+                for (int j = 0, n = it.length; j < n; j++) {
+                    if (!elementsEquiv(context, (IRubyObject) chunk[j], other.get(context, it.base + j), eql)) return false;
+                }
+            }
+            return true;
+        }
+
+        private static final int SAME = 0, DIFFERENT = 1, SHAPE_MISMATCH = 2;
+
+        private static boolean elementsEquiv(ThreadContext context, IRubyObject a, IRubyObject b, boolean eql) {
+            return eql ? eqlInternal(context, a, b) : equalInternal(context, a, b);
+        }
+
+        private static int leavesEquiv(ThreadContext context, Object[] a, Object[] b, int length, boolean eql) {
+            if (a == b) return SAME;
+            for (int i = 0; i < length; i++) {
+                if (!elementsEquiv(context, (IRubyObject) a[i], (IRubyObject) b[i], eql)) return DIFFERENT;
+            }
+            return SAME;
+        }
+
+        private static int nodesEquiv(ThreadContext context, Node a, Node b, int level, boolean eql) {
+            if (a == b) return SAME;
+            if (a.array.length != b.array.length || !Arrays.equals(a.sizes, b.sizes)) return SHAPE_MISMATCH;
+            if (level == 0) return leavesEquiv(context, a.array, b.array, a.array.length, eql);
+
+            for (int i = 0; i < a.array.length; i++) {
+                Node x = (Node) a.array[i], y = (Node) b.array[i];
+                if (x == null || y == null) {
+                    if (x != y) return SHAPE_MISMATCH;
+                    break;
+                }
+                int same = nodesEquiv(context, x, y, level - 5, eql);
+                if (same != SAME) return same;
+            }
+            return SAME;
+        }
+
+        /**
+         * The changes that turn this vector into other, as [range, values]
+         * hunks, each replacing the elements of this vector in range by
+         * values. Changed positions are grouped into runs; a longer other
+         * ends with an appending hunk (size...size) and a shorter one with a
+         * truncating hunk. Subtrees the two versions share are skipped
+         * without being looked into.
+         */
+        @JRubyMethod(name = "diff", required = 1)
+        public IRubyObject diff(ThreadContext context, IRubyObject obj) {
+            PersistentVector other = obj instanceof PersistentVector
+                    ? (PersistentVector) obj
+                    : (PersistentVector) create(context, getMetaClass(), obj.convertToArray().toJavaArray());
+            Hunks hunks = new Hunks(context);
+            int common = Math.min(cnt, other.cnt);
+
+            if (root().sizes == null && other.root().sizes == null) {
+                // A taller balanced tree starts with a subtree laid out
+                // exactly like the shorter tree's root.
+                int level = Math.min(shift, other.shift);
+                Node a = root(), b = other.root();
+                for (int l = shift; l > level; l -= 5) a = (Node) a.array[0];
+                for (int l = other.shift; l > level; l -= 5) b = (Node) b.array[0];
+                int limit = Math.min(Math.min(tailoff(), other.tailoff()), common);
+                diffNodes(context, a, b, level, 0, limit, hunks);
+                diffRange(context, other, limit, common, hunks);
+            } else {
+                diffRange(context, other, 0, common, hunks);
+            }
+            hunks.close();
+
+            if (other.cnt > cnt) {
+                hunks.start(cnt);
+                for (int i = cnt; i < other.cnt; i++) hunks.values.add(other.get(context, i));
+                hunks.close();
+            } else if (other.cnt < cnt) {
+                hunks.start(other.cnt);
+                hunks.end = cnt;
+                hunks.close();
+            }
+            return hunks.result;
+        }
+
+        static final class Hunks {
+            final ThreadContext context;
+            final RubyArray result;
+            RubyArray values;
+            int start = -1, end;
+
+            Hunks(ThreadContext context) {
+                this.context = context;
+                this.result = RubyArray.newArray(context.runtime);
+            }
+
+            void start(int i) {
+                start = end = i;
+                values = RubyArray.newArray(context.runtime);
+            }
+
+            void changed(int i, IRubyObject value) {
+                if (start < 0 || i != end) {
+                    close();
+                    start(i);
                 }
+                values.append(value);
+                end = i + 1;
+            }
+
+            void close() {
+                if (start < 0) return;
+                Ruby runtime = context.runtime;
+                RubyRange range = RubyRange.newRange(runtime, context, runtime.newFixnum(start), runtime.newFixnum(end), true);
+                result.append(RubyArray.newArray(runtime, range, values));
+                start = -1;
+            }
+        }
+
+        private static void diffNodes(ThreadContext context, Node a, Node b, int level, int base, int limit, Hunks hunks) {
+            if (a == b || base >= limit) return;
+            if (level == 0) {
+                for (int j = 0, n = Math.min(32, limit - base); j < n; j++) {
+                    IRubyObject x = (IRubyObject) a.array[j], y = (IRubyObject) b.array[j];
+                    if (x != y && !equalInternal(context, x, y)) hunks.changed(base + j, y);
+                }
+                return;
+            }
+            for (int i = 0; i < 32; i++) {
+                int childBase = base + (i << level);
+                if (childBase >= limit) break;
+                diffNodes(context, (Node) a.array[i], (Node) b.array[i], level - 5, childBase, limit, hunks);
+            }
+        }
+
+        private void diffRange(ThreadContext context, PersistentVector other, int from, int to, Hunks hunks) {
+            for (int i = from; i < to; i++) {
+                IRubyObject x = get(context, i), y = other.get(context, i);
+                if (x != y && !equalInternal(context, x, y)) hunks.changed(i, y);
             }
-            return runtime.getFalse();
         }
 
+        /**
+         * Applies [range, values] hunks as produced by diff, each replacing
+         * the elements in range by values. Ranges index this vector and must
+         * come in ascending order without overlapping. Same-length hunks and
+         * hunks at the end go through a single transient; a hunk that
+         * changes the length elsewhere is spliced in with slice and concat.
+         */
+        @JRubyMethod(name = "patch", required = 1)
+        public IRubyObject patch(ThreadContext context, IRubyObject obj) {
+            Ruby runtime = context.runtime;
+            RubyArray hunks = obj.convertToArray();
+            TransientVector ret = asTransient(context);
+            int delta = 0, last = 0;
+
+            for (int h = 0, size = hunks.getLength(); h < size; h++) {
+                RubyArray hunk = hunks.eltInternal(h).convertToArray();
+                if (hunk.getLength() != 2 || !(hunk.eltInternal(0) instanceof RubyRange))
+                    throw runtime.newArgumentError("hunk must be [range, values]");
+                RubyRange range = (RubyRange) hunk.eltInternal(0);
+                RubyArray values = hunk.eltInternal(1).convertToArray();
+                int start = RubyNumeric.num2int(range.first());
+                int end = RubyNumeric.num2int(range.last());
+                if (!range.exclude_end_p().isTrue()) end++;
+                if (start < last || end < start || end > cnt)
+                    throw runtime.newIndexError("hunk " + range.inspect() + " out of range or order");
+                last = end;
+                start += delta;
+                end += delta;
+                delta += values.getLength() - (end - start);
+
+                int n = values.getLength();
+                if (end - start == n) {
+                    for (int k = 0; k < n; k++)
+                        ret.assocN(context, runtime.newFixnum(start + k), values.eltInternal(k));
+                } else if (end == ret.cnt) {
+                    for (int k = start; k < end; k++) ret.pop(context);
+                    for (int k = 0; k < n; k++) ret.conj(context, values.eltInternal(k));
+                } else {
+                    PersistentVector v = ret.persistent(context, getMetaClass());
+                    PersistentVector spliced = (PersistentVector) v.slice(context, 0, start).concat(context, values);
+                    spliced = (PersistentVector) spliced.concat(context, v.slice(context, end, v.cnt));
+                    ret = spliced.asTransient(context);
+                }
+            }
+            return ret.persistent(context, getMetaClass());
+        }
     }
 
-    private static class TransientVector extends RubyObject {
+    @JRubyClass(name="TransientVector")
+    public static class TransientVector extends RubyObject {
         int cnt;
         int shift;
         Node root;
-        RubyArray tail;
+        Object[] tail;
+        RubyClass vectorClass;
 
 
         public TransientVector(Ruby runtime, RubyClass rubyClass) {
@@ -437,22 +1717,20 @@ public class PersistentVectorLibrary implements Library {
         public IRubyObject initialize(ThreadContext context, PersistentVector v) {
             this.cnt = v.cnt;
             this.shift = v.shift;
-            this.root = editableRoot(context, v.root);
-            this.tail =  v.tail.aryDup();
+            this.root = editableRoot(v.root());
+            this.tail = editableTail(v.tail);
+            this.vectorClass = v.getMetaClass();
             return this;
         }
 
-        static Node editableRoot(ThreadContext context, Node node){
-            return new Node(context.runtime, Node).initialize_params_arry(context, new AtomicReference<Thread>(Thread.currentThread()), node.array.aryDup());
+        static Node editableRoot(Node node){
+            return new Node(new AtomicReference<Thread>(Thread.currentThread()), node.array.clone(), node.sizes);
         }
 
-
-        private static Node newPath(ThreadContext context, AtomicReference<Thread> edit, int level, Node node) {
-            if (level == 0)
-                return node;
-            Node ret = new Node(context.runtime, Node).initialize_params(context, edit);
-            ret.array.store(0, newPath(context, edit, level - 5, node));
-            return  ret;
+        static Object[] editableTail(Object[] tl){
+            Object[] ret = new Object[32];
+            System.arraycopy(tl, 0, ret, 0, tl.length);
+            return ret;
         }
 
         void ensureEditable(){
@@ -464,14 +1742,14 @@ public class PersistentVectorLibrary implements Library {
             throw new IllegalAccessError("Transient used after persistent! call");
         }
 
-        Node ensureEditable(ThreadContext context, Node node){
+        Node ensureEditable(Node node){
             if(node.edit == root.edit)
                 return node;
-            return new Node(context.runtime, Node).initialize_params_arry(context, root.edit, node.array.aryDup());
+            return new Node(root.edit, node.array.clone(), node.sizes);
         }
 
-        private Node pushTail(ThreadContext context, int level, Node parent, Node tailnode){
-            parent = ensureEditable(context, parent);
+        private Node pushTail(int level, Node parent, Node tailnode){
+            parent = ensureEditable(parent);
             int subidx = ((cnt - 1) >>> level) & 0x01f;
             Node ret = parent;
             Node nodeToInsert;
@@ -481,46 +1759,82 @@ public class PersistentVectorLibrary implements Library {
             }
             else
             {
-                IRubyObject child = parent.array.entry(subidx);
-                nodeToInsert = (!child.isNil())?
-                        pushTail(context, level-5, (Node) child, tailnode)
-                        :newPath(context, root.edit,level-5, tailnode);
+                Node child = (Node) parent.array[subidx];
+                nodeToInsert = (child != null)?
+                        pushTail(level-5, child, tailnode)
+                        :newPath(root.edit,level-5, tailnode);
             }
-            ret.array.store(subidx, nodeToInsert);
+            ret.array[subidx] = nodeToInsert;
             return ret;
         }
 
         public PersistentVector persistent(ThreadContext context, RubyClass cls){
             ensureEditable();
-            Ruby runtime = context.runtime;
             root.edit.set(null);
-            RubyArray trimmedTail = (RubyArray) tail.subseq(0,  cnt-tailoff()).dup();
+            Object[] trimmedTail = new Object[cnt-tailoff()];
+            System.arraycopy(tail, 0, trimmedTail, 0, trimmedTail.length);
             return (PersistentVector) new PersistentVector(context.runtime, cls).initialize(context, cnt, shift, root, trimmedTail);
         }
 
+        @JRubyMethod(name = "persistent!")
+        public IRubyObject persistent(ThreadContext context) {
+            return persistent(context, vectorClass);
+        }
+
+        @JRubyMethod(name = "size", alias = "length")
+        public IRubyObject count(ThreadContext context) {
+            ensureEditable();
+            return JavaUtil.convertJavaToRuby(context.runtime, cnt);
+        }
+
+        @JRubyMethod(name = "get", alias = "[]", required=1)
+        public IRubyObject nth(ThreadContext context, IRubyObject i) {
+            return get(RubyNumeric.num2int(i));
+        }
+
+        IRubyObject get(int j) {
+            ensureEditable();
+            if(j >= 0 && j < cnt)
+            {
+                if(j >= tailoff())
+                    return (IRubyObject) tail[j - tailoff()];
+                if(root.sizes != null)
+                    return (IRubyObject) relaxedGet(root, shift, j);
+                return (IRubyObject) leafFor(root, shift, j)[j & 0x01f];
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        @JRubyMethod(name = {"conj!", "<<"}, required = 1)
         public IRubyObject conj(ThreadContext context, IRubyObject val) {
             ensureEditable();
             int i = cnt;
 
             if (i - tailoff() < 32) {
-                tail.store(i & 0x01f, val);
+                tail[i - tailoff()] = val;
                 ++cnt;
                 return this;
             }
 
             Node newroot;
-            Node tailnode = new Node(context.runtime, Node).initialize_params_arry(context, root.edit, tail);
-            tail = RubyArray.newArray(context.runtime, 32);
-            tail.store(0, val);
+            Node tailnode = new Node(root.edit, tail);
+            tail = new Object[32];
+            tail[0] = val;
             int newshift = shift;
 
-            if ((cnt >>> 5) > (1 << shift)) {
-                newroot = new Node(context.runtime, Node).initialize_params(context, root.edit);
-                newroot.array.store(0,root);
-                newroot.array.store(1, newPath(context, root.edit, shift, tailnode));
+            if (root.sizes != null) {
+                newroot = appendLeaf(root.edit, shift, root, tailnode);
+                if (newroot == null) {
+                    newroot = relaxedNode(root.edit, new Object[]{root, newPath(root.edit, shift, tailnode)}, shift + 5);
+                    newshift += 5;
+                }
+            } else if ((cnt >>> 5) > (1 << shift)) {
+                newroot = new Node(root.edit);
+                newroot.array[0] = root;
+                newroot.array[1] = newPath(root.edit, shift, tailnode);
                 newshift += 5;
             } else
-                newroot = pushTail(context, shift, root, tailnode);
+                newroot = pushTail(shift, root, tailnode);
 
             root = newroot;
             shift = newshift;
@@ -528,7 +1842,159 @@ public class PersistentVectorLibrary implements Library {
             return this;
         }
 
+        /** Appends len elements of src, filling the tail with array copies and pushing it whole. */
+        void conjAll(ThreadContext context, Object[] src, int from, int len) {
+            ensureEditable();
+            while (len > 0) {
+                int used = cnt - tailoff();
+                if (used == 32) {
+                    // conj pushes the full tail into the trie and starts a new one.
+                    conj(context, (IRubyObject) src[from++]);
+                    len--;
+                    continue;
+                }
+                int k = Math.min(32 - used, len);
+                System.arraycopy(src, from, tail, used, k);
+                cnt += k;
+                from += k;
+                len -= k;
+            }
+        }
+
+        @JRubyMethod(name = "set!", required=2)
+        public IRubyObject assocN(ThreadContext context, IRubyObject i, IRubyObject val) {
+            ensureEditable();
+            int j = RubyNumeric.num2int(i);
+            if(j >= 0 && j < cnt)
+            {
+                if(j >= tailoff())
+                    tail[j - tailoff()] = val;
+                else
+                    root = doAssoc(shift, root, j, val);
+                return this;
+            }
+            if(j == cnt)
+                return conj(context, val);
+            throw new IndexOutOfBoundsException();
+        }
+
+        @JRubyMethod(name = "pop!")
+        public IRubyObject pop(ThreadContext context) {
+            ensureEditable();
+            if(cnt == 0)
+                throw new IllegalStateException("Can't pop empty vector");
+            if(cnt == 1)
+            {
+                cnt = 0;
+                tail[0] = null;
+                return this;
+            }
+            if(cnt - tailoff() > 1)
+            {
+                tail[cnt - 1 - tailoff()] = null;
+                --cnt;
+                return this;
+            }
+
+            if(root.sizes != null)
+            {
+                Node leaf = lastLeaf(root, shift);
+                Node newroot = popLeaf(root.edit, shift, root, leaf.array.length);
+                int newshift = shift;
+                if(newroot == null)
+                {
+                    newroot = new Node(root.edit);
+                    newshift = 5;
+                }
+                while(newshift > 5 && childCount(newroot) == 1)
+                {
+                    newroot = ensureEditable((Node) newroot.array[0]);
+                    newshift -= 5;
+                }
+                root = newroot;
+                shift = newshift;
+                --cnt;
+                tail = editableTail(leaf.array);
+                return this;
+            }
+
+            Object[] newtail = editableArrayFor(cnt - 2);
+
+            Node newroot = popTail(shift, root);
+            int newshift = shift;
+            if(newroot == null)
+            {
+                newroot = new Node(root.edit);
+            }
+            if(shift > 5 && newroot.array[1] == null)
+            {
+                newroot = ensureEditable((Node) newroot.array[0]);
+                newshift -= 5;
+            }
+            root = newroot;
+            shift = newshift;
+            --cnt;
+            tail = newtail;
+            return this;
+        }
+
+        private Node popTail(int level, Node node){
+            node = ensureEditable(node);
+            int subidx = ((cnt - 2) >>> level) & 0x01f;
+            if(level > 5)
+            {
+                Node newchild = popTail(level - 5, (Node) node.array[subidx]);
+                if(newchild == null && subidx == 0)
+                    return null;
+                node.array[subidx] = newchild;
+                return node;
+            }
+            else if(subidx == 0)
+                return null;
+            node.array[subidx] = null;
+            return node;
+        }
+
+        private Node doAssoc(int level, Node node, int i, IRubyObject val){
+            node = ensureEditable(node);
+            if(level == 0)
+                node.array[i & 0x01f] = val;
+            else
+            {
+                int subidx = (i >>> level) & 0x01f;
+                if(node.sizes != null)
+                {
+                    while(node.sizes[subidx] <= i)
+                        subidx++;
+                    if(subidx > 0)
+                        i -= node.sizes[subidx - 1];
+                }
+                node.array[subidx] = doAssoc(level - 5, (Node) node.array[subidx], i, val);
+            }
+            return node;
+        }
+
+        /**
+         * Leaf array for index i, copying any node on the way down that this
+         * transient doesn't own yet so the result can be written in place.
+         */
+        private Object[] editableArrayFor(int i){
+            if(i >= tailoff())
+                return tail;
+            Node node = root;
+            for(int level = shift; level > 0; level -= 5)
+            {
+                int subidx = (i >>> level) & 0x01f;
+                Node child = ensureEditable((Node) node.array[subidx]);
+                node.array[subidx] = child;
+                node = child;
+            }
+            return node.array;
+        }
+
         final int tailoff(){
+            if (root.sizes != null)
+                return root.sizes[root.sizes.length - 1];
             if (cnt < 32)
                 return 0;
             return ((cnt-1) >>> 5) << 5;
@@ -0,0 +1,812 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.jruby.ext.persistent;
+
+import java.lang.Override;
+import java.lang.Thread;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyBignum;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.load.Library;
+
+import org.jruby.ext.persistent.PersistentVectorLibrary.Node;
+
+import static org.jruby.RubyEnumerator.enumeratorize;
+
+/**
+ * Persistent::LongVector and Persistent::DoubleVector, the vector trie with
+ * long[32] and double[32] leaves in place of Object[32]. Values are unboxed on
+ * the way in and boxed again only when handed back to Ruby, so sum, min, max
+ * and sort run over plain Java arrays. Anything that does not fit the element
+ * type turns the result into a Persistent::Vector.
+ *
+ * Leaves hang directly off the level 5 nodes, the way Clojure's gvec does it.
+ */
+public class PrimitiveVectorLibrary implements Library {
+    static public RubyClass LongVector;
+    static public RubyClass DoubleVector;
+    static public RubyClass TransientPrimitiveVector;
+
+    public void load(Ruby runtime, boolean wrap) {
+        RubyModule persistent = runtime.getOrCreateModule("Persistent");
+        LongVector = defineVector(runtime, persistent, "LongVector", LONGS);
+        DoubleVector = defineVector(runtime, persistent, "DoubleVector", DOUBLES);
+
+        RubyClass transientVector = persistent.defineOrGetClassUnder("TransientPrimitiveVector", runtime.getObject());
+        transientVector.setAllocator(ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        transientVector.defineAnnotatedMethods(TransientPrimitiveVector.class);
+        TransientPrimitiveVector = transientVector;
+    }
+
+    private static RubyClass defineVector(Ruby runtime, RubyModule persistent, String name, final ArrayManager am) {
+        RubyClass vectorClass = persistent.defineOrGetClassUnder(name, runtime.getObject());
+        vectorClass.setAllocator(new ObjectAllocator() {
+            @Override
+            public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
+                return new PrimitiveVector(ruby, rubyClass, am);
+            }
+        });
+        vectorClass.includeModule(runtime.getEnumerable());
+        vectorClass.defineAnnotatedMethods(PrimitiveVector.class);
+        return vectorClass;
+    }
+
+    /** Everything that depends on the leaf element type. */
+    abstract static class ArrayManager {
+        abstract Object array(int size);
+
+        abstract int alength(Object array);
+
+        abstract Object aclone(Object array);
+
+        abstract boolean accepts(IRubyObject val);
+
+        abstract IRubyObject box(Ruby runtime, Object array, int i);
+
+        abstract void unbox(Object array, int i, IRubyObject val);
+
+        abstract boolean equals(Object a, int i, Object b, int j);
+
+        abstract int hash(Object array, int i);
+
+        abstract void sort(Object array, int length);
+
+        abstract IRubyObject sum(Ruby runtime, PrimitiveVector vector);
+
+        /** Index of the smallest (or largest) element within array[0, length). */
+        abstract int extreme(Object array, int length, boolean max);
+    }
+
+    static final ArrayManager LONGS = new ArrayManager() {
+        Object array(int size) {
+            return new long[size];
+        }
+
+        int alength(Object array) {
+            return ((long[]) array).length;
+        }
+
+        Object aclone(Object array) {
+            return ((long[]) array).clone();
+        }
+
+        boolean accepts(IRubyObject val) {
+            return val instanceof RubyFixnum;
+        }
+
+        IRubyObject box(Ruby runtime, Object array, int i) {
+            return RubyFixnum.newFixnum(runtime, ((long[]) array)[i]);
+        }
+
+        void unbox(Object array, int i, IRubyObject val) {
+            ((long[]) array)[i] = ((RubyFixnum) val).getLongValue();
+        }
+
+        boolean equals(Object a, int i, Object b, int j) {
+            return ((long[]) a)[i] == ((long[]) b)[j];
+        }
+
+        int hash(Object array, int i) {
+            long v = ((long[]) array)[i];
+            return (int) (v ^ (v >>> 32));
+        }
+
+        void sort(Object array, int length) {
+            Arrays.sort((long[]) array, 0, length);
+        }
+
+        IRubyObject sum(Ruby runtime, PrimitiveVector vector) {
+            long sum = 0;
+            BigInteger big = null;
+            for (int base = 0; base < vector.cnt; base += 32) {
+                long[] leaf = (long[]) vector.arrayFor(base);
+                for (int j = 0, n = Math.min(leaf.length, vector.cnt - base); j < n; j++) {
+                    long v = leaf[j];
+                    long r = sum + v;
+                    if (((sum ^ r) & (v ^ r)) < 0) {
+                        big = (big == null ? BigInteger.valueOf(sum) : big.add(BigInteger.valueOf(sum))).add(BigInteger.valueOf(v));
+                        r = 0;
+                    }
+                    sum = r;
+                }
+            }
+            if (big == null)
+                return RubyFixnum.newFixnum(runtime, sum);
+            return RubyBignum.bignorm(runtime, big.add(BigInteger.valueOf(sum)));
+        }
+
+        int extreme(Object array, int length, boolean max) {
+            long[] a = (long[]) array;
+            int best = 0;
+            for (int i = 1; i < length; i++) {
+                if (max ? a[i] > a[best] : a[i] < a[best])
+                    best = i;
+            }
+            return best;
+        }
+    };
+
+    static final ArrayManager DOUBLES = new ArrayManager() {
+        Object array(int size) {
+            return new double[size];
+        }
+
+        int alength(Object array) {
+            return ((double[]) array).length;
+        }
+
+        Object aclone(Object array) {
+            return ((double[]) array).clone();
+        }
+
+        boolean accepts(IRubyObject val) {
+            return val instanceof RubyFloat || val instanceof RubyFixnum;
+        }
+
+        IRubyObject box(Ruby runtime, Object array, int i) {
+            return RubyFloat.newFloat(runtime, ((double[]) array)[i]);
+        }
+
+        void unbox(Object array, int i, IRubyObject val) {
+            ((double[]) array)[i] = RubyNumeric.num2dbl(val);
+        }
+
+        boolean equals(Object a, int i, Object b, int j) {
+            return ((double[]) a)[i] == ((double[]) b)[j];
+        }
+
+        int hash(Object array, int i) {
+            double d = ((double[]) array)[i];
+            // -0.0 == 0.0, so both must hash alike, as with Float#hash.
+            long v = Double.doubleToLongBits(d == 0.0 ? 0.0 : d);
+            return (int) (v ^ (v >>> 32));
+        }
+
+        void sort(Object array, int length) {
+            Arrays.sort((double[]) array, 0, length);
+        }
+
+        IRubyObject sum(Ruby runtime, PrimitiveVector vector) {
+            double sum = 0.0;
+            for (int base = 0; base < vector.cnt; base += 32) {
+                double[] leaf = (double[]) vector.arrayFor(base);
+                for (int j = 0, n = Math.min(leaf.length, vector.cnt - base); j < n; j++)
+                    sum += leaf[j];
+            }
+            return RubyFloat.newFloat(runtime, sum);
+        }
+
+        int extreme(Object array, int length, boolean max) {
+            double[] a = (double[]) array;
+            int best = 0;
+            for (int i = 1; i < length; i++) {
+                if (max ? a[i] > a[best] : a[i] < a[best])
+                    best = i;
+            }
+            return best;
+        }
+    };
+
+    static final AtomicReference<Thread> NOEDIT = new AtomicReference<Thread>(null);
+    static final Node EMPTY_NODE = new Node(NOEDIT);
+
+    @JRubyClass(name={"LongVector", "DoubleVector"})
+    public static class PrimitiveVector extends RubyObject {
+        final ArrayManager am;
+        int cnt;
+        int shift;
+        Node root;
+        Object tail;
+        private int hash;
+
+        public PrimitiveVector(Ruby runtime, RubyClass rubyClass, ArrayManager am) {
+            super(runtime, rubyClass);
+            this.am = am;
+        }
+
+        public IRubyObject initialize(ThreadContext context, int cnt, int shift, Node root, Object tail) {
+            this.cnt = cnt;
+            this.shift = shift;
+            this.root = root;
+            this.tail = tail;
+            return this;
+        }
+
+        PrimitiveVector newVector(ThreadContext context, int cnt, int shift, Node root, Object tail) {
+            return (PrimitiveVector) new PrimitiveVector(context.runtime, getMetaClass(), am).initialize(context, cnt, shift, root, tail);
+        }
+
+        static PrimitiveVector emptyVector(ThreadContext context, RubyClass cls) {
+            PrimitiveVector v = (PrimitiveVector) cls.allocate();
+            return (PrimitiveVector) v.initialize(context, 0, 5, EMPTY_NODE, v.am.array(0));
+        }
+
+        public TransientPrimitiveVector asTransient(ThreadContext context) {
+            return (TransientPrimitiveVector) new TransientPrimitiveVector(context.runtime, TransientPrimitiveVector).initialize(context, this);
+        }
+
+        int tailoff() {
+            return cnt - am.alength(tail);
+        }
+
+        Object arrayFor(int i) {
+            if (i >= 0 && i < cnt) {
+                if (i >= tailoff())
+                    return tail;
+                Object[] array = root.array;
+                for (int level = shift; level > 5; level -= 5)
+                    array = ((Node) array[(i >>> level) & 0x01f]).array;
+                return array[(i >>> 5) & 0x01f];
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        public IRubyObject get(ThreadContext context, int i) {
+            return am.box(context.runtime, arrayFor(i), i & 0x01f);
+        }
+
+        /** The same elements as a Persistent::Vector, for values this vector cannot hold. */
+        IRubyObject toGeneric(ThreadContext context) {
+            return PersistentVectorLibrary.PersistentVector.callMethod(context, "[]", toArray(context));
+        }
+
+        IRubyObject[] toArray(ThreadContext context) {
+            Ruby runtime = context.runtime;
+            IRubyObject[] array = new IRubyObject[cnt];
+            for (int base = 0; base < cnt; base += 32) {
+                Object leaf = arrayFor(base);
+                for (int j = 0, n = Math.min(32, cnt - base); j < n; j++)
+                    array[base + j] = am.box(runtime, leaf, j);
+            }
+            return array;
+        }
+
+        @JRubyMethod(name = "[]", rest = true, meta = true)
+        public static IRubyObject create(ThreadContext context, IRubyObject cls, IRubyObject[] items) {
+            PrimitiveVector empty = emptyVector(context, (RubyClass) cls);
+            for (IRubyObject item : items) {
+                if (!empty.am.accepts(item))
+                    return PersistentVectorLibrary.PersistentVector.callMethod(context, "[]", items);
+            }
+            TransientPrimitiveVector ret = empty.asTransient(context);
+            for (IRubyObject item : items)
+                ret.conj(context, item);
+            return ret.persistent(context, (RubyClass) cls);
+        }
+
+        @JRubyMethod(name = "size", alias = "length")
+        public IRubyObject count(ThreadContext context) {
+            return JavaUtil.convertJavaToRuby(context.runtime, cnt);
+        }
+
+        @JRubyMethod(name = "empty?")
+        public IRubyObject isEmpty(ThreadContext context) {
+            return RubyBoolean.newBoolean(context.runtime, cnt == 0);
+        }
+
+        @JRubyMethod(name = {"get", "[]"}, required = 1)
+        public IRubyObject nth(ThreadContext context, IRubyObject i) {
+            return get(context, RubyNumeric.num2int(i));
+        }
+
+        @JRubyMethod
+        public IRubyObject each(ThreadContext context, Block block) {
+            if (!block.isGiven()) return enumeratorize(context.runtime, this, "each");
+
+            Ruby runtime = context.runtime;
+            for (int base = 0; base < cnt; base += 32) {
+                Object leaf = arrayFor(base);
+                for (int j = 0, n = Math.min(32, cnt - base); j < n; j++)
+                    block.yield(context, am.box(runtime, leaf, j));
+            }
+            return this;
+        }
+
+        @JRubyMethod(name = {"to_a", "to_ary"})
+        public IRubyObject to_a(ThreadContext context) {
+            return RubyArray.newArrayNoCopy(context.runtime, toArray(context));
+        }
+
+        @JRubyMethod(name = "to_vector")
+        public IRubyObject to_vector(ThreadContext context) {
+            return toGeneric(context);
+        }
+
+        @JRubyMethod(name = "inspect")
+        public IRubyObject inspect(ThreadContext context) {
+            String className = getMetaClass().getRealClass().getName();
+            return context.runtime.newString(className + to_a(context).inspect());
+        }
+
+        private Node newPath(AtomicReference<Thread> edit, int level, Object leaf) {
+            Node ret = new Node(edit);
+            ret.array[0] = level == 5 ? leaf : newPath(edit, level - 5, leaf);
+            return ret;
+        }
+
+        private Node pushTail(int level, Node parent, Object leaf) {
+            int subidx = ((cnt - 1) >>> level) & 0x01f;
+            Node ret = new Node(parent.edit, parent.array.clone());
+            Object nodeToInsert;
+            if (level == 5) {
+                nodeToInsert = leaf;
+            } else {
+                Node child = (Node) parent.array[subidx];
+                nodeToInsert = (child != null) ? pushTail(level - 5, child, leaf) : newPath(root.edit, level - 5, leaf);
+            }
+            ret.array[subidx] = nodeToInsert;
+            return ret;
+        }
+
+        @JRubyMethod(name = {"add", "append"}, required = 1)
+        public IRubyObject add(ThreadContext context, IRubyObject val) {
+            if (!am.accepts(val))
+                return toGeneric(context).callMethod(context, "add", val);
+
+            int tailLength = am.alength(tail);
+            if (tailLength < 32) {
+                Object newTail = am.array(tailLength + 1);
+                System.arraycopy(tail, 0, newTail, 0, tailLength);
+                am.unbox(newTail, tailLength, val);
+                return newVector(context, cnt + 1, shift, root, newTail);
+            }
+
+            Node newroot;
+            int newshift = shift;
+            if ((cnt >>> 5) > (1 << shift)) {
+                newroot = new Node(root.edit);
+                newroot.array[0] = root;
+                newroot.array[1] = newPath(root.edit, shift, tail);
+                newshift += 5;
+            } else {
+                newroot = pushTail(shift, root, tail);
+            }
+            Object newTail = am.array(1);
+            am.unbox(newTail, 0, val);
+            return newVector(context, cnt + 1, newshift, newroot, newTail);
+        }
+
+        private Node doSet(int level, Node node, int i, IRubyObject val) {
+            Node ret = new Node(node.edit, node.array.clone());
+            int subidx = (i >>> level) & 0x01f;
+            if (level == 5) {
+                Object leaf = am.aclone(node.array[subidx]);
+                am.unbox(leaf, i & 0x01f, val);
+                ret.array[subidx] = leaf;
+            } else {
+                ret.array[subidx] = doSet(level - 5, (Node) node.array[subidx], i, val);
+            }
+            return ret;
+        }
+
+        @JRubyMethod(name = "set", required = 2)
+        public IRubyObject set(ThreadContext context, IRubyObject i, IRubyObject val) {
+            int j = RubyNumeric.num2int(i);
+            if (!am.accepts(val) && j >= 0 && j <= cnt)
+                return toGeneric(context).callMethod(context, "set", new IRubyObject[] {i, val});
+            if (j >= 0 && j < cnt) {
+                if (j >= tailoff()) {
+                    Object newTail = am.aclone(tail);
+                    am.unbox(newTail, j - tailoff(), val);
+                    return newVector(context, cnt, shift, root, newTail);
+                }
+                return newVector(context, cnt, shift, doSet(shift, root, j, val), tail);
+            }
+
+            if (j == cnt)
+                return add(context, val);
+
+            throw new IndexOutOfBoundsException();
+        }
+
+        private Node popTail(int level, Node node) {
+            int subidx = ((cnt - 2) >>> level) & 0x01f;
+            if (level > 5) {
+                Node newchild = popTail(level - 5, (Node) node.array[subidx]);
+                if (newchild == null && subidx == 0)
+                    return null;
+                Node ret = new Node(root.edit, node.array.clone());
+                ret.array[subidx] = newchild;
+                return ret;
+            }
+            if (subidx == 0)
+                return null;
+            Node ret = new Node(root.edit, node.array.clone());
+            ret.array[subidx] = null;
+            return ret;
+        }
+
+        @JRubyMethod(name = "pop")
+        public IRubyObject pop(ThreadContext context) {
+            if (cnt == 0)
+                throw new IllegalStateException("Can't pop empty vector");
+            if (cnt == 1)
+                return emptyVector(context, getMetaClass());
+            int tailLength = am.alength(tail);
+            if (tailLength > 1) {
+                Object newTail = am.array(tailLength - 1);
+                System.arraycopy(tail, 0, newTail, 0, tailLength - 1);
+                return newVector(context, cnt - 1, shift, root, newTail);
+            }
+            Object newtail = arrayFor(cnt - 2);
+
+            Node newroot = popTail(shift, root);
+            int newshift = shift;
+            if (newroot == null)
+                newroot = EMPTY_NODE;
+            if (shift > 5 && newroot.array[1] == null) {
+                newroot = (Node) newroot.array[0];
+                newshift -= 5;
+            }
+            return newVector(context, cnt - 1, newshift, newroot, newtail);
+        }
+
+        @JRubyMethod(name = "sum")
+        public IRubyObject sum(ThreadContext context) {
+            return am.sum(context.runtime, this);
+        }
+
+        private IRubyObject extreme(ThreadContext context, Block block, String name, boolean max) {
+            if (block.isGiven())
+                return to_a(context).callMethod(context, name, IRubyObject.NULL_ARRAY, block);
+            if (cnt == 0)
+                return context.runtime.getNil();
+            Object bestLeaf = null;
+            int bestIndex = 0;
+            Object candidates = am.array(2);
+            for (int base = 0; base < cnt; base += 32) {
+                Object leaf = arrayFor(base);
+                int j = am.extreme(leaf, Math.min(32, cnt - base), max);
+                if (bestLeaf == null) {
+                    bestLeaf = leaf;
+                    bestIndex = j;
+                } else {
+                    System.arraycopy(bestLeaf, bestIndex, candidates, 0, 1);
+                    System.arraycopy(leaf, j, candidates, 1, 1);
+                    if (am.extreme(candidates, 2, max) == 1) {
+                        bestLeaf = leaf;
+                        bestIndex = j;
+                    }
+                }
+            }
+            return am.box(context.runtime, bestLeaf, bestIndex);
+        }
+
+        @JRubyMethod(name = "min")
+        public IRubyObject min(ThreadContext context, Block block) {
+            return extreme(context, block, "min", false);
+        }
+
+        @JRubyMethod(name = "max")
+        public IRubyObject max(ThreadContext context, Block block) {
+            return extreme(context, block, "max", true);
+        }
+
+        @JRubyMethod(name = "sort")
+        public IRubyObject sort(ThreadContext context, Block block) {
+            if (block.isGiven()) {
+                IRubyObject sorted = to_a(context).callMethod(context, "sort", IRubyObject.NULL_ARRAY, block);
+                return getMetaClass().callMethod(context, "[]", ((RubyArray) sorted).toJavaArray());
+            }
+            Object flat = am.array(cnt);
+            for (int base = 0; base < cnt; base += 32)
+                System.arraycopy(arrayFor(base), 0, flat, base, Math.min(32, cnt - base));
+            am.sort(flat, cnt);
+            TransientPrimitiveVector ret = emptyVector(context, getMetaClass()).asTransient(context);
+            ret.conjAll(flat, cnt);
+            return ret.persistent(context, getMetaClass());
+        }
+
+        @JRubyMethod(name = "==", required = 1)
+        public IRubyObject op_equal(ThreadContext context, IRubyObject obj) {
+            Ruby runtime = context.runtime;
+            if (obj instanceof PrimitiveVector && ((PrimitiveVector) obj).am == am)
+                return RubyBoolean.newBoolean(runtime, equiv((PrimitiveVector) obj));
+            if (!obj.respondsTo("to_ary"))
+                return runtime.getFalse();
+            return to_a(context).callMethod(context, "==", obj.convertToArray());
+        }
+
+        @JRubyMethod(name = "eql?", required = 1)
+        public IRubyObject eql(ThreadContext context, IRubyObject obj) {
+            return RubyBoolean.newBoolean(context.runtime, obj instanceof PrimitiveVector && ((PrimitiveVector) obj).am == am && equiv((PrimitiveVector) obj));
+        }
+
+        boolean equiv(PrimitiveVector other) {
+            if (this == other) return true;
+            if (cnt != other.cnt) return false;
+            for (int base = 0; base < cnt; base += 32) {
+                Object a = arrayFor(base), b = other.arrayFor(base);
+                if (a == b) continue;
+                for (int j = 0, n = Math.min(32, cnt - base); j < n; j++) {
+                    if (!am.equals(a, j, b, j)) return false;
+                }
+            }
+            return true;
+        }
+
+        @JRubyMethod(name = "hash")
+        public RubyFixnum hash(ThreadContext context) {
+            int h = hash;
+            if (h == 0) {
+                h = 1;
+                for (int base = 0; base < cnt; base += 32) {
+                    Object leaf = arrayFor(base);
+                    for (int j = 0, n = Math.min(32, cnt - base); j < n; j++)
+                        h = 31 * h + am.hash(leaf, j);
+                }
+                hash = h;
+            }
+            return context.runtime.newFixnum(h);
+        }
+
+        @JRubyMethod(name = "transient")
+        public IRubyObject transient_(ThreadContext context) {
+            return asTransient(context);
+        }
+
+        @JRubyMethod(name = "with_mutations")
+        public IRubyObject withMutations(ThreadContext context, Block block) {
+            TransientPrimitiveVector ret = asTransient(context);
+            block.yield(context, ret);
+            return ret.persistent(context);
+        }
+    }
+
+    /**
+     * Shared by both element types. Once a value of the wrong type arrives the
+     * transient carries on as a plain TransientVector and persistent! returns a
+     * Persistent::Vector.
+     */
+    @JRubyClass(name="TransientPrimitiveVector")
+    public static class TransientPrimitiveVector extends RubyObject {
+        ArrayManager am;
+        int cnt;
+        int shift;
+        Node root;
+        Object tail;
+        RubyClass vectorClass;
+        IRubyObject generic;
+
+        public TransientPrimitiveVector(Ruby runtime, RubyClass rubyClass) {
+            super(runtime, rubyClass);
+        }
+
+        public IRubyObject initialize(ThreadContext context, PrimitiveVector v) {
+            this.am = v.am;
+            this.cnt = v.cnt;
+            this.shift = v.shift;
+            this.root = editableRoot(v.root);
+            this.tail = am.array(32);
+            System.arraycopy(v.tail, 0, tail, 0, am.alength(v.tail));
+            this.vectorClass = v.getMetaClass();
+            return this;
+        }
+
+        static Node editableRoot(Node node) {
+            return new Node(new AtomicReference<Thread>(Thread.currentThread()), node.array.clone());
+        }
+
+        void ensureEditable() {
+            Thread owner = root.edit.get();
+            if (owner == Thread.currentThread())
+                return;
+            if (owner != null)
+                throw new IllegalAccessError("Transient used by non-owner thread");
+            throw new IllegalAccessError("Transient used after persistent! call");
+        }
+
+        Node ensureEditable(Node node) {
+            if (node.edit == root.edit)
+                return node;
+            return new Node(root.edit, node.array.clone());
+        }
+
+        int tailoff() {
+            if (cnt < 32)
+                return 0;
+            return ((cnt - 1) >>> 5) << 5;
+        }
+
+        private Node newPath(int level, Object leaf) {
+            Node ret = new Node(root.edit);
+            ret.array[0] = level == 5 ? leaf : newPath(level - 5, leaf);
+            return ret;
+        }
+
+        private Node pushTail(int level, Node parent, Object leaf) {
+            int subidx = ((cnt - 1) >>> level) & 0x01f;
+            Node ret = ensureEditable(parent);
+            Object nodeToInsert;
+            if (level == 5) {
+                nodeToInsert = leaf;
+            } else {
+                Node child = (Node) ret.array[subidx];
+                nodeToInsert = (child != null) ? pushTail(level - 5, child, leaf) : newPath(level - 5, leaf);
+            }
+            ret.array[subidx] = nodeToInsert;
+            return ret;
+        }
+
+        /** Pushes the full tail into the trie and starts a new one. */
+        private void pushFullTail() {
+            Object leaf = tail;
+            tail = am.array(32);
+            if ((cnt >>> 5) > (1 << shift)) {
+                Node newroot = new Node(root.edit);
+                newroot.array[0] = root;
+                newroot.array[1] = newPath(shift, leaf);
+                root = newroot;
+                shift += 5;
+            } else {
+                root = pushTail(shift, root, leaf);
+            }
+        }
+
+        private IRubyObject fallBack(ThreadContext context) {
+            generic = persistent(context, vectorClass).toGeneric(context).callMethod(context, "transient");
+            return generic;
+        }
+
+        @JRubyMethod(name = {"conj!", "<<"}, required = 1)
+        public IRubyObject conj(ThreadContext context, IRubyObject val) {
+            if (generic != null) {
+                generic.callMethod(context, "conj!", val);
+                return this;
+            }
+            ensureEditable();
+            if (!am.accepts(val)) {
+                fallBack(context).callMethod(context, "conj!", val);
+                return this;
+            }
+            if (cnt - tailoff() == 32)
+                pushFullTail();
+            am.unbox(tail, cnt & 0x01f, val);
+            cnt++;
+            return this;
+        }
+
+        /** Appends length unboxed elements, copying a leaf at a time. */
+        void conjAll(Object values, int length) {
+            ensureEditable();
+            int i = 0;
+            while (i < length) {
+                if (cnt - tailoff() == 32)
+                    pushFullTail();
+                int off = cnt & 0x01f;
+                int n = Math.min(32 - off, length - i);
+                System.arraycopy(values, i, tail, off, n);
+                cnt += n;
+                i += n;
+            }
+        }
+
+        @JRubyMethod(name = "set!", required = 2)
+        public IRubyObject assocN(ThreadContext context, IRubyObject i, IRubyObject val) {
+            if (generic != null) {
+                generic.callMethod(context, "set!", new IRubyObject[] {i, val});
+                return this;
+            }
+            ensureEditable();
+            int j = RubyNumeric.num2int(i);
+            if (j == cnt)
+                return conj(context, val);
+            if (j < 0 || j > cnt)
+                throw new IndexOutOfBoundsException();
+            if (!am.accepts(val)) {
+                fallBack(context).callMethod(context, "set!", new IRubyObject[] {i, val});
+                return this;
+            }
+            if (j >= tailoff()) {
+                am.unbox(tail, j & 0x01f, val);
+                return this;
+            }
+            root = doAssoc(shift, root, j, val);
+            return this;
+        }
+
+        // Leaves carry no edit token, so one in the trie is copied on every
+        // set!; only the nodes above it are updated in place.
+        private Node doAssoc(int level, Node node, int i, IRubyObject val) {
+            Node ret = ensureEditable(node);
+            int subidx = (i >>> level) & 0x01f;
+            if (level == 5) {
+                Object leaf = am.aclone(ret.array[subidx]);
+                am.unbox(leaf, i & 0x01f, val);
+                ret.array[subidx] = leaf;
+            } else {
+                ret.array[subidx] = doAssoc(level - 5, (Node) ret.array[subidx], i, val);
+            }
+            return ret;
+        }
+
+        @JRubyMethod(name = "get", alias = "[]", required = 1)
+        public IRubyObject nth(ThreadContext context, IRubyObject i) {
+            if (generic != null)
+                return generic.callMethod(context, "get", i);
+            ensureEditable();
+            int j = RubyNumeric.num2int(i);
+            if (j < 0 || j >= cnt)
+                throw new IndexOutOfBoundsException();
+            if (j >= tailoff())
+                return am.box(context.runtime, tail, j & 0x01f);
+            Object[] array = root.array;
+            for (int level = shift; level > 5; level -= 5)
+                array = ((Node) array[(j >>> level) & 0x01f]).array;
+            return am.box(context.runtime, array[(j >>> 5) & 0x01f], j & 0x01f);
+        }
+
+        @JRubyMethod(name = "size", alias = "length")
+        public IRubyObject count(ThreadContext context) {
+            if (generic != null)
+                return generic.callMethod(context, "size");
+            ensureEditable();
+            return JavaUtil.convertJavaToRuby(context.runtime, cnt);
+        }
+
+        public PrimitiveVector persistent(ThreadContext context, RubyClass cls) {
+            ensureEditable();
+            root.edit.set(null);
+            int tailLength = cnt - tailoff();
+            Object trimmedTail = am.array(tailLength);
+            System.arraycopy(tail, 0, trimmedTail, 0, tailLength);
+            PrimitiveVector ret = (PrimitiveVector) cls.allocate();
+            return (PrimitiveVector) ret.initialize(context, cnt, shift, root, trimmedTail);
+        }
+
+        @JRubyMethod(name = "persistent!")
+        public IRubyObject persistent(ThreadContext context) {
+            if (generic != null)
+                return generic.callMethod(context, "persistent!");
+            return persistent(context, vectorClass);
+        }
+    }
+}
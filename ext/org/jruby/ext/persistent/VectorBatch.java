@@ -0,0 +1,183 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.jruby.ext.persistent;
+
+import java.util.Arrays;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyHash;
+import org.jruby.RubyNumeric;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import org.jruby.ext.persistent.PersistentVectorLibrary.Node;
+import org.jruby.ext.persistent.PersistentVectorLibrary.PersistentVector;
+
+/**
+ * Vector#set_all and Vector#update_at, many updates in one pass.
+ *
+ * The indices are sorted, then the trie is walked once from the root,
+ * descending only into children that some index falls under. Every node on
+ * the way is copied exactly once however many of the updates go through
+ * it, where k calls to set would copy the nodes near the root k times.
+ */
+public class VectorBatch {
+    private VectorBatch() {}
+
+    /**
+     * A copy with the values of a Hash of index => value, or an Array of
+     * [index, value] pairs, set. Later pairs win over earlier ones for the
+     * same index.
+     */
+    @JRubyMethod(name = "set_all", required = 1)
+    public static IRubyObject set_all(ThreadContext context, IRubyObject self, IRubyObject updates) {
+        final PersistentVector vector = (PersistentVector) self;
+        final Ruby runtime = context.runtime;
+        final Batch batch;
+        if (updates instanceof RubyHash) {
+            RubyHash hash = (RubyHash) updates;
+            batch = new Batch(hash.size(), null);
+            hash.visitAll(new RubyHash.Visitor() {
+                public void visit(IRubyObject key, IRubyObject value) {
+                    batch.add(runtime, vector, key, value);
+                }
+            });
+        } else {
+            RubyArray pairs = updates.convertToArray();
+            batch = new Batch(pairs.getLength(), null);
+            for (int k = 0; k < pairs.getLength(); k++) {
+                RubyArray pair = pairs.eltInternal(k).convertToArray();
+                if (pair.getLength() != 2)
+                    throw runtime.newArgumentError("update must be [index, value]");
+                batch.add(runtime, vector, pair.eltInternal(0), pair.eltInternal(1));
+            }
+        }
+        return batch.apply(context, vector);
+    }
+
+    /**
+     * A copy with the element at each index replaced by the block's result
+     * for it. The block is called in ascending index order, and an index
+     * given twice gets the block twice, the second time with the first
+     * result.
+     */
+    @JRubyMethod(name = "update_at", required = 1)
+    public static IRubyObject update_at(ThreadContext context, IRubyObject self, IRubyObject indices, Block block) {
+        if (!block.isGiven())
+            throw context.runtime.newLocalJumpErrorNoBlock();
+        PersistentVector vector = (PersistentVector) self;
+        RubyArray array = indices.convertToArray();
+        Batch batch = new Batch(array.getLength(), block);
+        for (int k = 0; k < array.getLength(); k++)
+            batch.add(context.runtime, vector, array.eltInternal(k), null);
+        return batch.apply(context, vector);
+    }
+
+    /**
+     * The pending updates. Each is packed into a long as index << 32 |
+     * position, so sorting the longs orders them by index and keeps the
+     * updates to one index in the order they were given.
+     */
+    static final class Batch {
+        final long[] order;
+        final IRubyObject[] values;
+        final Block block;
+        int n;
+
+        Batch(int capacity, Block block) {
+            this.order = new long[capacity];
+            this.values = block == null ? new IRubyObject[capacity] : null;
+            this.block = block;
+        }
+
+        void add(Ruby runtime, PersistentVector vector, IRubyObject index, IRubyObject value) {
+            int i = RubyNumeric.num2int(index);
+            if (i < 0 || i >= vector.cnt)
+                throw runtime.newIndexError("index " + i + " out of vector");
+            order[n] = ((long) i << 32) | n;
+            if (values != null)
+                values[n] = value;
+            n++;
+        }
+
+        static int index(long update) {
+            return (int) (update >>> 32);
+        }
+
+        IRubyObject apply(ThreadContext context, PersistentVector vector) {
+            if (n == 0)
+                return vector;
+            if (VectorStats.ENABLED) VectorStats.recordShift(vector.shift);
+            Arrays.sort(order, 0, n);
+
+            // Updates below tailoff go into the trie, the rest into the tail.
+            int off = vector.tailoff();
+            int split = 0;
+            while (split < n && index(order[split]) < off)
+                split++;
+
+            Node root = vector.root();
+            if (split > 0)
+                root = update(context, vector.shift, root, 0, 0, split);
+            Object[] tail = vector.tail;
+            if (split < n) {
+                tail = tail.clone();
+                updateLeaf(context, tail, off, split, n);
+            }
+            return new PersistentVector(context.runtime, vector.getMetaClass()).initialize(context, vector.cnt, vector.shift, root, tail);
+        }
+
+        /** A copy of node, which holds the elements from base on, with updates [from, to) applied. */
+        private Node update(ThreadContext context, int level, Node node, int base, int from, int to) {
+            if (VectorStats.ENABLED) VectorStats.SET_COPIES.increment();
+            Node ret = new Node(node.edit, node.array.clone(), node.sizes);
+            if (level == 0) {
+                updateLeaf(context, ret.array, base, from, to);
+                return ret;
+            }
+            int k = from;
+            while (k < to) {
+                int i = index(order[k]) - base;
+                int subidx = (i >>> level) & 0x01f;
+                long childBase, childEnd;
+                if (node.sizes != null) {
+                    while (node.sizes[subidx] <= i)
+                        subidx++;
+                    childBase = base + (subidx > 0 ? node.sizes[subidx - 1] : 0);
+                    childEnd = base + node.sizes[subidx];
+                } else {
+                    childBase = base + ((long) subidx << level);
+                    childEnd = childBase + (1L << level);
+                }
+                int end = k + 1;
+                while (end < to && index(order[end]) < childEnd)
+                    end++;
+                ret.array[subidx] = update(context, level - 5, (Node) node.array[subidx], (int) childBase, k, end);
+                k = end;
+            }
+            return ret;
+        }
+
+        private void updateLeaf(ThreadContext context, Object[] leaf, int base, int from, int to) {
+            for (int k = from; k < to; k++) {
+                int j = index(order[k]) - base;
+                leaf[j] = block == null
+                        ? values[(int) order[k]]
+                        : block.yield(context, (IRubyObject) leaf[j]);
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.jruby.ext.persistent;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+import org.jruby.ext.persistent.PersistentVectorLibrary.ChunkIterator;
+import org.jruby.ext.persistent.PersistentVectorLibrary.Node;
+import org.jruby.ext.persistent.PersistentVectorLibrary.PersistentVector;
+
+/**
+ * Vector#dump(path) and Vector.load(path), a compact binary image of a vector.
+ *
+ * The file holds a header (magic, version, cnt, shift) followed by the
+ * elements in 32-element leaves, each tagged with how it is encoded: leaves
+ * of Fixnums, Floats or UTF-8 Strings are written as raw ints, longs,
+ * doubles or bytes, and anything else goes through Marshal one leaf at a
+ * time. Loading maps the file and rebuilds the trie bottom-up from the
+ * leaves, without conj'ing element by element.
+ */
+public class VectorDump {
+    static final int MAGIC = 0x50564543; // "PVEC"
+    static final byte VERSION = 1;
+
+    static final byte TAG_INT = 1;
+    static final byte TAG_LONG = 2;
+    static final byte TAG_DOUBLE = 3;
+    static final byte TAG_STRING = 4;
+    static final byte TAG_MARSHAL = 5;
+
+    private VectorDump() {}
+
+    @JRubyMethod(name = "dump", required = 1)
+    public static IRubyObject dump(ThreadContext context, IRubyObject self, IRubyObject path) {
+        PersistentVector vector = (PersistentVector) self;
+        Ruby runtime = context.runtime;
+        try {
+            FileOutputStream out = new FileOutputStream(path.convertToString().toString());
+            try {
+                Writer writer = new Writer(out.getChannel());
+                int leafCount = vector.cnt == 0 ? 0 : (vector.cnt - 1) >>> 5;
+                writer.ensure(13);
+                writer.buf.putInt(MAGIC).put(VERSION).putInt(vector.cnt).putInt(PersistentVectorLibrary.shiftFor(leafCount));
+
+                // Relaxed vectors have short leaves, so elements are restaged
+                // into full 32-element leaves on the way out.
+                Object[] leaf = new Object[32];
+                int n = 0;
+                for (ChunkIterator it = vector.chunks(); it.next(); ) {
+                    int from = 0;
+                    while (from < it.length) {
+                        int count = Math.min(32 - n, it.length - from);
+                        System.arraycopy(it.chunk, from, leaf, n, count);
+                        n += count;
+                        from += count;
+                        if (n == 32) {
+                            writeLeaf(context, writer, leaf, n);
+                            n = 0;
+                        }
+                    }
+                }
+                if (n > 0)
+                    writeLeaf(context, writer, leaf, n);
+                writer.flush();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw runtime.newIOErrorFromException(e);
+        }
+        return self;
+    }
+
+    @JRubyMethod(name = "load", required = 1, meta = true)
+    public static IRubyObject load(ThreadContext context, IRubyObject cls, IRubyObject path) {
+        Ruby runtime = context.runtime;
+        MappedByteBuffer buf;
+        try {
+            RandomAccessFile file = new RandomAccessFile(path.convertToString().toString(), "r");
+            try {
+                FileChannel channel = file.getChannel();
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            throw runtime.newIOErrorFromException(e);
+        }
+
+        try {
+            if (buf.remaining() < 13 || buf.getInt() != MAGIC || buf.get() != VERSION)
+                throw runtime.newArgumentError("not a Persistent::Vector dump");
+            int cnt = buf.getInt();
+            int shift = buf.getInt();
+            int leafCount = cnt == 0 ? 0 : (cnt - 1) >>> 5;
+            if (cnt < 0 || shift != PersistentVectorLibrary.shiftFor(leafCount))
+                throw runtime.newArgumentError("corrupt Persistent::Vector dump");
+
+            Node[] leaves = new Node[leafCount];
+            for (int i = 0; i < leafCount; i++)
+                leaves[i] = new Node(PersistentVector.NOEDIT, readLeaf(context, buf, 32));
+            Object[] tail = cnt == 0 ? PersistentVector.EMPTY_TAIL : readLeaf(context, buf, cnt - (leafCount << 5));
+            return PersistentVector.fromLeaves(context, (RubyClass) cls, leaves, leafCount, tail, cnt);
+        } catch (BufferUnderflowException e) {
+            throw runtime.newArgumentError("truncated Persistent::Vector dump");
+        }
+    }
+
+    /** A write buffer drained to the channel whenever the next piece would not fit. */
+    static final class Writer {
+        final FileChannel channel;
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void ensure(int bytes) throws IOException {
+            if (buf.remaining() >= bytes)
+                return;
+            flush();
+            if (buf.capacity() < bytes)
+                buf = ByteBuffer.allocate(bytes);
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining())
+                channel.write(buf);
+            buf.clear();
+        }
+    }
+
+    private static byte tagFor(Object[] leaf, int n) {
+        boolean ints = true, longs = true, doubles = true, strings = true;
+        for (int i = 0; i < n; i++) {
+            Object v = leaf[i];
+            if (v instanceof RubyFixnum) {
+                long l = ((RubyFixnum) v).getLongValue();
+                ints &= l == (int) l;
+                doubles = strings = false;
+            } else if (v instanceof RubyFloat) {
+                ints = longs = strings = false;
+            } else if (v instanceof RubyString && ((RubyString) v).getEncoding() == UTF8Encoding.INSTANCE
+                    && ((RubyString) v).getMetaClass() == ((RubyString) v).getRuntime().getString()) {
+                ints = longs = doubles = false;
+            } else {
+                return TAG_MARSHAL;
+            }
+        }
+        if (ints && longs) return TAG_INT;
+        if (longs) return TAG_LONG;
+        if (doubles) return TAG_DOUBLE;
+        if (strings) return TAG_STRING;
+        return TAG_MARSHAL;
+    }
+
+    private static void writeLeaf(ThreadContext context, Writer w, Object[] leaf, int n) throws IOException {
+        byte tag = tagFor(leaf, n);
+        w.ensure(5);
+        w.buf.put(tag).putInt(n);
+        switch (tag) {
+            case TAG_INT:
+                w.ensure(4 * n);
+                for (int i = 0; i < n; i++)
+                    w.buf.putInt((int) ((RubyFixnum) leaf[i]).getLongValue());
+                break;
+            case TAG_LONG:
+                w.ensure(8 * n);
+                for (int i = 0; i < n; i++)
+                    w.buf.putLong(((RubyFixnum) leaf[i]).getLongValue());
+                break;
+            case TAG_DOUBLE:
+                w.ensure(8 * n);
+                for (int i = 0; i < n; i++)
+                    w.buf.putDouble(((RubyFloat) leaf[i]).getDoubleValue());
+                break;
+            case TAG_STRING:
+                for (int i = 0; i < n; i++) {
+                    ByteList bytes = ((RubyString) leaf[i]).getByteList();
+                    w.ensure(4 + bytes.getRealSize());
+                    w.buf.putInt(bytes.getRealSize()).put(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+                }
+                break;
+            default:
+                IRubyObject[] elements = new IRubyObject[n];
+                System.arraycopy(leaf, 0, elements, 0, n);
+                Ruby runtime = context.runtime;
+                ByteList bytes = runtime.getModule("Marshal")
+                        .callMethod(context, "dump", RubyArray.newArrayNoCopy(runtime, elements))
+                        .convertToString().getByteList();
+                w.ensure(4 + bytes.getRealSize());
+                w.buf.putInt(bytes.getRealSize()).put(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+        }
+    }
+
+    /** Reads one leaf into a new array of exactly size elements. */
+    private static Object[] readLeaf(ThreadContext context, ByteBuffer buf, int size) {
+        Ruby runtime = context.runtime;
+        byte tag = buf.get();
+        int n = buf.getInt();
+        if (n != size)
+            throw runtime.newArgumentError("corrupt Persistent::Vector dump");
+        Object[] leaf = new Object[size];
+        switch (tag) {
+            case TAG_INT:
+                for (int i = 0; i < n; i++)
+                    leaf[i] = RubyFixnum.newFixnum(runtime, buf.getInt());
+                break;
+            case TAG_LONG:
+                for (int i = 0; i < n; i++)
+                    leaf[i] = RubyFixnum.newFixnum(runtime, buf.getLong());
+                break;
+            case TAG_DOUBLE:
+                for (int i = 0; i < n; i++)
+                    leaf[i] = RubyFloat.newFloat(runtime, buf.getDouble());
+                break;
+            case TAG_STRING:
+                for (int i = 0; i < n; i++) {
+                    byte[] bytes = new byte[buf.getInt()];
+                    buf.get(bytes);
+                    leaf[i] = RubyString.newString(runtime, new ByteList(bytes, UTF8Encoding.INSTANCE, false));
+                }
+                break;
+            case TAG_MARSHAL:
+                byte[] bytes = new byte[buf.getInt()];
+                buf.get(bytes);
+                RubyArray elements = (RubyArray) runtime.getModule("Marshal")
+                        .callMethod(context, "load", RubyString.newStringNoCopy(runtime, bytes));
+                if (elements.getLength() != n)
+                    throw runtime.newArgumentError("corrupt Persistent::Vector dump");
+                for (int i = 0; i < n; i++)
+                    leaf[i] = elements.eltInternal(i);
+                break;
+            default:
+                throw runtime.newArgumentError("corrupt Persistent::Vector dump");
+        }
+        return leaf;
+    }
+}
@@ -0,0 +1,152 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.jruby.ext.persistent;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import org.jruby.ext.persistent.PersistentVectorLibrary.ChunkIterator;
+import org.jruby.ext.persistent.PersistentVectorLibrary.Node;
+import org.jruby.ext.persistent.PersistentVectorLibrary.PersistentVector;
+import org.jruby.ext.persistent.PersistentVectorLibrary.PersistentVector.LeafBuilder;
+
+/**
+ * Vector#memsize and Vector#compact.
+ *
+ * Sizes are estimates for a 64-bit JVM with compressed references, the
+ * default below 32GB of heap: 12-byte object and 16-byte array headers,
+ * 4-byte references, everything rounded up to 8 bytes. Only the vector's
+ * own structure is counted (nodes, their arrays and size tables, and the
+ * tail), not the elements, which belong to whoever else refers to them.
+ */
+public class VectorMemory {
+    static final int OBJECT_HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
+
+    // Header plus the edit, array and sizes fields.
+    static final long NODE_BYTES = align(OBJECT_HEADER + 3 * REFERENCE);
+
+    private VectorMemory() {}
+
+    /**
+     * {retained: bytes, shared: bytes}: what the trie and tail of this
+     * vector take up, and how much of that is also part of other, so is not
+     * freed when only this vector goes. shared is 0 without other.
+     */
+    @JRubyMethod(name = "memsize", optional = 1)
+    public static IRubyObject memsize(ThreadContext context, IRubyObject self, IRubyObject[] args) {
+        Ruby runtime = context.runtime;
+        PersistentVector vector = (PersistentVector) self;
+        Set<Object> other = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        if (args.length > 0) {
+            if (!(args[0] instanceof PersistentVector))
+                throw runtime.newTypeError(args[0], PersistentVectorLibrary.PersistentVector);
+            PersistentVector v = (PersistentVector) args[0];
+            collect(v.root(), v.shift, other);
+            other.add(v.tail);
+        }
+
+        long[] bytes = measure(vector, other);
+        RubyHash hash = RubyHash.newHash(runtime);
+        hash.op_aset(context, runtime.newSymbol("retained"), runtime.newFixnum(bytes[0]));
+        hash.op_aset(context, runtime.newSymbol("shared"), runtime.newFixnum(bytes[1]));
+        return hash;
+    }
+
+    /**
+     * The same elements in a balanced trie: full leaves, an exactly sized
+     * tail and no size tables. A vector already balanced is returned as it
+     * is. A relaxed one is rebuilt, taking over leaves that line up as they
+     * are, and the rebuilt vector is returned only if it is no larger, as
+     * the full leaves can outweigh the size tables they save.
+     */
+    @JRubyMethod(name = "compact")
+    public static IRubyObject compact(ThreadContext context, IRubyObject self) {
+        PersistentVector vector = (PersistentVector) self;
+        if (vector.root().sizes == null)
+            return vector;
+        LeafBuilder builder = new LeafBuilder(vector.cnt);
+        for (ChunkIterator it = vector.chunks(); it.next(); ) {
+            if (it.length == 32 && it.chunk.length == 32)
+                builder.addLeaf(it.chunk);
+            else
+                builder.addAll(it.chunk, 0, it.length);
+        }
+        PersistentVector rebuilt = builder.build(context, vector.getMetaClass());
+        return measure(rebuilt, null)[0] <= measure(vector, null)[0] ? rebuilt : vector;
+    }
+
+    /** {all bytes, bytes other holds as well}, other being null for none. */
+    private static long[] measure(PersistentVector vector, Set<Object> other) {
+        long[] bytes = new long[2];
+        count(vector.root(), vector.shift, other, bytes);
+        if (vector.tail != PersistentVector.EMPTY_TAIL)
+            add(vector.tail, arrayBytes(vector.tail.length), other, bytes);
+        return bytes;
+    }
+
+    private static void collect(Node node, int level, Set<Object> seen) {
+        if (node == PersistentVector.EMPTY_NODE)
+            return;
+        seen.add(node);
+        seen.add(node.array);
+        if (node.sizes != null)
+            seen.add(node.sizes);
+        if (level == 0)
+            return;
+        for (Object child : node.array) {
+            if (child != null)
+                collect((Node) child, level - 5, seen);
+        }
+    }
+
+    // bytes[0] counts everything, bytes[1] what other holds as well.
+    private static void count(Node node, int level, Set<Object> other, long[] bytes) {
+        // The empty root and tail are shared by every vector.
+        if (node == PersistentVector.EMPTY_NODE)
+            return;
+        add(node, NODE_BYTES, other, bytes);
+        add(node.array, arrayBytes(node.array.length), other, bytes);
+        if (node.sizes != null)
+            add(node.sizes, arrayBytes(node.sizes.length), other, bytes);
+        if (level == 0)
+            return;
+        for (Object child : node.array) {
+            if (child != null)
+                count((Node) child, level - 5, other, bytes);
+        }
+    }
+
+    private static void add(Object o, long size, Set<Object> other, long[] bytes) {
+        bytes[0] += size;
+        if (other != null && other.contains(o))
+            bytes[1] += size;
+    }
+
+    // References and ints are both 4 bytes.
+    private static long arrayBytes(int length) {
+        return align(ARRAY_HEADER + (long) length * REFERENCE);
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
@@ -0,0 +1,227 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.jruby.ext.persistent;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.jruby.Ruby;
+import org.jruby.RubyComparable;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyNumeric;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import org.jruby.ext.persistent.PersistentVectorLibrary.ChunkIterator;
+import org.jruby.ext.persistent.PersistentVectorLibrary.PersistentVector;
+import org.jruby.ext.persistent.PersistentVectorLibrary.PersistentVector.LeafBuilder;
+
+import static org.jruby.RubyEnumerator.enumeratorize;
+
+/**
+ * Vector#sort, #sort_by, #bsearch, #bsearch_index and #merge.
+ *
+ * Sorting copies the leaves into one flat array, sorts that with the JDK's
+ * stable merge sort and cuts the result straight back into leaves, so it
+ * costs one copy each way and no Ruby-level arrays. The searches probe the
+ * trie in place, and merge walks two sorted vectors leaf by leaf.
+ */
+public class VectorSort {
+    private VectorSort() {}
+
+    @JRubyMethod(name = "sort")
+    public static IRubyObject sort(final ThreadContext context, IRubyObject self, final Block block) {
+        PersistentVector vector = (PersistentVector) self;
+        IRubyObject[] elements = elements(vector);
+        Comparator<IRubyObject> comparator = block.isGiven() ? new Comparator<IRubyObject>() {
+            public int compare(IRubyObject a, IRubyObject b) {
+                return RubyComparable.cmpint(context, block.yieldSpecific(context, a, b), a, b);
+            }
+        } : natural(context);
+        sort(context, elements, comparator);
+        return build(context, vector, elements);
+    }
+
+    @JRubyMethod(name = "sort_by")
+    public static IRubyObject sort_by(final ThreadContext context, IRubyObject self, Block block) {
+        if (!block.isGiven()) return enumeratorize(context.runtime, self, "sort_by");
+        PersistentVector vector = (PersistentVector) self;
+        IRubyObject[] elements = elements(vector);
+        int n = elements.length;
+        final IRubyObject[] keys = new IRubyObject[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = block.yield(context, elements[i]);
+            order[i] = i;
+        }
+        sort(context, order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return PersistentSortedLibrary.compare(context, keys[a], keys[b]);
+            }
+        });
+        IRubyObject[] sorted = new IRubyObject[n];
+        for (int i = 0; i < n; i++)
+            sorted[i] = elements[order[i]];
+        return build(context, vector, sorted);
+    }
+
+    @JRubyMethod(name = "bsearch")
+    public static IRubyObject bsearch(ThreadContext context, IRubyObject self, Block block) {
+        if (!block.isGiven()) return enumeratorize(context.runtime, self, "bsearch");
+        PersistentVector vector = (PersistentVector) self;
+        int i = search(context, vector, block);
+        return i < 0 ? context.nil : vector.get(context, i);
+    }
+
+    @JRubyMethod(name = "bsearch_index")
+    public static IRubyObject bsearch_index(ThreadContext context, IRubyObject self, Block block) {
+        if (!block.isGiven()) return enumeratorize(context.runtime, self, "bsearch_index");
+        int i = search(context, (PersistentVector) self, block);
+        return i < 0 ? context.nil : context.runtime.newFixnum(i);
+    }
+
+    /**
+     * Merges this sorted vector with another sorted vector or array in one
+     * pass, ordering by <=> or the block. Equal elements from self come first.
+     */
+    @JRubyMethod(name = "merge", required = 1)
+    public static IRubyObject merge(final ThreadContext context, IRubyObject self, IRubyObject obj, final Block block) {
+        PersistentVector left = (PersistentVector) self;
+        PersistentVector right = obj instanceof PersistentVector
+                ? (PersistentVector) obj
+                : (PersistentVector) PersistentVector.from(context, left.getMetaClass(), obj);
+        Comparator<IRubyObject> comparator = block.isGiven() ? new Comparator<IRubyObject>() {
+            public int compare(IRubyObject a, IRubyObject b) {
+                return RubyComparable.cmpint(context, block.yieldSpecific(context, a, b), a, b);
+            }
+        } : natural(context);
+
+        LeafBuilder builder = new LeafBuilder(left.cnt + right.cnt);
+        Cursor a = new Cursor(left), b = new Cursor(right);
+        while (a.live && b.live) {
+            if (comparator.compare(b.peek(), a.peek()) < 0) {
+                builder.add(b.peek());
+                b.advance();
+            } else {
+                builder.add(a.peek());
+                a.advance();
+            }
+        }
+        a.drainInto(builder);
+        b.drainInto(builder);
+        return builder.build(context, left.getMetaClass());
+    }
+
+    /** A read position in a vector, moving one leaf at a time. */
+    static final class Cursor {
+        final ChunkIterator it;
+        int j;
+        boolean live;
+
+        Cursor(PersistentVector vector) {
+            it = vector.chunks();
+            live = it.next();
+        }
+
+        IRubyObject peek() {
+            return (IRubyObject) it.chunk[j];
+        }
+
+        void advance() {
+            if (++j == it.length) {
+                j = 0;
+                live = it.next();
+            }
+        }
+
+        void drainInto(LeafBuilder builder) {
+            while (live) {
+                builder.addAll(it.chunk, j, it.length - j);
+                j = 0;
+                live = it.next();
+            }
+        }
+    }
+
+    private static Comparator<IRubyObject> natural(final ThreadContext context) {
+        return new Comparator<IRubyObject>() {
+            public int compare(IRubyObject a, IRubyObject b) {
+                return PersistentSortedLibrary.compare(context, a, b);
+            }
+        };
+    }
+
+    private static <T> void sort(ThreadContext context, T[] elements, Comparator<? super T> comparator) {
+        try {
+            Arrays.sort(elements, comparator);
+        } catch (IllegalArgumentException e) {
+            // The merge sort noticed the block is not a consistent ordering.
+            throw context.runtime.newArgumentError("inconsistent comparison: " + e.getMessage());
+        }
+    }
+
+    private static IRubyObject[] elements(PersistentVector vector) {
+        IRubyObject[] elements = new IRubyObject[vector.cnt];
+        for (ChunkIterator it = vector.chunks(); it.next(); )
+            System.arraycopy(it.chunk, 0, elements, it.base, it.length);
+        return elements;
+    }
+
+    private static IRubyObject build(ThreadContext context, PersistentVector vector, IRubyObject[] elements) {
+        LeafBuilder builder = new LeafBuilder(elements.length);
+        builder.addAll(elements, 0, elements.length);
+        return builder.build(context, vector.getMetaClass());
+    }
+
+    /**
+     * Array#bsearch over the vector: in find-minimum mode (the block returns
+     * true, false or nil) the first index the block accepts, in find-any mode
+     * (it returns a number) an index where it returns 0; -1 when there is none.
+     */
+    private static int search(ThreadContext context, PersistentVector vector, Block block) {
+        Ruby runtime = context.runtime;
+        int low = 0, high = vector.cnt;
+        boolean satisfied = false;
+        while (low < high) {
+            int mid = low + ((high - low) >>> 1);
+            IRubyObject v = block.yield(context, vector.get(context, mid));
+            if (v == runtime.getTrue()) {
+                satisfied = true;
+                high = mid;
+            } else if (v.isNil() || v == runtime.getFalse()) {
+                low = mid + 1;
+            } else if (v instanceof RubyNumeric) {
+                int cmp = sign(context, v);
+                if (cmp == 0) return mid;
+                if (cmp < 0) high = mid;
+                else low = mid + 1;
+            } else {
+                throw runtime.newTypeError("wrong argument type " + v.getMetaClass().getRealClass().getName()
+                        + " (must be numeric, true, false or nil)");
+            }
+        }
+        return satisfied ? low : -1;
+    }
+
+    private static int sign(ThreadContext context, IRubyObject v) {
+        if (v instanceof RubyFixnum)
+            return Long.signum(((RubyFixnum) v).getLongValue());
+        if (v instanceof RubyFloat)
+            return (int) Math.signum(((RubyFloat) v).getDoubleValue());
+        RubyFixnum zero = RubyFixnum.zero(context.runtime);
+        return RubyComparable.cmpint(context, v.callMethod(context, "<=>", zero), v, zero);
+    }
+}
@@ -0,0 +1,167 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.jruby.ext.persistent;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Counters of the work persistent vector updates do: node copies made by
+ * set, add and pop, adds that only touched the tail against those that went
+ * into the trie, and the shift of the vectors being updated.
+ *
+ * Counting is off unless the JVM runs with -Dpersistent.stats=true. ENABLED
+ * is a constant, so when it is false the JIT drops the guarded increments
+ * altogether. When on, the counts are read with Persistent.stats or over
+ * JMX as org.jruby.ext.persistent:type=VectorStats.
+ */
+public class VectorStats implements VectorStatsMBean {
+    static final boolean ENABLED = Boolean.getBoolean("persistent.stats");
+
+    static final Counter SET_COPIES = new Counter();
+    static final Counter PUSH_TAIL_COPIES = new Counter();
+    static final Counter POP_TAIL_COPIES = new Counter();
+    static final Counter TAIL_ADDS = new Counter();
+    static final Counter TRIE_ADDS = new Counter();
+    // Balanced tries stop at shift 30; relaxed ones built by concat can be
+    // taller, and anything past the last slot is counted there.
+    static final Counter[] SHIFTS = new Counter[7];
+
+    static {
+        for (int i = 0; i < SHIFTS.length; i++)
+            SHIFTS[i] = new Counter();
+    }
+
+    /**
+     * A counter striped over padded cells picked by thread id, so threads
+     * counting at once seldom contend on a cache line (LongAdder needs
+     * Java 8).
+     */
+    static final class Counter {
+        private static final int STRIPES = 16;
+        private static final int PAD = 8;
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+        void increment() {
+            cells.incrementAndGet(((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++)
+                sum += cells.get(i * PAD);
+            return sum;
+        }
+
+        void reset() {
+            for (int i = 0; i < STRIPES; i++)
+                cells.set(i * PAD, 0);
+        }
+    }
+
+    static void recordShift(int shift) {
+        SHIFTS[Math.min(shift / 5, SHIFTS.length - 1)].increment();
+    }
+
+    static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new VectorStats(),
+                    new ObjectName("org.jruby.ext.persistent:type=VectorStats"));
+        } catch (JMException e) {
+            // Already registered by another runtime in this JVM; the counters are shared.
+        }
+    }
+
+    public long getSetNodeCopies() {
+        return SET_COPIES.sum();
+    }
+
+    public long getPushTailNodeCopies() {
+        return PUSH_TAIL_COPIES.sum();
+    }
+
+    public long getPopTailNodeCopies() {
+        return POP_TAIL_COPIES.sum();
+    }
+
+    public long getTailAdds() {
+        return TAIL_ADDS.sum();
+    }
+
+    public long getTrieAdds() {
+        return TRIE_ADDS.sum();
+    }
+
+    public long[] getShiftHistogram() {
+        long[] histogram = new long[SHIFTS.length];
+        for (int i = 0; i < SHIFTS.length; i++)
+            histogram[i] = SHIFTS[i].sum();
+        return histogram;
+    }
+
+    public void reset() {
+        SET_COPIES.reset();
+        PUSH_TAIL_COPIES.reset();
+        POP_TAIL_COPIES.reset();
+        TAIL_ADDS.reset();
+        TRIE_ADDS.reset();
+        for (Counter c : SHIFTS)
+            c.reset();
+    }
+
+    /**
+     * Persistent.stats, e.g. {enabled: true, node_copies: {set: 12, push_tail: 3,
+     * pop_tail: 0}, adds: {tail: 90, trie: 3}, shifts: {5 => 105}}. Shift 30
+     * also counts the taller relaxed tries.
+     */
+    @JRubyMethod(name = "stats", meta = true)
+    public static IRubyObject stats(ThreadContext context, IRubyObject self) {
+        Ruby runtime = context.runtime;
+        RubyHash copies = RubyHash.newHash(runtime);
+        copies.op_aset(context, runtime.newSymbol("set"), runtime.newFixnum(SET_COPIES.sum()));
+        copies.op_aset(context, runtime.newSymbol("push_tail"), runtime.newFixnum(PUSH_TAIL_COPIES.sum()));
+        copies.op_aset(context, runtime.newSymbol("pop_tail"), runtime.newFixnum(POP_TAIL_COPIES.sum()));
+        RubyHash adds = RubyHash.newHash(runtime);
+        adds.op_aset(context, runtime.newSymbol("tail"), runtime.newFixnum(TAIL_ADDS.sum()));
+        adds.op_aset(context, runtime.newSymbol("trie"), runtime.newFixnum(TRIE_ADDS.sum()));
+        RubyHash shifts = RubyHash.newHash(runtime);
+        for (int i = 0; i < SHIFTS.length; i++) {
+            long n = SHIFTS[i].sum();
+            if (n > 0)
+                shifts.op_aset(context, runtime.newFixnum(i * 5), runtime.newFixnum(n));
+        }
+
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.op_aset(context, runtime.newSymbol("enabled"), runtime.newBoolean(ENABLED));
+        stats.op_aset(context, runtime.newSymbol("node_copies"), copies);
+        stats.op_aset(context, runtime.newSymbol("adds"), adds);
+        stats.op_aset(context, runtime.newSymbol("shifts"), shifts);
+        return stats;
+    }
+
+    @JRubyMethod(name = "reset_stats", meta = true)
+    public static IRubyObject reset_stats(ThreadContext context, IRubyObject self) {
+        new VectorStats().reset();
+        return context.nil;
+    }
+}
@@ -0,0 +1,31 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.jruby.ext.persistent;
+
+/** The JMX view of {@link VectorStats}. */
+public interface VectorStatsMBean {
+    long getSetNodeCopies();
+
+    long getPushTailNodeCopies();
+
+    long getPopTailNodeCopies();
+
+    long getTailAdds();
+
+    long getTrieAdds();
+
+    /** Persistent add/set/pop calls by the shift of the vector, indexed by shift / 5. */
+    long[] getShiftHistogram();
+
+    void reset();
+}
@@ -46,6 +46,21 @@ module Persistent
       assert_equal new_vector.get(996), 2004
     end
 
+    def test_vector_set_at_end_appends
+      vector = Persistent::Vector[1, 2, 3]
+      new_vector = vector.set(3, 4)
+      assert_equal new_vector.to_a, [1, 2, 3, 4]
+      assert_equal vector.to_a, [1, 2, 3]
+    end
+
+    def test_vector_set_is_persistent
+      vector = Persistent::Vector[*1..40000]
+      new_vector = vector.set(33000, 0)
+      assert_equal vector.get(33000), 33001
+      assert_equal new_vector.get(33000), 0
+      assert_equal new_vector.get(32999), 33000
+    end
+
     def test_vector_each
       vector = Persistent::Vector[]
       (1..10000).each do |i|
@@ -64,6 +79,39 @@ module Persistent
       (1..10000).all? { |i| assert_equal i * i, vector[i-1] }
     end
 
+    def test_vector_to_a
+      assert_equal Persistent::Vector[*1..1100].to_a, [*1..1100]
+      assert_equal Persistent::Vector[].to_a, []
+    end
+
+    def test_vector_each_with_index
+      vector = Persistent::Vector[*1..1100]
+      vector.each_with_index { |value, i| assert_equal value, i + 1 }
+      assert_equal vector.each_with_index.to_a.last, [1100, 1099]
+    end
+
+    def test_vector_inject
+      vector = Persistent::Vector[*1..1100]
+      assert_equal vector.inject { |sum, i| sum + i }, 605550
+      assert_equal vector.inject(10) { |sum, i| sum + i }, 605560
+      assert_equal vector.inject(:+), 605550
+      assert_equal vector.reduce(10, :+), 605560
+      assert_nil Persistent::Vector[].inject(:+)
+    end
+
+    def test_vector_include
+      vector = Persistent::Vector[*1..1100]
+      assert vector.include?(1099)
+      refute vector.include?(1101)
+    end
+
+    def test_vector_find
+      vector = Persistent::Vector[*1..1100]
+      assert_equal vector.find { |i| i > 1050 }, 1051
+      assert_nil vector.detect { |i| i > 2000 }
+      assert_equal vector.find(lambda { :none }) { |i| i > 2000 }, :none
+    end
+
     def test_vector_clear
       vector = Persistent::Vector[]
       (1..10000).each do |i|
@@ -106,6 +154,138 @@ module Persistent
       end
     end
 
+    def test_vector_pop_across_levels
+      vector = Persistent::Vector[*1..(32 * 32 + 33)]
+      (32 * 32 + 33).downto(1) do |i|
+        assert_equal vector.size, i
+        assert_equal vector.get(i-1), i
+        vector = vector.pop
+      end
+      assert vector.empty?
+    end
+
+    def test_transient_conj
+      vector = Persistent::Vector[1, 2]
+      transient = vector.transient
+      (3..2000).each { |i| transient << i }
+      assert_equal transient.size, 2000
+      assert_equal transient.persistent!.to_a, [*1..2000]
+      assert_equal vector.to_a, [1, 2]
+    end
+
+    def test_transient_set_and_pop
+      vector = Persistent::Vector[*1..2000]
+      transient = vector.transient
+      transient.set!(5, :a).set!(1500, :b).set!(2000, :c)
+      assert_equal transient[1500], :b
+      4.times { transient.pop! }
+      new_vector = transient.persistent!
+      assert_equal new_vector.size, 1997
+      assert_equal new_vector.get(5), :a
+      assert_equal new_vector.get(1500), :b
+      assert_equal vector.get(1500), 1501
+      assert_equal vector.size, 2000
+    end
+
+    def test_transient_pop_then_conj_keeps_original
+      vector = Persistent::Vector[*1..(32 * 32 + 1)]
+      transient = vector.transient
+      40.times { transient.pop! }
+      40.times { |i| transient << -i }
+      assert_equal vector.to_a, [*1..(32 * 32 + 1)]
+      assert_equal transient.persistent!.get(32 * 32 - 39), 0
+    end
+
+    def test_transient_after_persistent
+      transient = Persistent::Vector[].transient
+      transient << 1
+      transient.persistent!
+      assert_raise(Java::JavaLang::IllegalAccessError) { transient << 2 }
+    end
+
+    def test_transient_owner_thread
+      transient = Persistent::Vector[].transient
+      error = Thread.new do
+        begin
+          transient << 1
+          nil
+        rescue Java::JavaLang::IllegalAccessError => e
+          e
+        end
+      end.value
+      assert_not_nil error
+    end
+
+    def test_vector_with_mutations
+      vector = Persistent::Vector[1]
+      new_vector = vector.with_mutations { |t| t << 2 << 3; t.set!(0, 0) }
+      assert_equal new_vector.class.name, 'Persistent::Vector'
+      assert_equal new_vector.to_a, [0, 2, 3]
+      assert_equal vector.to_a, [1]
+    end
+
+    def test_vector_slice
+      vector = Persistent::Vector[*1..5000]
+      assert_equal vector[100...1200].to_a, [*101..1200]
+      assert_equal vector[4990..-1].to_a, [*4991..5000]
+      assert_equal vector[1, 2].to_a, [2, 3]
+      assert_equal vector.slice(4999, 10).to_a, [5000]
+      assert_equal vector[5000, 1].to_a, []
+      assert_nil vector[5001, 1]
+      assert_equal vector[7], 8
+      small = Persistent::Vector[*1..10]
+      assert_nil small[-20..-1]
+      assert_nil small[-11..2]
+      assert_equal small[-3..-1].to_a, [8, 9, 10]
+      assert_equal small[-3, 2].to_a, [8, 9]
+    end
+
+    def test_vector_take_and_drop
+      vector = Persistent::Vector[*1..5000]
+      assert_equal vector.take(1057).to_a, [*1..1057]
+      assert_equal vector.drop(1057).to_a, [*1058..5000]
+      assert_equal vector.take(6000).size, 5000
+      assert vector.drop(6000).empty?
+      assert_equal vector.take(10).class.name, 'Persistent::Vector'
+    end
+
+    def test_vector_concat
+      left = Persistent::Vector[*1..1100]
+      right = Persistent::Vector[*1101..3333]
+      vector = left + right
+      assert_equal vector.to_a, [*1..3333]
+      assert_equal left.concat([1101, 1102]).to_a, [*1..1102]
+      assert_equal left.to_a, [*1..1100]
+      assert_equal right.to_a, [*1101..3333]
+    end
+
+    def test_vector_insert_and_delete_at
+      vector = Persistent::Vector[*1..3000]
+      inserted = vector.insert_at(1500, :x)
+      assert_equal inserted.size, 3001
+      assert_equal inserted.get(1500), :x
+      assert_equal inserted.get(1501), 1501
+      deleted = inserted.delete_at(1500)
+      assert_equal deleted.to_a, vector.to_a
+      assert_equal vector.delete_at(0).to_a, [*2..3000]
+    end
+
+    def test_relaxed_vector_updates
+      vector = Persistent::Vector[*1..100].drop(3) + Persistent::Vector[*1..2000]
+      expected = [*4..100] + [*1..2000]
+      100.times { |i| vector = vector.add(i); expected << i }
+      vector = vector.set(50, :a).set(1500, :b)
+      expected[50] = :a
+      expected[1500] = :b
+      500.times { vector = vector.pop; expected.pop }
+      assert_equal vector.to_a, expected
+      vector = vector.with_mutations { |t| 40.times { t.pop! }; t << :c; t.set!(20, :d) }
+      expected = expected[0...-40] + [:c]
+      expected[20] = :d
+      assert_equal vector.to_a, expected
+      assert vector.eql?(Persistent::Vector[*expected])
+    end
+
     def test_vector_inspect
       vector = Persistent::Vector[1,2,3]
       assert_equal vector.inspect, 'Persistent::Vector[1, 2, 3]'
@@ -120,5 +300,610 @@ module Persistent
       refute vector.eql? [1,2,3]
       refute vector.eql? Persistent::Vector[1,2,3,4]
     end
+
+    def test_equality_between_versions
+      vector = Persistent::Vector[*1..5000]
+      changed = vector.set(2500, :x)
+      refute vector == changed
+      refute vector.eql?(changed)
+      assert changed.set(2500, 2501) == vector
+      assert vector == Persistent::Vector[*1..5000]
+      assert Persistent::Vector[1, 2] == Persistent::Vector[1.0, 2]
+      refute Persistent::Vector[1, 2].eql?(Persistent::Vector[1.0, 2])
+      assert (vector.drop(1000) + vector.take(1000)) == (vector.to_a.drop(1000) + vector.to_a.take(1000))
+    end
+
+    def test_parallel
+      vector = Persistent::Vector[*1..20000]
+      expected = (1..20000).map { |i| i * 2 }
+      assert_equal vector.pmap { |i| i * 2 }.to_a, expected
+      assert_equal vector.pselect(&:even?).to_a, expected.take(10000)
+      assert_equal vector.preduce { |a, b| a + b }, 200010000
+      assert_equal vector.preduce(10) { |a, b| a + b }, 200010010
+      assert_equal Persistent::Vector[1, 2].pmap { |i| -i }.to_a, [-1, -2]
+      assert_raise(ArgumentError) { vector.pmap { |i| raise ArgumentError if i == 15000 } }
+    end
+
+    def test_dump_and_load
+      require 'tempfile'
+      file = Tempfile.new('vector')
+      [[], [*1..1000], [2**40, 1.5, "text", :sym, nil] * 10].each do |elements|
+        vector = Persistent::Vector[*elements]
+        vector.dump(file.path)
+        loaded = Persistent::Vector.load(file.path)
+        assert_equal loaded.to_a, elements
+        assert_equal loaded.add(1).size, elements.size + 1
+      end
+      File.open(file.path, 'w') { |f| f.write('junk') }
+      assert_raise(ArgumentError) { Persistent::Vector.load(file.path) }
+    ensure
+      file.close!
+    end
+
+    def test_diff_and_patch
+      vector = Persistent::Vector[*1..5000]
+      changed = vector.set(10, :a).set(11, :b).set(4000, :c)
+      assert_equal vector.diff(vector), []
+      assert_equal vector.diff(changed), [[10...12, [:a, :b]], [4000...4001, [:c]]]
+      assert_equal vector.patch(vector.diff(changed)), changed
+      assert_equal vector.diff(vector.add(:x)), [[5000...5000, [:x]]]
+      assert_equal vector.diff(vector.take(4990)), [[4990...5000, []]]
+      assert_equal Persistent::Vector[1, 2, 3].diff([1, 5, 3, 4]), [[1...2, [5]], [3...3, [4]]]
+      relaxed = vector.drop(3) + vector.take(3)
+      assert_equal vector.patch(vector.diff(relaxed)), relaxed
+      assert_equal vector.patch([[1...3, [:x]], [4998...4999, []]]).to_a,
+                   [1, :x] + (4..4998).to_a + [5000]
+      assert_raise(IndexError) { vector.patch([[4999...5001, [1, 2]]]) }
+    end
+
+    def test_lazy
+      vector = Persistent::Vector[*1..1000]
+      lazy = vector.lazy.map { |i| i * 3 }.select(&:even?).reject { |i| i % 4 == 0 }
+      expected = (1..1000).map { |i| i * 3 }.select(&:even?).reject { |i| i % 4 == 0 }
+      assert_equal lazy.to_v.class, Persistent::Vector
+      assert_equal lazy.to_v.to_a, expected
+      assert_equal lazy.to_a, expected
+      assert_equal lazy.take(3).to_a, expected.take(3)
+      assert_equal lazy.first(2), expected.take(2)
+      assert_equal vector.lazy.take_while { |i| i < 40 }.flat_map { |i| [i, -i] }.to_a,
+                   (1..39).flat_map { |i| [i, -i] }
+      assert_equal vector.lazy.flat_map { |i| Persistent::Vector[i, i] }.take(3).to_a, [1, 1, 2]
+      assert_equal vector.lazy.take(0).to_a, []
+      seen = []
+      vector.lazy.map { |i| seen << i; i }.take(5).each { }
+      assert_equal seen, [1, 2, 3, 4, 5]
+    end
+
+    def test_bulk_construction
+      [0, 1, 32, 33, 1024, 1025, 40000].each do |n|
+        assert_equal Persistent::Vector.from((0...n).to_a).to_a, (0...n).to_a
+        assert_equal Persistent::Vector.from_range(0...n), Persistent::Vector[*0...n]
+      end
+      assert_equal Persistent::Vector.from_range(-2..2).to_a, [-2, -1, 0, 1, 2]
+      assert_equal Persistent::Vector.from(5..1).to_a, []
+      assert_equal Persistent::Vector.from('a'..'c').to_a, %w(a b c)
+      assert_equal Persistent::Vector.from({a: 1}).to_a, [[:a, 1]]
+      assert_equal Persistent::Vector.from(Persistent::Set[1]).to_a, [1]
+      assert_equal Persistent::Vector.from(Persistent::Vector.from_range(1..100)).add(101).size, 101
+      assert_raise(TypeError) { Persistent::Vector.from_range([1, 2]) }
+    end
+
+    def test_concat_array
+      [0, 5, 32, 1000].each do |n|
+        vector = Persistent::Vector[*1..n]
+        assert_equal vector.concat_array((1..2000).to_a).to_a, (1..n).to_a + (1..2000).to_a
+        assert_equal vector.concat_array([]).equal?(vector), true
+      end
+      relaxed = Persistent::Vector[*1..100].drop(7) + Persistent::Vector[*1..100]
+      assert_equal relaxed.concat_array((1..100).to_a).to_a, relaxed.to_a + (1..100).to_a
+    end
+
+    def test_local_updates
+      vector = Persistent::Vector[*0...5000]
+      versions = (0...64).inject([vector]) { |vs, i| vs << vs.last.set(2000 + i % 40, -i) }
+      expected = (0...5000).to_a
+      versions.each_with_index do |v, n|
+        assert_equal v.to_a, expected
+        expected[2000 + n % 40] = -n
+      end
+      last = versions.last
+      assert_equal last[2001], -41
+      assert_equal last.add(:x).pop.set(2002, :y).to_a[2000, 3], [-40, -41, :y]
+      assert_equal last.drop(2000).take(2).to_a, [-40, -41]
+      assert_equal vector.diff(last).map(&:first), [2000...2040]
+    end
+
+    def test_sort_and_search
+      values = (1..3000).map { |i| (i * 7919) % 3001 }
+      vector = Persistent::Vector[*values]
+      sorted = vector.sort
+      assert_equal sorted.class, Persistent::Vector
+      assert_equal sorted.to_a, values.sort
+      assert_equal vector.sort { |a, b| b <=> a }.to_a, values.sort.reverse
+      assert_equal vector.sort_by { |i| -i }.to_a, values.sort_by { |i| -i }
+      assert_equal Persistent::Vector[%w(b 1), %w(a 2), %w(b 0)].sort_by(&:first).map(&:last), %w(2 1 0)
+      assert_raise(ArgumentError) { Persistent::Vector[1, "a"].sort }
+      assert_equal sorted.bsearch { |x| x >= 1500 }, 1500
+      assert_equal sorted.bsearch_index { |x| x >= 1500 }, 1499
+      assert_equal sorted.bsearch { |x| 42 <=> x }, 42
+      assert_nil sorted.bsearch { |x| x > 5000 }
+      assert_raise(TypeError) { sorted.bsearch { "x" } }
+      relaxed = Persistent::Vector[*1..100].drop(3) + Persistent::Vector[*101..200]
+      assert_equal relaxed.bsearch_index { |x| x >= 150 }, 146
+    end
+
+    def test_merge
+      evens = Persistent::Vector[*(0..200).step(2)]
+      odds = Persistent::Vector[*(1..99).step(2)]
+      assert_equal evens.merge(odds).to_a, ((0..200).step(2).to_a + (1..99).step(2).to_a).sort
+      assert_equal odds.merge([0, 100, 1000]).to_a, ([0, 100, 1000] + (1..99).step(2).to_a).sort
+      assert_equal Persistent::Vector[3, 1].merge(Persistent::Vector[2]) { |a, b| b <=> a }.to_a, [3, 2, 1]
+      assert_equal Persistent::Vector[].merge([]).to_a, []
+    end
+
+    def test_memsize_and_compact
+      vector = Persistent::Vector[*1..1000]
+      assert_equal vector.memsize[:shared], 0
+      assert_equal vector.memsize(vector)[:shared], vector.memsize[:retained]
+      updated = vector.set(5, :x)
+      assert_operator updated.memsize(vector)[:shared], :>, updated.memsize[:retained] * 0.9
+      assert_raise(TypeError) { vector.memsize([1]) }
+
+      relaxed = (0...50).inject(vector) { |v, i| v.insert_at(i * 19, :x) }
+      compacted = relaxed.compact
+      assert_equal compacted, relaxed
+      assert_equal compacted.to_a, relaxed.to_a
+      assert_operator compacted.memsize[:retained], :<, relaxed.memsize[:retained]
+      assert_equal compacted.add(1).pop.to_a, relaxed.to_a
+      assert_equal vector.compact.memsize(vector)[:shared] > 0, true
+      assert_equal Persistent::Vector[].compact.memsize, {retained: 0, shared: 0}
+    end
+
+    def test_compact_never_grows
+      vector = Persistent::Vector[*1..1000]
+      assert vector.compact.equal?(vector)
+      inserted = Persistent::Vector.from((1..100).to_a).insert_at(3, 0)
+      deleted = (0...20).inject(Persistent::Vector[*1..100]) { |v, i| v.delete_at(i * 3) }
+      [inserted, deleted].each do |v|
+        compacted = v.compact
+        assert_equal compacted.to_a, v.to_a
+        assert_operator compacted.memsize[:retained], :<=, v.memsize[:retained]
+      end
+    end
+
+    def test_batch_updates
+      vector = Persistent::Vector[*0...2000]
+      updated = vector.set_all(1999 => :t, 5 => :a, 1500 => :b, 6 => :c)
+      expected = (0...2000).to_a
+      expected[1999], expected[5], expected[1500], expected[6] = :t, :a, :b, :c
+      assert_equal updated.to_a, expected
+      assert_equal vector.to_a, (0...2000).to_a
+      assert_equal vector.set_all([[3, :x], [3, :y]])[3], :y
+      assert_equal vector.set_all({}).equal?(vector), true
+      assert_raise(IndexError) { vector.set_all(2000 => 1) }
+
+      assert_equal vector.update_at([10, 1990, 10]) { |x| x * 2 }.to_a.values_at(10, 1990), [40, 3980]
+      relaxed = (0...50).inject(vector) { |v, i| v.insert_at(i * 19, :x) }
+      indices = (0...relaxed.size).step(7).to_a
+      assert_equal relaxed.update_at(indices.reverse) { :y }.to_a,
+                   relaxed.to_a.each_with_index.map { |x, i| i % 7 == 0 ? :y : x }
+    end
+
+    def test_stats
+      Persistent.reset_stats
+      Persistent::Vector[*1..96].add(97).set(3, :x).pop
+      stats = Persistent.stats
+      assert_equal stats.keys, [:enabled, :node_copies, :adds, :shifts]
+      if stats[:enabled]
+        assert_equal stats[:adds], {tail: 0, trie: 1}
+        assert_equal stats[:node_copies], {set: 2, push_tail: 1, pop_tail: 1}
+        assert_equal stats[:shifts], {5 => 3}
+      else
+        assert_equal stats[:node_copies], {set: 0, push_tail: 0, pop_tail: 0}
+      end
+    end
+
+    def test_hash
+      vector = Persistent::Vector[*1..100]
+      assert_equal vector.hash, Persistent::Vector[*1..100].hash
+      refute_equal vector.hash, vector.set(50, 0).hash
+      assert_equal({vector => 1}[Persistent::Vector[*1..100]], 1)
+    end
+  end
+
+  class TestHash < Test::Unit::TestCase
+    def test_create
+      hash = Persistent::Hash[:a, 1, :b, 2]
+      assert_equal hash.size, 2
+      assert_equal hash[:a], 1
+      assert_equal Persistent::Hash[{:a => 1, :b => 2}], hash
+      assert_raise(ArgumentError) { Persistent::Hash[:a] }
+    end
+
+    def test_assoc_and_get
+      hash = Persistent::Hash[]
+      (1..10000).each { |i| hash = hash.assoc(i, i * 2) }
+      assert_equal hash.size, 10000
+      (1..10000).each { |i| assert_equal hash.get(i), i * 2 }
+      assert_nil hash.get(10001)
+      assert_equal hash.get(10001, :none), :none
+    end
+
+    def test_assoc_is_persistent
+      hash = Persistent::Hash[:a, 1]
+      new_hash = hash.assoc(:a, 2).assoc(:b, 3)
+      assert_equal hash.to_h, {:a => 1}
+      assert_equal new_hash.to_h, {:a => 2, :b => 3}
+    end
+
+    def test_dissoc
+      hash = Persistent::Hash[]
+      (1..5000).each { |i| hash = hash.assoc(i, i) }
+      smaller = hash
+      (1..5000).step(2) { |i| smaller = smaller.dissoc(i) }
+      assert_equal smaller.size, 2500
+      assert_equal hash.size, 5000
+      refute smaller.key?(1)
+      assert smaller.key?(2)
+      assert_equal smaller.dissoc(:missing), smaller
+    end
+
+    def test_eql_keys
+      hash = Persistent::Hash["a", 1, [1, 2], 2, 1.0, 3]
+      assert_equal hash["a"], 1
+      assert_equal hash[[1, 2]], 2
+      assert_equal hash[1.0], 3
+      assert_nil hash[1]
+    end
+
+    def test_string_keys_are_frozen_copies
+      key = "key"
+      hash = Persistent::Hash[].assoc(key, 1)
+      key << "changed"
+      assert_equal hash["key"], 1
+    end
+
+    def test_hash_collisions
+      klass = Struct.new(:id) do
+        def hash; 42; end
+      end
+      hash = Persistent::Hash[]
+      keys = (1..50).map { |i| klass.new(i) }
+      keys.each { |k| hash = hash.assoc(k, k.id) }
+      assert_equal hash.size, 50
+      keys.each { |k| assert_equal hash[k], k.id }
+      hash = hash.dissoc(keys[10])
+      assert_equal hash.size, 49
+      assert_nil hash[keys[10]]
+    end
+
+    def test_each
+      hash = Persistent::Hash[{:a => 1, :b => 2, :c => 3}]
+      pairs = []
+      hash.each { |k, v| pairs << [k, v] }
+      assert_equal pairs.sort, [[:a, 1], [:b, 2], [:c, 3]]
+      assert_equal hash.keys.sort, [:a, :b, :c]
+      assert_equal hash.values.sort, [1, 2, 3]
+      assert_equal hash.map { |k, v| v }.sort, [1, 2, 3]
+    end
+
+    def test_merge_and_equality
+      hash = Persistent::Hash[:a, 1]
+      merged = hash.merge(:b => 2).merge(Persistent::Hash[:c, 3])
+      assert_equal merged.to_h, {:a => 1, :b => 2, :c => 3}
+      assert merged == Persistent::Hash[:c, 3, :b, 2, :a, 1]
+      refute merged == hash
+      assert hash.eql?(Persistent::Hash[:a, 1])
+      refute hash.eql?(Persistent::Hash[:a, 1.0])
+    end
+
+    def test_hash
+      a = Persistent::Hash[1, 2, 3, 4]
+      b = Persistent::Hash[3, 4].assoc(1, 2)
+      assert_equal a.hash, b.hash
+      refute_equal a.hash, a.assoc(1, 5).hash
+      assert_equal({a => 1}[b], 1)
+    end
+
+    def test_inspect
+      assert_equal Persistent::Hash[:a, 1].inspect, 'Persistent::Hash{:a=>1}'
+    end
+
+    def test_transient
+      hash = Persistent::Hash[:a, 1]
+      transient = hash.transient
+      (1..3000).each { |i| transient[i] = i }
+      (1..3000).step(3) { |i| transient.dissoc!(i) }
+      transient.store(:a, 2)
+      result = transient.persistent!
+      assert_equal result.size, 2001
+      assert_equal result[:a], 2
+      assert_nil result[1]
+      assert_equal result[2], 2
+      assert_equal hash.size, 1
+      assert_equal hash[:a], 1
+      assert_raise(Java::JavaLang::IllegalAccessError) { transient[:b] = 1 }
+    end
+
+    def test_with_mutations
+      hash = Persistent::Hash[].with_mutations { |t| 100.times { |i| t.assoc!(i, i) } }
+      assert_equal hash.size, 100
+      assert_equal hash.class.name, 'Persistent::Hash'
+    end
+  end
+
+  class TestSet < Test::Unit::TestCase
+    def test_create_and_include
+      set = Persistent::Set[1, 2, 2, 3]
+      assert_equal set.size, 3
+      assert set.include?(2)
+      refute set.include?(4)
+      assert_equal set.to_a.sort, [1, 2, 3]
+      assert Persistent::Set[].empty?
+    end
+
+    def test_add_and_delete
+      set = Persistent::Set[1, 2]
+      assert_equal set.add(3).size, 3
+      assert set.add(1).equal?(set)
+      assert_equal set.delete(1).to_a, [2]
+      assert_equal set.size, 2
+    end
+
+    def test_algebra
+      a = Persistent::Set[*1..1000]
+      b = Persistent::Set[*500..1500]
+      assert_equal (a | b).size, 1500
+      assert_equal (a & b).to_a.sort, (500..1000).to_a
+      assert_equal (a - b).to_a.sort, (1..499).to_a
+      assert_equal (a - [1, 2]).size, 998
+      assert (a | a).equal?(a)
+    end
+
+    def test_algebra_with_shared_structure
+      a = Persistent::Set[*1..5000]
+      b = a.add(:x).delete(42)
+      assert_equal (a | b).size, 5001
+      assert_equal (a & b).size, 4999
+      assert_equal (a - b).to_a, [42]
+      assert_equal (b - a).to_a, [:x]
+    end
+
+    def test_equality
+      assert Persistent::Set[1, 2, 3] == Persistent::Set[3, 2, 1]
+      refute Persistent::Set[1, 2] == Persistent::Set[1, 3]
+      assert_equal Persistent::Set[1].inspect, 'Persistent::Set[1]'
+    end
+
+    def test_hash
+      a = Persistent::Set[1, 2, 3]
+      b = Persistent::Set[3, 2].add(1)
+      assert a.eql?(b)
+      assert_equal a.hash, b.hash
+      assert_equal({a => 1}[b], 1)
+    end
+
+    def test_transient
+      set = Persistent::Set[1].with_mutations do |t|
+        (1..100).each { |i| t << i }
+        t.delete!(50)
+      end
+      assert_equal set.size, 99
+      refute set.include?(50)
+    end
+  end
+
+  class TestSortedMap < Test::Unit::TestCase
+    def test_order
+      map = Persistent::SortedMap[3, :c, 1, :a, 2, :b, 1, :z]
+      assert_equal map.size, 3
+      assert_equal map.keys, [1, 2, 3]
+      assert_equal map[1], :z
+      assert_equal map.first, [1, :z]
+      assert_equal map.last, [3, :c]
+    end
+
+    def test_assoc_and_dissoc
+      map = Persistent::SortedMap[]
+      (1..1000).to_a.shuffle.each { |i| map = map.assoc(i, i * 2) }
+      assert_equal map.keys, (1..1000).to_a
+      smaller = map.dissoc(500)
+      assert_nil smaller[500]
+      assert_equal map[500], 1000
+      assert_equal smaller.size, 999
+    end
+
+    def test_range
+      map = Persistent::SortedMap[{"b" => 2, "a" => 1, "d" => 4, "c" => 3}]
+      assert_equal map.range("b", "c").to_a, [["b", 2], ["c", 3]]
+      assert_equal map.range(nil, "b").keys, ["a", "b"]
+      assert_equal map.range("c", nil).keys, ["c", "d"]
+    end
+
+    def test_transient
+      map = Persistent::SortedMap[5, 5].with_mutations do |t|
+        (1..100).each { |i| t[i] = i }
+        t.dissoc!(5)
+      end
+      assert_equal map.size, 99
+      assert_equal map.first, [1, 1]
+    end
+
+    def test_hash
+      map = Persistent::SortedMap[1, :a, 2, :b]
+      other = Persistent::SortedMap[2, :b].assoc(1, :a)
+      assert_equal map.hash, other.hash
+      refute_equal map.hash, map.assoc(2, :c).hash
+      assert_equal({map => 1}[other], 1)
+      assert_equal({Persistent::SortedSet[2, 1] => 1}[Persistent::SortedSet[1, 2]], 1)
+    end
+  end
+
+  class TestSortedSet < Test::Unit::TestCase
+    def test_sorted_set
+      set = Persistent::SortedSet[5, 3, 9, 3]
+      assert_equal set.to_a, [3, 5, 9]
+      assert_equal set.add(4).to_a, [3, 4, 5, 9]
+      assert_equal set.delete(5).to_a, [3, 9]
+      assert_equal set.range(4, 9).to_a, [5, 9]
+      assert_equal set.first(2), [3, 5]
+      assert set == Persistent::SortedSet[9, 5, 3]
+      assert_raise(ArgumentError) { Persistent::SortedSet[1, "a"] }
+    end
+  end
+
+  class TestPrimitiveVector < Test::Unit::TestCase
+    def test_long_vector
+      vector = Persistent::LongVector[*1..1000]
+      assert_equal vector.size, 1000
+      assert_equal vector[999], 1000
+      assert_equal vector.add(1001).size, 1001
+      assert_equal vector.set(0, 5)[0], 5
+      assert_equal vector.pop.size, 999
+      assert_equal vector.sum, 500500
+      assert_equal vector.min, 1
+      assert_equal vector.max, 1000
+      assert_equal vector.select(&:even?).size, 500
+      assert_equal vector.class.name, 'Persistent::LongVector'
+    end
+
+    def test_double_vector
+      vector = Persistent::DoubleVector[3.5, 1, 2.25]
+      assert_equal vector.to_a, [3.5, 1.0, 2.25]
+      assert_equal vector.sum, 6.75
+      assert_equal vector.sort.to_a, [1.0, 2.25, 3.5]
+      assert_equal vector.sort.class, Persistent::DoubleVector
+      assert vector == [3.5, 1.0, 2.25]
+      zero, negative = Persistent::DoubleVector[0.0], Persistent::DoubleVector[-0.0]
+      assert zero.eql?(negative)
+      assert_equal zero.hash, negative.hash
+    end
+
+    def test_sort
+      values = (1..5000).map { |i| (i * 7919) % 5003 - 2500 }
+      vector = Persistent::LongVector[*values]
+      assert_equal vector.sort.to_a, values.sort
+      assert_equal vector.to_a, values
+      assert_equal Persistent::LongVector[3, 1, 2].sort { |a, b| b <=> a }.to_a, [3, 2, 1]
+    end
+
+    def test_falls_back_to_vector
+      vector = Persistent::LongVector[1, 2, 3]
+      assert_equal vector.add("four").class, Persistent::Vector
+      assert_equal vector.add("four").to_a, [1, 2, 3, "four"]
+      assert_equal vector.set(1, :x).to_a, [1, :x, 3]
+      assert_equal Persistent::LongVector[1, 2.5].class, Persistent::Vector
+      mixed = vector.with_mutations { |t| t << 4 << nil << 5 }
+      assert_equal mixed.class, Persistent::Vector
+      assert_equal mixed.to_a, [1, 2, 3, 4, nil, 5]
+    end
+
+    def test_transient
+      vector = Persistent::LongVector[].with_mutations do |t|
+        2000.times { |i| t << i }
+        t.set!(10, -1)
+      end
+      assert_equal vector.size, 2000
+      assert_equal vector[10], -1
+      assert_equal vector[1999], 1999
+      assert vector.eql?(Persistent::LongVector[*vector.to_a])
+    end
+  end
+
+  class TestAtom < Test::Unit::TestCase
+    def test_swap_and_reset
+      atom = Persistent::Atom.new(Persistent::Vector[])
+      assert_equal atom.swap { |v| v.add(1) }.to_a, [1]
+      assert_equal atom.swap(2, 3) { |v, a, b| v.add(a).add(b) }.to_a, [1, 2, 3]
+      atom.reset(Persistent::Vector[:x])
+      assert_equal atom.value.to_a, [:x]
+      assert_equal Persistent::Ref, Persistent::Atom
+    end
+
+    def test_concurrent_swaps
+      atom = Persistent::Atom.new(Persistent::Vector[])
+      threads = 4.times.map { |t| Thread.new { 500.times { |i| atom.swap { |v| v.add([t, i]) } } } }
+      threads.each(&:join)
+      assert_equal atom.value.size, 2000
+      assert_equal atom.value.to_a.sort, 4.times.flat_map { |t| 500.times.map { |i| [t, i] } }.sort
+      stats = atom.stats
+      assert_equal stats[:swaps], 2000
+      assert stats[:retries] >= stats[:contended]
+    end
+
+    def test_compare_and_set
+      atom = Persistent::Atom.new(1)
+      assert atom.compare_and_set(1, 2)
+      refute atom.compare_and_set(1, 3)
+      vector = Persistent::Vector[1]
+      atom.reset(vector)
+      refute atom.compare_and_set(Persistent::Vector[1], 4)
+      assert atom.compare_and_set(vector, 4)
+      assert_equal atom.stats[:cas_failures], 2
+    end
+
+    def test_validator_and_watches
+      atom = Persistent::Atom.new(Persistent::Vector[]) { |v| v.size < 3 }
+      seen = []
+      atom.add_watch(:log) { |key, a, old, new| seen << [key, old.size, new.size] }
+      atom.swap { |v| v.add(1) }
+      atom.swap { |v| v.add(2) }
+      assert_raise(ArgumentError) { atom.swap { |v| v.add(3) } }
+      assert_equal atom.value.size, 2
+      atom.remove_watch(:log)
+      atom.reset(Persistent::Vector[])
+      assert_equal seen, [[:log, 0, 1], [:log, 1, 2]]
+      assert_raise(ArgumentError) { atom.validator = lambda { |v| v.size > 0 } }
+      atom.validator = nil
+      assert_raise(ArgumentError) { Persistent::Atom.new(5) { |v| v.even? } }
+    end
+  end
+
+  class TestDeque < Test::Unit::TestCase
+    def test_both_ends
+      deque = Persistent::Deque[2, 3].push(4).unshift(1).unshift(0)
+      assert_equal deque.to_a, [0, 1, 2, 3, 4]
+      assert_equal deque.first, 0
+      assert_equal deque.last, 4
+      assert_equal deque.shift.pop.to_a, [1, 2, 3]
+      assert_equal deque.to_a, [0, 1, 2, 3, 4]
+      assert_equal deque[-1], 4
+      assert_equal deque.first(2), [0, 1]
+      assert_raise(IndexError) { Persistent::Deque[].pop }
+      assert_nil Persistent::Deque[].first
+    end
+
+    def test_drain_across_sides
+      deque = Persistent::Deque[*1..1000]
+      500.times { |i| deque = deque.unshift(-i) }
+      expected = (0...500).map { |i| -i }.reverse + (1..1000).to_a
+      1200.times { deque = deque.pop; expected.pop }
+      assert_equal deque.to_a, expected
+      deque = deque.shift.shift
+      assert_equal deque.to_a, expected.drop(2)
+      assert_equal deque.size, 298
+    end
+
+    def test_enumerable_and_equality
+      deque = Persistent::Deque[*1..100].unshift(0)
+      assert_equal deque.select(&:even?).size, 51
+      assert_equal deque.inject(:+), 5050
+      assert deque == (0..100).to_a
+      assert deque.eql?(Persistent::Deque[*0..100])
+      assert_equal deque.hash, Persistent::Deque[*0..100].hash
+      refute deque == Persistent::Deque[*1..100]
+    end
+
+    def test_transient
+      deque = Persistent::Deque[5].with_mutations do |t|
+        3.times { |i| t << i }
+        t.unshift!(:a).unshift!(:b)
+        t.shift!.pop!
+        assert_equal t.first, :a
+        assert_equal t.size, 4
+      end
+      assert_equal deque.to_a, [:a, 5, 0, 1]
+      assert_equal deque.class, Persistent::Deque
+    end
   end
 end